@@ -36,7 +36,6 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -238,15 +237,16 @@ public class RemoteMethodStrategy extends GelatoResourceControllerImpl
     }
 
     byte[] returnData = getReturnData(sessionVar);
+    int ioUnit = connection.getSession().getIoUnit();
     int ptr = 0;
 
     while (ptr < returnData.length) {
       int copyByte = numberOfBytes - ptr;
-      if (copyByte > P9Protocol.MAX_MSG_CONTENT_SIZE) {
-        copyByte = P9Protocol.MAX_MSG_CONTENT_SIZE;
+      if (copyByte > ioUnit) {
+        copyByte = ioUnit;
       }
       ReadResponse readResponse = new ReadResponse();
-      readResponse.setData(Arrays.copyOf(returnData, copyByte));
+      readResponse.setData(returnData, ptr, copyByte);
       connection.reply(readResponse);
       ptr += copyByte;
     }
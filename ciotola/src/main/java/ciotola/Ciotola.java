@@ -188,6 +188,11 @@ public class Ciotola implements CiotolaContext {
     serviceContainer.execute(job, key);
   }
 
+  @Override
+  public void execute(Runnable job, long key, boolean priority) {
+    serviceContainer.execute(job, key, priority);
+  }
+
   @Override
   public void execute(CiotolaConnectionService connectionService) {
     serviceContainer.execute(connectionService);
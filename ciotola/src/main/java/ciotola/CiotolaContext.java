@@ -62,6 +62,9 @@ public interface CiotolaContext {
 
   void execute(Runnable job, long key);
 
+  // Priority jobs overtake queued jobs of other keys, never earlier jobs of their own key
+  void execute(Runnable job, long key, boolean priority);
+
   void execute(CiotolaConnectionService connectionService);
 
   void stop();
@@ -11,7 +11,8 @@
 
 package ciotola.connection;
 
-import java.nio.ByteBuffer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteOrder;
 
 public final class ByteHandler {
@@ -20,26 +21,19 @@ public final class ByteHandler {
   public static final int MSG_LONG_SIZE = 8;
   public static final int MSG_SHORT_SIZE = 2;
 
+  private static final VarHandle INT_VIEW =
+      MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
   public static void copyBytesTo(byte[] input, byte[] out, int start, int size) {
-    for (int counter = 0; counter < size; ++counter) {
-      out[start + counter] = input[counter];
-    }
+    System.arraycopy(input, 0, out, start, size);
   }
 
   public static void copyBytesFrom(byte[] input, byte[] out, int start, int size) {
-    for (int counter = 0; counter < size; ++counter) {
-      out[counter] = input[start + counter];
-    }
+    System.arraycopy(input, start, out, 0, size);
   }
 
   public static int decodeInt(byte[] buffer, int position) {
-    byte[] numBuffer = new byte[MSG_INT_SIZE];
-    copyBytesFrom(buffer, numBuffer, position, MSG_INT_SIZE);
-    ByteBuffer bytesBuffer = ByteBuffer.allocate(MSG_INT_SIZE);
-    bytesBuffer = bytesBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    bytesBuffer.put(numBuffer);
-    bytesBuffer.flip();
-    return bytesBuffer.getInt();
+    return (int) INT_VIEW.get(buffer, position);
   }
 
   public static long decodeUnsignedInt(byte[] buffer, int position) {
@@ -47,12 +41,14 @@ public final class ByteHandler {
   }
 
   public static long getUnsigned(int signed) {
-    return signed >= 0 ? signed : 2 * (long) Integer.MAX_VALUE + 2 + signed;
+    return Integer.toUnsignedLong(signed);
   }
 
   public static int toUnsigned(long value) {
-    String lngString = Long.toString(value);
-    return Integer.parseUnsignedInt(lngString);
+    if (value < 0 || value > 0xffffffffL) {
+      throw new NumberFormatException(Long.toString(value));
+    }
+    return (int) value;
   }
 
 }
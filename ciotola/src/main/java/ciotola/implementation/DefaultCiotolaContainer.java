@@ -20,7 +20,7 @@ import ciotola.annotations.CiotolaAutowire;
 import ciotola.annotations.CiotolaBean;
 import ciotola.annotations.CiotolaService;
 import ciotola.pools.CiotolaConnectionPool;
-import ciotola.pools.CiotolaKeyPool;
+import ciotola.pools.CiotolaStripedKeyPool;
 import io.github.classgraph.ClassGraph;
 import io.github.classgraph.ClassInfo;
 import io.github.classgraph.ClassInfoList;
@@ -55,7 +55,7 @@ public class DefaultCiotolaContainer implements CiotolaContext {
   private List<String> loadedJars = new ArrayList<>();
   private List<String> scanAnnotations = new ArrayList<>();
   private Map<Integer, PooledServiceRunner> serviceRunners = new ConcurrentHashMap<>();
-  private CiotolaKeyPool keyPoolExecutor;
+  private CiotolaStripedKeyPool keyPoolExecutor;
   private CiotolaConnectionPool connectionPool;
   private long connectionTimeOut = 240;
   private CiotolaDirector ciotolaDirector;
@@ -85,7 +85,7 @@ public class DefaultCiotolaContainer implements CiotolaContext {
       keyPool = 2;
     }
     connectionPool = new CiotolaConnectionPool(connectionPoolCounter);
-    keyPoolExecutor = new CiotolaKeyPool(keyPool);
+    keyPoolExecutor = new CiotolaStripedKeyPool(keyPool);
     ciotolaDirector = new CiotolaDirector(physicalCores);
 
     // Setup the system
@@ -216,6 +216,11 @@ public class DefaultCiotolaContainer implements CiotolaContext {
     keyPoolExecutor.addJob(job, key);
   }
 
+  @Override
+  public void execute(Runnable job, long key, boolean priority) {
+    keyPoolExecutor.addJob(job, key, priority);
+  }
+
   @Override
   public void execute(CiotolaConnectionService connectionService) {
     connectionPool.addConnection(connectionService);
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package ciotola.pools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Keyed executor without a submission lock. Keys hash onto many more stripes than workers, each
+// stripe is a serial lane with its own lock-free queue and runs on one worker at a time. A stripe
+// with work sits in its home worker's run queue, idle workers steal whole stripes from busy ones
+// so a hot key only holds up the keys sharing its stripe. Stripes holding priority jobs are run
+// and stolen ahead of the others, order within a key is unchanged.
+public class CiotolaStripedKeyPool {
+
+  public static final int STRIPES_PER_WORKER = 16;
+
+  private final Logger logger = LoggerFactory.getLogger(CiotolaStripedKeyPool.class);
+  private final List<CiotolaStripedKeyPoolRunner> workerPool = new ArrayList<>();
+  private final KeyStripe[] stripes;
+  private final int stripeMask;
+  private final LongAdder submittedJobs = new LongAdder();
+  private final LongAdder completedJobs = new LongAdder();
+  private final LongAdder stolenStripes = new LongAdder();
+
+  public CiotolaStripedKeyPool(int threadCapacity) {
+    if (threadCapacity < 1) {
+      threadCapacity = 1;
+    }
+    logger.debug("Pool is initialising with - " + Integer.toString(threadCapacity) + " workers");
+    int stripeCount = Integer.highestOneBit(threadCapacity * STRIPES_PER_WORKER - 1) << 1;
+    stripes = new KeyStripe[stripeCount];
+    stripeMask = stripeCount - 1;
+    for (int counter = 0; counter < stripeCount; ++counter) {
+      stripes[counter] = new KeyStripe(counter);
+    }
+    for (int counter = 0; counter < threadCapacity; ++counter) {
+      workerPool.add(new CiotolaStripedKeyPoolRunner(this, counter));
+    }
+    for (CiotolaStripedKeyPoolRunner runner : workerPool) {
+      runner.start();
+    }
+  }
+
+  public void addJob(Runnable job, long key) {
+    addJob(job, key, false);
+  }
+
+  public void addJob(Runnable job, long key, boolean priority) {
+    KeyStripe stripe = stripes[stripeIndex(key)];
+    submittedJobs.increment();
+    stripe.offer(job, priority);
+    if (stripe.trySchedule()) {
+      CiotolaStripedKeyPoolRunner home = homeWorker(stripe);
+      home.schedule(stripe, stripe.hasPriority());
+      signalWork(home);
+    }
+  }
+
+  private int stripeIndex(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & stripeMask;
+  }
+
+  private CiotolaStripedKeyPoolRunner homeWorker(KeyStripe stripe) {
+    return workerPool.get(stripe.getStripeId() % workerPool.size());
+  }
+
+  // Wake the home worker if it is idle, otherwise an idle worker that can steal the stripe
+  private void signalWork(CiotolaStripedKeyPoolRunner home) {
+    if (home.isParked()) {
+      home.wake();
+      return;
+    }
+    for (CiotolaStripedKeyPoolRunner runner : workerPool) {
+      if (runner.isParked()) {
+        runner.wake();
+        return;
+      }
+    }
+  }
+
+  void reschedule(KeyStripe stripe, CiotolaStripedKeyPoolRunner current) {
+    current.schedule(stripe, stripe.hasPriority());
+    signalWork(current);
+  }
+
+  KeyStripe stealFor(int runnerId, boolean priority) {
+    int workers = workerPool.size();
+    for (int offset = 1; offset < workers; ++offset) {
+      KeyStripe stripe = workerPool.get((runnerId + offset) % workers).steal(priority);
+      if (stripe != null) {
+        stolenStripes.increment();
+        return stripe;
+      }
+    }
+    return null;
+  }
+
+  boolean hasScheduledStripes() {
+    for (CiotolaStripedKeyPoolRunner runner : workerPool) {
+      if (runner.hasScheduledStripes()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void jobCompleted() {
+    completedJobs.increment();
+  }
+
+  public int getWorkerCount() {
+    return workerPool.size();
+  }
+
+  public int getStripeCount() {
+    return stripes.length;
+  }
+
+  public long getSubmittedJobs() {
+    return submittedJobs.sum();
+  }
+
+  public long getCompletedJobs() {
+    return completedJobs.sum();
+  }
+
+  public long getStolenStripes() {
+    return stolenStripes.sum();
+  }
+
+  // Jobs accepted but not yet finished, across every stripe
+  public long getQueueDepth() {
+    return submittedJobs.sum() - completedJobs.sum();
+  }
+
+  public int getQueueDepth(long key) {
+    return stripes[stripeIndex(key)].getDepth();
+  }
+
+  public int getMaxStripeDepth() {
+    int max = 0;
+    for (KeyStripe stripe : stripes) {
+      max = Math.max(max, stripe.getDepth());
+    }
+    return max;
+  }
+
+  public void shutdown() {
+    logger.debug("Stopping workers");
+    for (CiotolaStripedKeyPoolRunner runner : workerPool) {
+      runner.stopWorker();
+    }
+  }
+}
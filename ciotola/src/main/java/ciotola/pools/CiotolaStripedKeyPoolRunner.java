@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package ciotola.pools;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class CiotolaStripedKeyPoolRunner extends Thread {
+
+  private static final int MAX_JOBS_PER_STRIPE = 64;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+  private final Logger logger = LoggerFactory.getLogger(CiotolaStripedKeyPoolRunner.class);
+  private final CiotolaStripedKeyPool pool;
+  private final ConcurrentLinkedDeque<KeyStripe> priorityQueue = new ConcurrentLinkedDeque<>();
+  private final ConcurrentLinkedDeque<KeyStripe> runQueue = new ConcurrentLinkedDeque<>();
+  private final int runnerId;
+  private volatile boolean isRunning = true;
+  private volatile boolean parked = false;
+
+  public CiotolaStripedKeyPoolRunner(CiotolaStripedKeyPool pool, int runnerId) {
+    this.pool = pool;
+    this.runnerId = runnerId;
+    setName("ciotola-key-" + Integer.toString(runnerId));
+    setDaemon(true);
+  }
+
+  void schedule(KeyStripe stripe, boolean priority) {
+    if (priority) {
+      priorityQueue.offer(stripe);
+    } else {
+      runQueue.offer(stripe);
+    }
+  }
+
+  // Thieves take from the cold end, the owner works from the head
+  KeyStripe steal(boolean priority) {
+    return priority ? priorityQueue.pollLast() : runQueue.pollLast();
+  }
+
+  boolean hasScheduledStripes() {
+    return !priorityQueue.isEmpty() || !runQueue.isEmpty();
+  }
+
+  // Priority stripes anywhere in the pool come before our own normal ones
+  private KeyStripe nextStripe() {
+    KeyStripe stripe = priorityQueue.poll();
+    if (stripe == null) {
+      stripe = pool.stealFor(runnerId, true);
+    }
+    if (stripe == null) {
+      stripe = runQueue.poll();
+    }
+    if (stripe == null) {
+      stripe = pool.stealFor(runnerId, false);
+    }
+    return stripe;
+  }
+
+  boolean isParked() {
+    return parked;
+  }
+
+  void wake() {
+    LockSupport.unpark(this);
+  }
+
+  @Override
+  public void run() {
+    logger.trace("Worker [" + Integer.toString(runnerId) + "] Executing jobs from pool");
+    while (isRunning) {
+      KeyStripe stripe = nextStripe();
+      if (stripe == null) {
+        parked = true;
+        // Re-check after publishing the flag so a schedule racing with us is not missed
+        if (!pool.hasScheduledStripes() && isRunning) {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        parked = false;
+        continue;
+      }
+      runStripe(stripe);
+    }
+  }
+
+  private void runStripe(KeyStripe stripe) {
+    for (int counter = 0; counter < MAX_JOBS_PER_STRIPE; ++counter) {
+      Runnable job = stripe.poll();
+      if (job == null) {
+        break;
+      }
+      try {
+        job.run();
+      } catch (Throwable ex) {
+        logger.error("Exception thrown by job: ", ex);
+      }
+      pool.jobCompleted();
+    }
+    stripe.release();
+    if (!stripe.isEmpty() && stripe.trySchedule()) {
+      // Back of our own queue, so a hot key yields to the others and can be stolen
+      pool.reschedule(stripe, this);
+    }
+  }
+
+  public void stopWorker() {
+    isRunning = false;
+    wake();
+  }
+}
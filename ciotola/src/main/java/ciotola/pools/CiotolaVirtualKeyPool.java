@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package ciotola.pools;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Runs every job on its own virtual thread. Jobs sharing a key are chained behind each other so
+// they keep their submission order without a worker thread per key.
+public class CiotolaVirtualKeyPool {
+
+  private static final Logger logger = LoggerFactory.getLogger(CiotolaVirtualKeyPool.class);
+  private final ExecutorService executor = newVirtualThreadExecutor();
+  private final Map<Long, CompletableFuture<Void>> keyTails = new ConcurrentHashMap<>();
+
+  // Virtual threads are only on newer JDKs, older runtimes get a cached platform pool instead
+  public static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      logger.warn("Virtual threads not available on this JVM - Using a cached thread pool");
+      return Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+  }
+
+  public static boolean virtualThreadsAvailable() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  public void addJob(Runnable job, long key) {
+    CompletableFuture<Void> next =
+        keyTails.compute(
+            key,
+            (jobKey, tail) ->
+                tail == null
+                    ? CompletableFuture.runAsync(() -> runJob(job), executor)
+                    : tail.thenRunAsync(() -> runJob(job), executor));
+    // Drop the chain once the last job for the key has finished
+    next.whenComplete((result, error) -> keyTails.remove(key, next));
+  }
+
+  public int activeKeys() {
+    return keyTails.size();
+  }
+
+  private void runJob(Runnable job) {
+    try {
+      job.run();
+    } catch (Throwable ex) {
+      logger.error("Exception thrown by job: ", ex);
+    }
+  }
+
+  public void shutdown() {
+    logger.debug("Stopping virtual thread pool");
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package ciotola.pools;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// A serial lane of jobs. Producers append through a lock-free MPSC linked queue, only the worker
+// currently holding the scheduled flag ever consumes, which is what keeps keys in order.
+class KeyStripe {
+
+  private final int stripeId;
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  // Priority jobs queued and not yet taken, the stripe uses the priority lane while any remain
+  private final AtomicInteger priorityJobs = new AtomicInteger();
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicReference<Node> tail;
+  private Node head;
+
+  KeyStripe(int stripeId) {
+    this.stripeId = stripeId;
+    head = new Node(null, false);
+    tail = new AtomicReference<>(head);
+  }
+
+  int getStripeId() {
+    return stripeId;
+  }
+
+  int getDepth() {
+    return depth.get();
+  }
+
+  void offer(Runnable job, boolean priority) {
+    Node node = new Node(job, priority);
+    depth.incrementAndGet();
+    if (priority) {
+      priorityJobs.incrementAndGet();
+    }
+    Node previous = tail.getAndSet(node);
+    previous.next = node;
+  }
+
+  // Consumer side only
+  Runnable poll() {
+    Node next = head.next;
+    if (next == null) {
+      return null;
+    }
+    Runnable job = next.job;
+    next.job = null;
+    head = next;
+    depth.decrementAndGet();
+    if (next.priority) {
+      priorityJobs.decrementAndGet();
+    }
+    return job;
+  }
+
+  // False once a producer has swapped the tail, even before it links its node and poll sees it
+  boolean isEmpty() {
+    return head == tail.get();
+  }
+
+  boolean trySchedule() {
+    return scheduled.compareAndSet(false, true);
+  }
+
+  void release() {
+    scheduled.set(false);
+  }
+
+  boolean hasPriority() {
+    return priorityJobs.get() > 0;
+  }
+
+  private static final class Node {
+    private final boolean priority;
+    private volatile Node next;
+    private Runnable job;
+
+    private Node(Runnable job, boolean priority) {
+      this.job = job;
+      this.priority = priority;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package ciotola;
+
+import ciotola.pools.CiotolaKeyPool;
+import ciotola.pools.CiotolaStripedKeyPool;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+// Not a unit test, compares the synchronized key pool with the striped one:
+//   KeyPoolBenchmark [workers] [producers] [jobsPerProducer] [jobWorkIterations]
+// Runs a uniform key spread and a skewed one where half the jobs land on a single hot key.
+public class KeyPoolBenchmark {
+
+  private static volatile long sink;
+
+  private static void work(int iterations) {
+    long value = 0;
+    for (int counter = 0; counter < iterations; ++counter) {
+      value += counter * 31L ^ value;
+    }
+    sink = value;
+  }
+
+  private static long run(
+      BiConsumer<Runnable, Long> pool, int producers, int jobs, int workIterations, boolean hot)
+      throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(producers * jobs);
+    Thread[] threads = new Thread[producers];
+    long start = System.nanoTime();
+    for (int producer = 0; producer < producers; ++producer) {
+      threads[producer] =
+          new Thread(
+              () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int job = 0; job < jobs; ++job) {
+                  long key = hot && random.nextBoolean() ? 0 : random.nextInt(1024);
+                  pool.accept(
+                      () -> {
+                        work(workIterations);
+                        done.countDown();
+                      },
+                      key);
+                }
+              });
+      threads[producer].start();
+    }
+    done.await();
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String name, String spread, long jobs, long nanos) {
+    System.out.println(
+        "pool="
+            + name
+            + " keys="
+            + spread
+            + " jobs="
+            + jobs
+            + " ms="
+            + nanos / 1000000
+            + " ops_per_sec="
+            + (long) (jobs / (nanos / 1e9)));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int workers = Integer.parseInt(args.length > 0 ? args[0] : "6");
+    int producers = Integer.parseInt(args.length > 1 ? args[1] : "8");
+    int jobs = Integer.parseInt(args.length > 2 ? args[2] : "200000");
+    int workIterations = Integer.parseInt(args.length > 3 ? args[3] : "200");
+
+    CiotolaKeyPool keyPool = new CiotolaKeyPool(workers);
+    CiotolaStripedKeyPool stripedPool = new CiotolaStripedKeyPool(workers);
+    BiConsumer<Runnable, Long> keyed = keyPool::addJob;
+    BiConsumer<Runnable, Long> striped = stripedPool::addJob;
+
+    // Warm up both before measuring
+    run(keyed, producers, jobs / 4, workIterations, false);
+    run(striped, producers, jobs / 4, workIterations, false);
+
+    long total = (long) producers * jobs;
+    for (boolean hot : new boolean[] {false, true}) {
+      String spread = hot ? "hot" : "uniform";
+      report("CiotolaKeyPool", spread, total, run(keyed, producers, jobs, workIterations, hot));
+      report(
+          "CiotolaStripedKeyPool", spread, total, run(striped, producers, jobs, workIterations, hot));
+    }
+    System.out.println(
+        "striped stolen_stripes="
+            + stripedPool.getStolenStripes()
+            + " queue_depth="
+            + stripedPool.getQueueDepth());
+    System.exit(0);
+  }
+}
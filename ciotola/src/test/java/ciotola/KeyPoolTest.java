@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package ciotola;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ciotola.pools.CiotolaStripedKeyPool;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class KeyPoolTest {
+
+  @Test
+  public void testStripedKeyPoolKeepsKeyOrder() throws InterruptedException {
+    CiotolaStripedKeyPool pool = new CiotolaStripedKeyPool(4);
+    int keys = 64;
+    int jobsPerKey = 500;
+    List<List<Integer>> seen = new ArrayList<>();
+    for (int key = 0; key < keys; ++key) {
+      seen.add(new ArrayList<>());
+    }
+    CountDownLatch done = new CountDownLatch(keys * jobsPerKey);
+    for (int job = 0; job < jobsPerKey; ++job) {
+      for (int key = 0; key < keys; ++key) {
+        List<Integer> order = seen.get(key);
+        int sequence = job;
+        pool.addJob(
+            () -> {
+              order.add(sequence);
+              done.countDown();
+            },
+            key);
+      }
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    for (List<Integer> order : seen) {
+      assertEquals(jobsPerKey, order.size());
+      for (int job = 0; job < jobsPerKey; ++job) {
+        assertEquals(job, order.get(job).intValue());
+      }
+    }
+    // Completion is counted just after the job itself returns
+    long deadline = System.currentTimeMillis() + 5000;
+    while (pool.getQueueDepth() != 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(0, pool.getQueueDepth());
+    assertEquals((long) keys * jobsPerKey, pool.getCompletedJobs());
+    pool.shutdown();
+  }
+
+  // Blocks the only worker until the returned latch is released
+  private static CountDownLatch blockWorker(CiotolaStripedKeyPool pool, long key)
+      throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    pool.addJob(
+        () -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        },
+        key);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    // Keeps the stripe of the blocker non empty so idleKey never hands it out
+    pool.addJob(() -> {}, key);
+    return release;
+  }
+
+  // A key whose stripe holds nothing queued, so it cannot share a stripe with queued keys
+  private static long idleKey(CiotolaStripedKeyPool pool, long from) {
+    long key = from;
+    while (pool.getQueueDepth(key) != 0) {
+      ++key;
+    }
+    return key;
+  }
+
+  @Test
+  public void testPriorityStripesRunFirstAndOnlyWhileTheyHoldPriorityJobs()
+      throws InterruptedException {
+    CiotolaStripedKeyPool pool = new CiotolaStripedKeyPool(1);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch release = blockWorker(pool, 0);
+    long bulk = idleKey(pool, 1000);
+    for (int job = 0; job < 10; ++job) {
+      pool.addJob(() -> order.add("bulk"), bulk);
+    }
+    long metadata = idleKey(pool, 2000);
+    CountDownLatch done = new CountDownLatch(2);
+    // The normal job schedules the stripe, the priority one joins it while it is queued
+    pool.addJob(() -> order.add("first"), metadata);
+    pool.addJob(
+        () -> {
+          order.add("priority");
+          done.countDown();
+        },
+        metadata,
+        true);
+    long urgent = idleKey(pool, 3000);
+    pool.addJob(
+        () -> {
+          order.add("urgent");
+          done.countDown();
+        },
+        urgent,
+        true);
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals("urgent", order.get(0));
+
+    // Once its priority job ran the stripe queues behind normal work again
+    order.clear();
+    release = blockWorker(pool, 0);
+    for (int job = 0; job < 10; ++job) {
+      pool.addJob(() -> order.add("bulk"), bulk);
+    }
+    CountDownLatch later = new CountDownLatch(1);
+    pool.addJob(
+        () -> {
+          order.add("later");
+          later.countDown();
+        },
+        metadata);
+    release.countDown();
+    assertTrue(later.await(5, TimeUnit.SECONDS));
+    assertEquals("bulk", order.get(0));
+    pool.shutdown();
+  }
+
+  @Test
+  public void testIdleWorkersStealPriorityStripes() throws InterruptedException {
+    CiotolaStripedKeyPool pool = new CiotolaStripedKeyPool(2);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    pool.addJob(
+        () -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        },
+        0);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    // Half of these stripes live on the blocked worker, the other one has to take them
+    for (long key = 1; key <= 32; ++key) {
+      CountDownLatch done = new CountDownLatch(1);
+      pool.addJob(done::countDown, key, true);
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+    assertTrue(pool.getStolenStripes() > 0);
+    release.countDown();
+    pool.shutdown();
+  }
+
+  @Test
+  public void testWorkerSurvivesAnErrorThrownByAJob() throws InterruptedException {
+    CiotolaStripedKeyPool pool = new CiotolaStripedKeyPool(1);
+    pool.addJob(
+        () -> {
+          throw new StackOverflowError("job failed");
+        },
+        7);
+    // Same key and the only worker, so it runs only if the stripe was released after the error
+    CountDownLatch done = new CountDownLatch(1);
+    pool.addJob(done::countDown, 7);
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    pool.shutdown();
+  }
+}
@@ -14,6 +14,7 @@ package fettuccine.drivers.mount;
 import gelato.GelatoConnection;
 import gelato.client.GelatoMessage;
 import gelato.server.manager.RequestConnection;
+import java.io.ByteArrayOutputStream;
 
 public class GelatoMessageProxy {
 
@@ -22,6 +23,7 @@ public class GelatoMessageProxy {
   private int queueSize = 0;
   private int originalTransactionId = 0;
   private long connectionDescriptor = 0;
+  private ByteArrayOutputStream pendingData = new ByteArrayOutputStream();
 
   private RequestConnection requestConnection = new RequestConnection();
   private GelatoConnection originatingSource;
@@ -78,6 +80,10 @@ public class GelatoMessageProxy {
     return MountPoint.generateId(this);
   }
 
+  public ByteArrayOutputStream getPendingData() {
+    return pendingData;
+  }
+
   public RequestConnection getRequestConnection() {
     return requestConnection;
   }
@@ -18,6 +18,7 @@ import gelato.client.file.GelatoResource;
 import gelato.server.GelatoServerManager;
 import gelato.server.manager.RequestConnection;
 import gelato.server.manager.controllers.impl.GelatoDirectoryControllerImpl;
+import gelato.server.manager.implementation.DecodedRequest;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import protocol.Decoder;
@@ -66,7 +67,8 @@ public class MountDirectory extends GelatoDirectoryControllerImpl {
       GelatoConnection connection,
       GelatoFileDescriptor descriptor,
       GelatoSession session,
-      Message request) {
+      DecodedRequest decodedRequest) {
+    Message request = decodedRequest.getMessage();
 
     if (request.messageType == P9Protocol.TSTAT) {
       StatRequest statRequest = Decoder.decodeStatRequest(request);
@@ -102,7 +104,7 @@ public class MountDirectory extends GelatoDirectoryControllerImpl {
 
     RequestConnection requestConnection =
         createConnection(connection, descriptor, session, request.tag);
-    mountPoint.sendProxyMessage(rewrite, requestConnection);
+    mountPoint.sendProxyDirectoryMessage(rewrite, requestConnection);
 
     return true;
   }
@@ -21,6 +21,7 @@ import gelato.client.file.GelatoFileManager;
 import gelato.client.transport.MessageProxy;
 import gelato.server.manager.RequestConnection;
 import gelato.server.manager.controllers.GelatoDirectoryController;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -30,6 +31,7 @@ import protocol.Decoder;
 import protocol.P9Protocol;
 import protocol.messages.Message;
 import protocol.messages.request.ReadRequest;
+import protocol.messages.response.ReadResponse;
 
 public class MountPoint implements MessageProxy {
 
@@ -122,9 +124,13 @@ public class MountPoint implements MessageProxy {
   public void processMessage(
       GelatoMessage gelatoMessage, Message message, GelatoMessaging connection) {
     GelatoMessageProxy backToSource = proxyMap.get(gelatoMessage.getProxyId());
-    message.tag = gelatoMessage.getProxyId();
-    backToSource.getRequestConnection().reply(message);
     int counter = backToSource.getQueueSize();
+    if (message.messageType == P9Protocol.RREAD) {
+      replyReadChunks(backToSource, message, counter <= 0);
+    } else {
+      message.tag = gelatoMessage.getProxyId();
+      backToSource.getRequestConnection().reply(message);
+    }
     if (counter <= 0) {
       proxyMap.remove(gelatoMessage.getProxyId());
       connection.close(gelatoMessage);
@@ -134,6 +140,35 @@ public class MountPoint implements MessageProxy {
     }
   }
 
+  // The remote end chunks by its own msize, re-chunk to the IO unit the source session negotiated
+  private void replyReadChunks(GelatoMessageProxy backToSource, Message message, boolean last) {
+    RequestConnection source = backToSource.getRequestConnection();
+    int ioUnit = source.getSession().getIoUnit();
+    ReadResponse remote = Decoder.decodeReadResponse(message);
+    ByteArrayOutputStream pending = backToSource.getPendingData();
+    pending.write(remote.getData(), 0, remote.getDataLength());
+    if (!last && pending.size() < ioUnit) {
+      return;
+    }
+
+    byte[] data = pending.toByteArray();
+    pending.reset();
+    int ptr = 0;
+    while (data.length - ptr >= ioUnit) {
+      ReadResponse readResponse = new ReadResponse();
+      readResponse.setData(data, ptr, ioUnit);
+      source.reply(readResponse);
+      ptr += ioUnit;
+    }
+    if (!last) {
+      pending.write(data, ptr, data.length - ptr);
+    } else if (ptr < data.length || ptr == 0) {
+      ReadResponse readResponse = new ReadResponse();
+      readResponse.setData(data, ptr, data.length - ptr);
+      source.reply(readResponse);
+    }
+  }
+
   public void sendProxyMessage(Message message, RequestConnection connection) {
     GelatoMessage newFuture = new GelatoMessage(message);
     newFuture.setProxy(this);
@@ -141,18 +176,30 @@ public class MountPoint implements MessageProxy {
     proxiedMesg.setForwardedMessage(newFuture);
     proxiedMesg.setOriginalTransactionId(message.getTag());
     proxiedMesg.setRequestConnection(connection);
-    proxiedMesg.setQueueSize(1);
+    proxiedMesg.setQueueSize(0);
     newFuture.setProxyId(message.tag);
-    // Estimate blocks
+    // Estimate blocks, the remote end streams one RREAD per negotiated IO unit
     if (message.messageType == P9Protocol.TREAD) {
       ReadRequest readRequest = Decoder.decodeReadRequest(message);
-      double numBlocks = readRequest.getBytesToRead() / this.connection.getIoSize();
-      proxiedMesg.setQueueSize((int) Math.ceil(numBlocks));
+      long numBlocks = this.connection.expectedReadPackets(readRequest.getBytesToRead());
+      proxiedMesg.setQueueSize((int) numBlocks - 1);
     }
     proxyMap.put(message.tag, proxiedMesg);
     this.connection.submitMessage(newFuture);
   }
 
+  // Directory reads come back as a single page however much was asked for
+  public void sendProxyDirectoryMessage(Message message, RequestConnection connection) {
+    if (message.messageType == P9Protocol.TREAD) {
+      ReadRequest readRequest = Decoder.decodeReadRequest(message);
+      if (readRequest.getBytesToRead() > this.connection.getIoSize()) {
+        readRequest.setBytesToRead(this.connection.getIoSize());
+        message = readRequest.toMessage();
+      }
+    }
+    sendProxyMessage(message, connection);
+  }
+
   public GelatoMessaging getConnection() {
     return connection;
   }
@@ -14,9 +14,11 @@ package fettuccine.drivers.mount;
 import gelato.GelatoConnection;
 import gelato.GelatoFileDescriptor;
 import gelato.GelatoSession;
+import gelato.client.file.GelatoDirectory;
 import gelato.client.file.GelatoResource;
 import gelato.server.manager.RequestConnection;
 import gelato.server.manager.controllers.impl.GelatoResourceControllerImpl;
+import gelato.server.manager.implementation.DecodedRequest;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import protocol.Decoder;
@@ -51,11 +53,16 @@ public class RemoteResource extends GelatoResourceControllerImpl {
       GelatoConnection connection,
       GelatoFileDescriptor descriptor,
       GelatoSession session,
-      Message request) {
+      DecodedRequest decodedRequest) {
+    Message request = decodedRequest.getMessage();
 
     RequestConnection requestConnection =
         createConnection(connection, descriptor, session, request.tag);
-    mountPoint.sendProxyMessage(request, requestConnection);
+    if (resource instanceof GelatoDirectory) {
+      mountPoint.sendProxyDirectoryMessage(request, requestConnection);
+    } else {
+      mountPoint.sendProxyMessage(request, requestConnection);
+    }
 
     if (request.messageType == P9Protocol.TWALK) {
       WalkRequest walk = Decoder.decodeWalkRequest(request);
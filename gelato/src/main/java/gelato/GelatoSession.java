@@ -17,6 +17,8 @@ public interface GelatoSession {
 
   Object getSessionVar(String varName);
 
+  void removeSessionVar(String varName);
+
   int descriptorCount();
 
   GelatoFileDescriptor getAuthorisationDescriptor();
@@ -42,4 +44,10 @@ public interface GelatoSession {
   GelatoTags getTags();
 
   void setTags(GelatoTags tags);
+
+  int getMaxMsgSize();
+
+  void setMaxMsgSize(int maxMsgSize);
+
+  int getIoUnit();
 }
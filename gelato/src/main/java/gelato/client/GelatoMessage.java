@@ -12,6 +12,7 @@
 package gelato.client;
 
 import gelato.client.transport.MessageProxy;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -64,10 +65,13 @@ public class GelatoMessage<M, R> implements TransactionMessage, Iterator, Iterab
     messageIsProxied = true;
   }
 
-  public R getResponse() {
+  // An error reply completes the transaction without a response, callers then see null
+  public synchronized R getResponse() {
     if (futureMessage == null) {
       try {
-        futureMessage = future.take();
+        while ((futureMessage = future.poll()) == null && !error) {
+          wait();
+        }
       } catch (InterruptedException e) {
         logger.error("Problem fetching future");
       }
@@ -92,6 +96,7 @@ public class GelatoMessage<M, R> implements TransactionMessage, Iterator, Iterab
 
   public synchronized void setResponseMessage(R message) {
     responseMessage.add(message);
+    notifyAll();
   }
 
   public synchronized boolean isError() {
@@ -104,6 +109,7 @@ public class GelatoMessage<M, R> implements TransactionMessage, Iterator, Iterab
 
   public synchronized void setError() {
     error = true;
+    notifyAll();
   }
 
   public synchronized void setCompleted() {
@@ -153,17 +159,43 @@ public class GelatoMessage<M, R> implements TransactionMessage, Iterator, Iterab
     return transactionMessage.toMessage();
   }
 
+  @Override
+  public int encodedSize() {
+    return transactionMessage.encodedSize();
+  }
+
+  @Override
+  public void encodeTo(ByteBuffer buffer) {
+    transactionMessage.encodeTo(buffer);
+  }
+
+  @Override
+  public boolean encodesDirectly() {
+    return transactionMessage.encodesDirectly();
+  }
+
+  // Blocks until the next streamed RREAD arrives or every expected packet has been seen
   @Override
   public synchronized boolean hasNext() {
-    if (messageType() != P9Protocol.RREAD) {
+    if (messageType() != P9Protocol.TREAD) {
       throw new RuntimeException("Invalid operation on Non READ message type");
     }
+    while (location >= responseMessage.size()
+        && responseMessage.size() < expectedPackets
+        && !error) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        logger.error("Interrupted waiting for read packets");
+        return false;
+      }
+    }
     return (location < responseMessage.size());
   }
 
   @Override
   public synchronized R next() {
-    if (messageType() != P9Protocol.RREAD) {
+    if (messageType() != P9Protocol.TREAD) {
       throw new RuntimeException("Invalid operation on Non READ message type");
     }
     int ptr = location;
@@ -173,7 +205,7 @@ public class GelatoMessage<M, R> implements TransactionMessage, Iterator, Iterab
 
   @Override
   public Iterator iterator() {
-    if (messageType() != P9Protocol.RREAD) {
+    if (messageType() != P9Protocol.TREAD) {
       throw new RuntimeException("Invalid operation on Non READ message type");
     }
     getResponse();
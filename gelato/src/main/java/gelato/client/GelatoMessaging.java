@@ -33,11 +33,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import protocol.Decoder;
 import protocol.P9Protocol;
+import protocol.PayloadCodec;
+import protocol.messages.CapabilityRequest;
 import protocol.messages.Message;
 import protocol.messages.VersionRequest;
 import protocol.messages.request.AttachRequest;
 import protocol.messages.request.AuthRequest;
 import protocol.messages.request.CloseRequest;
+import protocol.messages.request.CompoundRequest;
 import protocol.messages.request.CreateRequest;
 import protocol.messages.request.FlushRequest;
 import protocol.messages.request.OpenRequest;
@@ -50,6 +53,7 @@ import protocol.messages.request.WriteStatRequest;
 import protocol.messages.response.AttachResponse;
 import protocol.messages.response.AuthResponse;
 import protocol.messages.response.CloseResponse;
+import protocol.messages.response.CompoundResponse;
 import protocol.messages.response.CreateResponse;
 import protocol.messages.response.ErrorMessage;
 import protocol.messages.response.FlushResponse;
@@ -68,7 +72,10 @@ public class GelatoMessaging implements SinkAgent<Message> {
   private ClientSideTcpInputReader inputReader;
   private ClientSideOutTcpWrite outputWriter;
 
-  private int ioSize = P9Protocol.DEFAULT_MSG_SIZE;
+  private int requestedMsgSize = P9Protocol.MAX_NEGOTIATED_MSG_SIZE;
+  private volatile int maxMsgSize = P9Protocol.DEFAULT_MSG_SIZE;
+  private int requestedCodecs = P9Protocol.CODEC_NONE;
+  private volatile PayloadCodec payloadCodec = null;
   private Socket clientSocket;
   private Map<Integer, GelatoMessage> replyBucket = new ConcurrentHashMap<>();
 
@@ -96,8 +103,8 @@ public class GelatoMessaging implements SinkAgent<Message> {
   private boolean isErrorAndHandle(MessageCompletion newMessage) {
     if (newMessage.getMessage().messageType == P9Protocol.RERROR) {
       String error = Decoder.decodeError(newMessage.getMessage()).getErrorMessage();
-      newMessage.getFuture().setError();
       newMessage.getFuture().setErrorMessage(error);
+      newMessage.getFuture().setError();
       newMessage.getFuture().setCompleted();
       logger.error("Error in response " + error);
       return true;
@@ -119,6 +126,12 @@ public class GelatoMessaging implements SinkAgent<Message> {
     }
   }
 
+  // Futures sit untyped in the reply bucket, the transaction that created them fixes the reply
+  @SuppressWarnings("unchecked")
+  private static <R> GelatoMessage<?, R> expecting(GelatoMessage<?, ?> future, Class<R> reply) {
+    return (GelatoMessage<?, R>) future;
+  }
+
   private void processFuture(GelatoMessage future, Message message, boolean init) {
     switch (future.messageType()) {
       case P9Protocol.TATTACH:
@@ -157,6 +170,14 @@ public class GelatoMessaging implements SinkAgent<Message> {
       case P9Protocol.TWSTAT:
         future.setFuture(Decoder.decodeStatWriteResponse(message));
         break;
+      case P9Protocol.TCOMPOUND:
+        expecting(future, CompoundResponse.class)
+            .setFuture(Decoder.decodeCompoundResponse(message));
+        break;
+      case P9Protocol.TCAPABILITY:
+        expecting(future, CapabilityRequest.class)
+            .setFuture(Decoder.decodeCapabilityRequest(message));
+        break;
       case P9Protocol.TVERSION:
         future.setFuture(Decoder.decodeVersionRequest(message));
     }
@@ -195,7 +216,8 @@ public class GelatoMessaging implements SinkAgent<Message> {
       return;
     }
 
-    if (future.isComplete()) {
+    // Completed without a response means the caller did not wait for one
+    if (future.isComplete() && future.size() == 0) {
       replyBucket.remove(message.tag);
       determineError(message);
     } else {
@@ -247,8 +269,7 @@ public class GelatoMessaging implements SinkAgent<Message> {
     if (message.messageType() == P9Protocol.TREAD) {
       // Calulate number of Packets
       ReadRequest readRequest = Decoder.decodeReadRequest(message.toMessage());
-      long total = (long) Math.ceil(readRequest.getBytesToRead() / P9Protocol.MAX_MSG_CONTENT_SIZE);
-      message.setExpectedPackets(total);
+      message.setExpectedPackets(expectedReadPackets(readRequest.getBytesToRead()));
     }
     outPort.write(message);
   }
@@ -261,8 +282,48 @@ public class GelatoMessaging implements SinkAgent<Message> {
     outPort.write(message);
   }
 
+  // The server streams one RREAD per IO unit, an empty read still gets a single reply
+  public long expectedReadPackets(long bytesToRead) {
+    int ioUnit = getIoSize();
+    return Math.max(1, (bytesToRead + ioUnit - 1) / ioUnit);
+  }
+
   public int getIoSize() {
-    return ioSize;
+    return VersionRequest.ioUnit(maxMsgSize);
+  }
+
+  public int getMaxMsgSize() {
+    return maxMsgSize;
+  }
+
+  public void setMaxMsgSize(int maxMsgSize) {
+    this.maxMsgSize = maxMsgSize;
+  }
+
+  public int getRequestedMsgSize() {
+    return requestedMsgSize;
+  }
+
+  // Must be set before the session is started to take effect
+  public void setRequestedMsgSize(int requestedMsgSize) {
+    this.requestedMsgSize = requestedMsgSize;
+  }
+
+  public int getRequestedCodecs() {
+    return requestedCodecs;
+  }
+
+  // Codecs offered to the server after TVERSION, must be set before the session is started
+  public void setRequestedCodecs(int requestedCodecs) {
+    this.requestedCodecs = requestedCodecs;
+  }
+
+  public PayloadCodec getPayloadCodec() {
+    return payloadCodec;
+  }
+
+  public void setPayloadCodec(PayloadCodec payloadCodec) {
+    this.payloadCodec = payloadCodec;
   }
 
   public GelatoMessage<AttachRequest, AttachResponse> createAttachTransaction() {
@@ -313,8 +374,20 @@ public class GelatoMessaging implements SinkAgent<Message> {
     return new GelatoMessage<>(new WriteStatRequest());
   }
 
+  public GelatoMessage<CompoundRequest, CompoundResponse> createCompoundTransaction() {
+    return new GelatoMessage<>(new CompoundRequest());
+  }
+
+  public GelatoMessage<CapabilityRequest, CapabilityRequest> createCapabilityRequest() {
+    CapabilityRequest request = new CapabilityRequest();
+    request.setCodecs(requestedCodecs);
+    return new GelatoMessage<>(request);
+  }
+
   public GelatoMessage<VersionRequest, VersionRequest> createVersionRequest() {
-    return new GelatoMessage<>(new VersionRequest());
+    VersionRequest request = new VersionRequest();
+    request.setMaxMsgSize(requestedMsgSize);
+    return new GelatoMessage<>(request);
   }
 
   public synchronized boolean isShutdown() {
@@ -23,6 +23,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import protocol.P9Protocol;
+import protocol.PayloadCodec;
+import protocol.messages.CapabilityRequest;
 import protocol.messages.MessageRaw;
 import protocol.messages.VersionRequest;
 import protocol.messages.request.AttachRequest;
@@ -41,6 +43,7 @@ public class GelatoClientSession implements GelatoSession {
   private GelatoDescriptorManager manager = null;
   private GelatoTags tags;
   private Map<String, Object> sessionVars = new ConcurrentHashMap<>();
+  private volatile int maxMsgSize = P9Protocol.DEFAULT_MSG_SIZE;
   private boolean useAuth = false;
 
   public GelatoClientSession(GelatoMessaging messaging) {
@@ -57,6 +60,11 @@ public class GelatoClientSession implements GelatoSession {
     return sessionVars.get(varName);
   }
 
+  @Override
+  public synchronized void removeSessionVar(String varName) {
+    sessionVars.remove(varName);
+  }
+
   @Override
   public int descriptorCount() {
     return manager.size();
@@ -116,15 +124,32 @@ public class GelatoClientSession implements GelatoSession {
     GelatoMessage<VersionRequest, VersionRequest> versionRequest =
         connection.createVersionRequest();
     connection.submitMessage(versionRequest);
-    VersionRequest rspVersion = versionRequest.getMessage();
+    VersionRequest rspVersion = versionRequest.getResponse();
+    connection.close(versionRequest);
+    if (rspVersion == null) {
+      logger.error("Unable to negotiate version " + versionRequest.getErrorMessage());
+      return false;
+    }
+    int msgSize =
+        VersionRequest.negotiateMsgSize(
+            rspVersion.getMaxMsgSize(), connection.getRequestedMsgSize());
+    if (!VersionRequest.validMsgSize(msgSize)) {
+      logger.error("Server offered an unusable message size " + Integer.toString(msgSize));
+      return false;
+    }
+    setMaxMsgSize(msgSize);
+    connection.setMaxMsgSize(msgSize);
     logger.info(
         "Started Session -  Server is: "
             + rspVersion.getVersion()
             + " Max Message Size: "
-            + Integer.toString(rspVersion.getMaxMsgSize())
+            + Integer.toString(msgSize)
             + " Max Content Size: "
-            + Integer.toString(rspVersion.getMaxMsgSize() - MessageRaw.minSize));
-    connection.close(versionRequest);
+            + Integer.toString(msgSize - MessageRaw.minSize));
+
+    if (connection.getRequestedCodecs() != P9Protocol.CODEC_NONE) {
+      negotiateCodec();
+    }
 
     if (useAuth) {
       if (authHandler() == false) {
@@ -155,6 +180,25 @@ public class GelatoClientSession implements GelatoSession {
     return true;
   }
 
+  // A server without TCAPABILITY answers with an error and the session stays uncompressed
+  private void negotiateCodec() {
+    GelatoMessage<CapabilityRequest, CapabilityRequest> capabilityRequest =
+        connection.createCapabilityRequest();
+    connection.submitMessage(capabilityRequest);
+    CapabilityRequest rspCapability = capabilityRequest.getResponse();
+    connection.close(capabilityRequest);
+    if (rspCapability == null) {
+      logger.info("Server does not support payload codecs");
+      return;
+    }
+    int codec =
+        PayloadCodec.negotiate(rspCapability.getCodecs(), connection.getRequestedCodecs());
+    if (codec != P9Protocol.CODEC_NONE) {
+      connection.setPayloadCodec(new PayloadCodec(codec));
+    }
+    logger.info("Payload codec: " + Integer.toString(codec));
+  }
+
   // This is done differently
   public boolean authHandler() {
     return false;
@@ -181,4 +225,19 @@ public class GelatoClientSession implements GelatoSession {
   public GelatoFileDescriptor getFileServiceRoot() {
     return fileServiceRoot;
   }
+
+  @Override
+  public int getMaxMsgSize() {
+    return maxMsgSize;
+  }
+
+  @Override
+  public void setMaxMsgSize(int maxMsgSize) {
+    this.maxMsgSize = maxMsgSize;
+  }
+
+  @Override
+  public int getIoUnit() {
+    return VersionRequest.ioUnit(maxMsgSize);
+  }
 }
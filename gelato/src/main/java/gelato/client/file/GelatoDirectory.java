@@ -22,4 +22,6 @@ public interface GelatoDirectory extends GelatoFile {
   GelatoDirectory getDirectory(String name);
 
   GelatoFile getFile(String fileName);
+
+  byte[] readFile(String fileName);
 }
@@ -21,6 +21,7 @@ import gelato.client.file.impl.GelatoDirectoryImpl;
 import java.io.IOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import protocol.P9Protocol;
 
 public class GelatoFileManager {
 
@@ -40,9 +41,17 @@ public class GelatoFileManager {
 
   public GelatoFileManager(String hostName, int portNumber, String userName, String nameSpace)
       throws IOException {
+    this(hostName, portNumber, userName, nameSpace, P9Protocol.CODEC_NONE);
+  }
+
+  // payloadCodecs are offered to the server, the session falls back to plain frames if refused
+  public GelatoFileManager(
+      String hostName, int portNumber, String userName, String nameSpace, int payloadCodecs)
+      throws IOException {
 
     gelato = new Gelato();
     messaging = new GelatoMessaging(hostName, portNumber);
+    messaging.setRequestedCodecs(payloadCodecs);
     tagManager = gelato.getTagManager();
     authDescriptor = gelato.getDescriptorManager().generateDescriptor();
     tagManager = gelato.getTagManager();
@@ -20,8 +20,6 @@ import java.io.InputStream;
 import java.util.Iterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import protocol.ByteEncoder;
-import protocol.P9Protocol;
 import protocol.messages.request.CloseRequest;
 import protocol.messages.request.ReadRequest;
 import protocol.messages.response.CloseResponse;
@@ -33,8 +31,9 @@ public class GelatoInputStream extends InputStream {
   private GelatoMessaging messaging;
   private GelatoFileDescriptor fileDescriptor;
   private int currentLocation = 0;
+  private int bufferLength = 0;
   private long fileLocation = 0;
-  private byte[] buffer = new byte[Gelato.DEFAULT_NET_IO_MEM_BUFFER];
+  private byte[] buffer;
   private long fileSize = 0;
   private long ioNetworkSize = 0;
 
@@ -45,6 +44,8 @@ public class GelatoInputStream extends InputStream {
     this.messaging = messaging;
     this.fileDescriptor = descriptor;
     this.ioNetworkSize = ioSize;
+    // Large negotiated message sizes get a buffer big enough to fill in one round trip
+    buffer = new byte[(int) Math.min(fileSize, Math.max(Gelato.DEFAULT_NET_IO_MEM_BUFFER, ioSize))];
     try {
       initialise();
     } catch (IOException e) {
@@ -55,74 +56,41 @@ public class GelatoInputStream extends InputStream {
   private void initialise() throws IOException {
     currentLocation = 0;
     fileLocation = 0;
-    strategySelector();
+    fillBuffer();
   }
 
-  private void strategySelector() throws IOException {
+  // A single TREAD per buffer, the server streams it back one RREAD per IO unit
+  private void fillBuffer() throws IOException {
     currentLocation = 0;
-    long effectiveSize = fileSize - fileLocation;
-    if (effectiveSize <= Gelato.DEFAULT_NET_IO_MEM_BUFFER) {
-      fitFileToBufferStrategy();
-    } else {
-      fetchBytesToBufferStrategy();
+    bufferLength = 0;
+    int bytesToRead = (int) Math.min(fileSize - fileLocation, buffer.length);
+    if (bytesToRead == 0) {
+      return;
     }
-  }
-
-  private void fetchBytesToBufferStrategy() throws IOException {
     GelatoMessage<ReadRequest, ReadResponse> readRequest = messaging.createReadTransaction();
     readRequest.getMessage().setFileDescriptor(fileDescriptor.getRawFileDescriptor());
-    readRequest.getMessage().setBytesToRead(P9Protocol.MAX_MSG_CONTENT_SIZE);
+    readRequest.getMessage().setBytesToRead(bytesToRead);
     readRequest.getMessage().setFileOffset(fileLocation);
     messaging.submitMessage(readRequest);
 
     if (readRequest.getResponse() == null) {
-      throw new IOException("Doble boom");
+      throw new IOException("Double boom");
     }
 
     Iterator<ReadResponse> iterator = readRequest.iterator();
     int location = 0;
     while (iterator.hasNext()) {
       ReadResponse readResponse = iterator.next();
-      ByteEncoder.copyBytesTo(
-          readResponse.getData(), buffer, location, readResponse.getData().length - 1);
-      location += readResponse.getData().length;
+      int copyBytes = Math.min(readResponse.getDataLength(), bytesToRead - location);
+      System.arraycopy(readResponse.getData(), 0, buffer, location, copyBytes);
+      location += copyBytes;
     }
-    if (location != fileSize) {
+    messaging.close(readRequest);
+    if (location != bytesToRead) {
       logger.error("READ MISMATCH");
       throw new IOException("File Mismatch Exception");
     }
-    messaging.close(readRequest);
-  }
-
-  // Copy the stream to the memory buffer
-  private void fitFileToBufferStrategy() throws IOException {
-    GelatoMessage<ReadRequest, ReadResponse> readRequest = messaging.createReadTransaction();
-    readRequest.getMessage().setFileDescriptor(fileDescriptor.getRawFileDescriptor());
-    readRequest.getMessage().setBytesToRead((int) fileSize);
-    readRequest.getMessage().setFileOffset(fileLocation);
-    messaging.submitMessage(readRequest);
-
-    if (readRequest.getResponse() == null) {
-      throw new IOException("Double boom");
-    }
-
-    if (fileSize > ioNetworkSize) {
-      Iterator<ReadResponse> iterator = readRequest.iterator();
-      int location = 0;
-      while (iterator.hasNext()) {
-        ReadResponse readResponse = iterator.next();
-        ByteEncoder.copyBytesTo(
-            readResponse.getData(), buffer, location, readResponse.getData().length - 1);
-        location += readResponse.getData().length;
-      }
-      if (location != fileSize) {
-        logger.error("READ MISMATCH");
-        throw new RuntimeException("BLOWN");
-      }
-    } else {
-      ByteEncoder.copyBytesTo(readRequest.getResponse().getData(), buffer, 0, (int) fileSize);
-    }
-    messaging.close(readRequest);
+    bufferLength = location;
   }
 
   @Override
@@ -134,10 +102,7 @@ public class GelatoInputStream extends InputStream {
 
   @Override
   public int available() {
-    if (fileSize < Gelato.DEFAULT_NET_IO_MEM_BUFFER) {
-      return (int) fileSize;
-    }
-    return (Gelato.DEFAULT_NET_IO_MEM_BUFFER - currentLocation);
+    return bufferLength - currentLocation;
   }
 
   @Override
@@ -146,12 +111,30 @@ public class GelatoInputStream extends InputStream {
     if (fileLocation >= fileSize) {
       return -1;
     }
-    if (currentLocation >= Gelato.DEFAULT_NET_IO_MEM_BUFFER) {
-      strategySelector();
+    if (currentLocation >= bufferLength) {
+      fillBuffer();
     }
     byteval = buffer[currentLocation] & 0xFF;
     currentLocation++;
     fileLocation++;
     return byteval;
   }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (fileLocation >= fileSize) {
+      return -1;
+    }
+    if (currentLocation >= bufferLength) {
+      fillBuffer();
+    }
+    int copyBytes = Math.min(len, bufferLength - currentLocation);
+    System.arraycopy(buffer, currentLocation, b, off, copyBytes);
+    currentLocation += copyBytes;
+    fileLocation += copyBytes;
+    return copyBytes;
+  }
 }
@@ -28,8 +28,9 @@ import protocol.messages.response.WriteResponse;
 public class GelatoOutputStream extends OutputStream {
 
   private final Logger logger = LoggerFactory.getLogger(GelatoOutputStream.class);
-  private byte[] buffer = new byte[Gelato.DEFAULT_NET_IO_MEM_BUFFER];
+  private byte[] buffer;
   private int bufferPtr = 0;
+  private long fileOffset = 0;
   private long ioNetworkSize = 0;
   private GelatoMessaging messaging;
   private GelatoFileDescriptor fileDescriptor;
@@ -41,21 +42,27 @@ public class GelatoOutputStream extends OutputStream {
     this.messaging = messaging;
     this.fileDescriptor = descriptor;
     this.ioNetworkSize = ioSize;
+    // Whole IO units per buffer so every flushed TWRITE fills the negotiated msize
+    int units = (int) Math.max(1, Gelato.DEFAULT_NET_IO_MEM_BUFFER / ioSize);
+    buffer = new byte[(int) (units * ioSize)];
   }
 
   private void sendMessage(int from, int size) throws IOException {
 
     GelatoMessage<WriteRequest, WriteResponse> writeMessage = messaging.createWriteTransaction();
     writeMessage.getMessage().setFileDescriptor(fileDescriptor.getRawFileDescriptor());
-    writeMessage.getMessage().setByteCount(bufferPtr);
-    writeMessage.getMessage().setWriteData(Arrays.copyOfRange(buffer, from, size));
+    writeMessage.getMessage().setFileOffset(fileOffset);
+    writeMessage.getMessage().setByteCount(size);
+    writeMessage.getMessage().setWriteData(Arrays.copyOfRange(buffer, from, from + size));
     messaging.submitAndClose(writeMessage);
+    fileOffset += size;
   }
 
+  // Split the buffer into TWRITEs no bigger than the negotiated IO unit
   private void multiBufferFlush() throws IOException {
     int flushCounter = 0;
-    while (flushCounter != buffer.length) {
-      int totalBytes = buffer.length - flushCounter;
+    while (flushCounter < bufferPtr) {
+      int totalBytes = bufferPtr - flushCounter;
       if (totalBytes > ioNetworkSize) {
         totalBytes = (int) ioNetworkSize;
       }
@@ -73,6 +80,9 @@ public class GelatoOutputStream extends OutputStream {
     if (closed) {
       throw new IOException("Stream CLOSED");
     }
+    if (bufferPtr == 0) {
+      return;
+    }
     if (bufferPtr > ioNetworkSize) {
       multiBufferFlush();
     } else {
@@ -103,4 +113,21 @@ public class GelatoOutputStream extends OutputStream {
     buffer[bufferPtr] = (byte) b;
     bufferPtr++;
   }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    while (len > 0) {
+      if (bufferPtr >= buffer.length) {
+        flush();
+      }
+      int copyBytes = Math.min(len, buffer.length - bufferPtr);
+      System.arraycopy(b, off, buffer, bufferPtr, copyBytes);
+      bufferPtr += copyBytes;
+      off += copyBytes;
+      len -= copyBytes;
+    }
+  }
 }
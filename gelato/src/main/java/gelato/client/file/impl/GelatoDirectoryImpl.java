@@ -22,15 +22,27 @@ import gelato.server.manager.controllers.GelatoDirectoryController;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import protocol.Decoder;
 import protocol.P9Protocol;
 import protocol.StatStruct;
+import protocol.StatView;
+import protocol.messages.Message;
+import protocol.messages.request.CloseRequest;
+import protocol.messages.request.CompoundRequest;
+import protocol.messages.request.OpenRequest;
+import protocol.messages.request.ReadRequest;
 import protocol.messages.request.StatRequest;
 import protocol.messages.request.WalkRequest;
+import protocol.messages.response.CloseResponse;
+import protocol.messages.response.CompoundResponse;
+import protocol.messages.response.OpenResponse;
 import protocol.messages.response.StatResponse;
 import protocol.messages.response.WalkResponse;
 
@@ -40,6 +52,8 @@ public class GelatoDirectoryImpl extends GelatoFileImpl implements GelatoDirecto
   public static final String ERROR_READ_SIZE_STAT =
       "Stat Size larger than signed INT limit for allocation";
   public static final String ERROR_WALK_READ = "Unable to WALK to target";
+  // Compound operations are numbered from zero
+  private static final int NO_OPERATION = -1;
 
   private final Logger logger = LoggerFactory.getLogger(GelatoDirectoryImpl.class);
   private Map<String, GelatoDirectoryImpl> directoryMap = new ConcurrentHashMap<>();
@@ -94,25 +108,31 @@ public class GelatoDirectoryImpl extends GelatoFileImpl implements GelatoDirecto
   @Override
   public void refreshSelf() {
     super.refreshSelf();
-    List<StatStruct> entries = refreshStatStruct();
-    for (StatStruct entry : entries) {
-      if (entry.getName().equals(GelatoDirectoryController.CURRENT_DIR)
-          || entry.getName().equals(GelatoDirectoryController.PARENT_DIR)) {
+    Iterator<StatView> entries = refreshStatStruct();
+    while (entries.hasNext()) {
+      StatView entry = entries.next();
+      String name = entry.getName();
+      if (name.equals(GelatoDirectoryController.CURRENT_DIR)
+          || name.equals(GelatoDirectoryController.PARENT_DIR)) {
         continue;
       }
-      if (directoryMap.containsKey(entry.getName()) == false
-          && entry.getQid().getType() == P9Protocol.QID_DIR) {
-        walkToTarget(entry);
+      byte qidType = entry.getQidType();
+      if (directoryMap.containsKey(name) == false && qidType == P9Protocol.QID_DIR) {
+        walkToTarget(name, qidType);
       }
-      if (fileMap.containsKey(entry.getName()) == false
-          && entry.getQid().getType() == P9Protocol.QID_FILE) {
-        walkToTarget(entry);
+      if (fileMap.containsKey(name) == false && qidType == P9Protocol.QID_FILE) {
+        walkToTarget(name, qidType);
       }
     }
+    // A listing cut short by an error must not pass for the whole directory
+    if (entries instanceof GelatoDirectoryIterator
+        && ((GelatoDirectoryIterator) entries).isError()) {
+      logger.error("Directory listing incomplete for " + getName());
+      setResourceValid(false);
+    }
   }
 
-  private void addFile(
-      StatStruct newEntry, WalkResponse response, GelatoFileDescriptor descriptor) {
+  private void addFile(String name, StatStruct stat, GelatoFileDescriptor descriptor) {
     GelatoFileImpl newDir = new GelatoFileImpl(getMessaging(), descriptor);
     String path = "";
     if (getName().equals(GelatoDirectoryController.ROOT_DIR)) {
@@ -121,17 +141,17 @@ public class GelatoDirectoryImpl extends GelatoFileImpl implements GelatoDirecto
       path = getPath() + getName() + GelatoDirectoryController.ROOT_DIR;
     }
     newDir.setFilePath(path);
+    newDir.setStatStruct(stat);
     GelatoClientCache.getInstance().addResource(newDir);
-    fileMap.put(newEntry.getName(), newDir);
+    fileMap.put(name, newDir);
     logger.debug(
         "Found FILE : "
-            + newEntry.getName()
+            + name
             + " Mapped to Resource: "
             + Long.toString(descriptor.getDescriptorId()));
   }
 
-  private void addDirectory(
-      StatStruct newEntry, WalkResponse response, GelatoFileDescriptor descriptor) {
+  private void addDirectory(String name, StatStruct stat, GelatoFileDescriptor descriptor) {
     GelatoDirectoryImpl newDir = new GelatoDirectoryImpl(session, getMessaging(), descriptor);
     newDir.setParent(this);
     String path = "";
@@ -141,42 +161,139 @@ public class GelatoDirectoryImpl extends GelatoFileImpl implements GelatoDirecto
       path = getPath() + getName() + GelatoDirectoryController.ROOT_DIR;
     }
     newDir.setFilePath(path);
+    newDir.setStatStruct(stat);
     GelatoClientCache.getInstance().addResource(newDir);
-    directoryMap.put(newEntry.getName(), newDir);
+    directoryMap.put(name, newDir);
     logger.debug(
         "Found : "
-            + newEntry.getName()
+            + name
             + " Mapped to Resource: "
             + Long.toString(descriptor.getDescriptorId())
             + " Path: "
             + newDir.getPath());
   }
 
-  private void walkToTarget(StatStruct newEntry) {
-    GelatoMessage<WalkRequest, WalkResponse> walkRequest = getMessaging().createWalkTransaction();
+  // Walk and stat the new fid in one round trip
+  private void walkToTarget(String name, byte qidType) {
     GelatoFileDescriptor newFileDescriptor = session.getManager().generateDescriptor();
-    walkRequest.getMessage().setNewDecriptor(newFileDescriptor.getRawFileDescriptor());
-    walkRequest.getMessage().setBaseDescriptor(getFileDescriptor().getRawFileDescriptor());
-    walkRequest.getMessage().setTargetFile(newEntry.getName());
-
-    getMessaging().submitMessage(walkRequest);
-    WalkResponse walkResponse = walkRequest.getResponse();
-    if (walkRequest.isError()) {
-      logger.error("Error validating cache for object " + walkRequest.getErrorMessage());
+    WalkRequest walkRequest = new WalkRequest();
+    walkRequest.setNewDecriptor(newFileDescriptor.getRawFileDescriptor());
+    walkRequest.setBaseDescriptor(getFileDescriptor().getRawFileDescriptor());
+    walkRequest.setTargetFile(name);
+    StatRequest statRequest = new StatRequest();
+    statRequest.setFileDescriptor(newFileDescriptor.getRawFileDescriptor());
+
+    GelatoMessage<CompoundRequest, CompoundResponse> compound =
+        getMessaging().createCompoundTransaction();
+    int walkOperation = compound.getMessage().addOperation(walkRequest);
+    int statOperation = compound.getMessage().addOperation(statRequest);
+    getMessaging().submitMessage(compound);
+    CompoundResponse response = compound.getResponse();
+    getMessaging().close(compound);
+    if (response == null || response.isError()) {
+      logger.error("Error validating cache for object " + compoundError(compound, response));
+      clunkAfterError(response, walkOperation, NO_OPERATION, newFileDescriptor);
       return;
     }
+    WalkResponse walkResponse = Decoder.decodeWalkResponse(response.getReply(walkOperation));
+    StatResponse statResponse = Decoder.decodeStatResponse(response.getReply(statOperation));
     newFileDescriptor.setQid(walkResponse.getQID());
-    if (newEntry.getQid().getType() == P9Protocol.QID_DIR) {
-      addDirectory(newEntry, walkResponse, newFileDescriptor);
+    if (qidType == P9Protocol.QID_DIR) {
+      addDirectory(name, statResponse.getStatStruct(), newFileDescriptor);
     } else {
-      addFile(newEntry, walkResponse, newFileDescriptor);
+      addFile(name, statResponse.getStatStruct(), newFileDescriptor);
+    }
+  }
+
+  // A walk that succeeded left the fid open on the server unless the compound clunked it
+  private void clunkAfterError(
+      CompoundResponse response,
+      int walkOperation,
+      int closeOperation,
+      GelatoFileDescriptor descriptor) {
+    boolean walked = true;
+    boolean clunked = false;
+    if (response != null) {
+      Message walkReply = response.getReply(walkOperation);
+      walked = walkReply != null && walkReply.messageType != P9Protocol.RERROR;
+      clunked = response.getReply(closeOperation) != null;
+    }
+    if (walked && !clunked) {
+      GelatoMessage<CloseRequest, CloseResponse> closeRequest =
+          getMessaging().createCloseTransaction();
+      closeRequest.getMessage().setFileID(descriptor.getRawFileDescriptor());
+      getMessaging().submitAndClose(closeRequest);
+    }
+    session.getManager().removeDescriptor(descriptor);
+  }
+
+  private String compoundError(
+      GelatoMessage<CompoundRequest, CompoundResponse> compound, CompoundResponse response) {
+    if (response == null) {
+      return compound.getErrorMessage();
     }
-    getMessaging().close(walkRequest);
+    for (Message reply : response.getReplies()) {
+      if (reply.messageType == P9Protocol.RERROR) {
+        return Decoder.decodeError(reply).getErrorMessage();
+      }
+    }
+    return ERROR_WALK_READ;
   }
 
-  private List<StatStruct> refreshStatStruct() {
+  // Small files are walked, opened, read and clunked in a single compound round trip
+  @Override
+  public byte[] readFile(String fileName) {
+    GelatoFileImpl file = fileMap.get(fileName);
+    if (file == null) {
+      return null;
+    }
+    if (file.getSize() > getMessaging().getIoSize() - P9Protocol.COMPOUND_REPLY_RESERVE) {
+      return readFileStream(file);
+    }
 
-    List<StatStruct> statEntries = new ArrayList<>();
+    GelatoFileDescriptor readDescriptor = session.getManager().generateDescriptor();
+    WalkRequest walkRequest = new WalkRequest();
+    walkRequest.setNewDecriptor(readDescriptor.getRawFileDescriptor());
+    walkRequest.setBaseDescriptor(getFileDescriptor().getRawFileDescriptor());
+    walkRequest.setTargetFile(fileName);
+    OpenRequest openRequest = new OpenRequest();
+    openRequest.setFileDescriptor(readDescriptor.getRawFileDescriptor());
+    openRequest.setMode((byte) P9Protocol.OPEN_MODE_OREAD);
+    ReadRequest readRequest = new ReadRequest();
+    readRequest.setFileDescriptor(readDescriptor.getRawFileDescriptor());
+    readRequest.setFileOffset(0);
+    readRequest.setBytesToRead((int) file.getSize());
+    CloseRequest closeRequest = new CloseRequest();
+    closeRequest.setFileID(readDescriptor.getRawFileDescriptor());
+
+    GelatoMessage<CompoundRequest, CompoundResponse> compound =
+        getMessaging().createCompoundTransaction();
+    int walkOperation = compound.getMessage().addOperation(walkRequest);
+    compound.getMessage().addOperation(openRequest);
+    int readOperation = compound.getMessage().addOperation(readRequest);
+    int closeOperation = compound.getMessage().addOperation(closeRequest);
+    getMessaging().submitMessage(compound);
+    CompoundResponse response = compound.getResponse();
+    getMessaging().close(compound);
+    if (response == null || response.isError()) {
+      logger.error("Unable to read " + fileName + " " + compoundError(compound, response));
+      clunkAfterError(response, walkOperation, closeOperation, readDescriptor);
+      return null;
+    }
+    session.getManager().removeDescriptor(readDescriptor);
+    return Decoder.decodeReadResponse(response.getReply(readOperation)).getData();
+  }
+
+  private byte[] readFileStream(GelatoFileImpl file) {
+    try (InputStream inputStream = file.getFileInputStream()) {
+      return inputStream.readAllBytes();
+    } catch (IOException e) {
+      logger.error("Unable to read " + file.getName(), e);
+      return null;
+    }
+  }
+
+  private Iterator<StatView> refreshStatStruct() {
     GelatoMessage<StatRequest, StatResponse> statRequest = getMessaging().createStatTransaction();
     statRequest.getMessage().setFileDescriptor(getFileDescriptor().getRawFileDescriptor());
     getMessaging().submitMessage(statRequest);
@@ -186,51 +303,20 @@ public class GelatoDirectoryImpl extends GelatoFileImpl implements GelatoDirecto
       logger.error(ERROR_INIT_STAT);
       setResourceValid(false);
       logger.error(statRequest.getErrorMessage());
-      return statEntries;
+      return Collections.emptyIterator();
     }
     StatStruct statStruct = response.getStatStruct();
     setStatStruct(statStruct);
-    // Process the read request for Stat entries
 
     // directory is empty
-    if (response.getStatStruct().getLength() == 0) {
-      return statEntries;
-    }
-    int sizeOfStatEntries = (int) statStruct.getLength();
-    if (sizeOfStatEntries < 0) {
-      logger.error(ERROR_READ_SIZE_STAT);
-      setResourceValid(false);
-      return statEntries;
-    }
-
-    // Allocate buffer
-    byte[] statBuff = new byte[sizeOfStatEntries];
-    int remaining = 0;
-
-    InputStream readStream = getFileInputStream();
-    int content;
-    int location = 0;
-    try {
-      while ((content = readStream.read()) != -1) {
-        statBuff[location] = (byte) content;
-        ++location;
-      }
-    } catch (IOException e) {
-      logger.error("Exception in refresh ", e);
-      setResourceValid(false);
-      return statEntries;
-    }
-
-    // Decode Stat structure into array for processing
-    remaining = 0;
-
-    while (remaining < sizeOfStatEntries) {
-      StatStruct currStat = new StatStruct();
-      currStat = currStat.DecodeStat(statBuff, remaining);
-      statEntries.add(currStat);
-      remaining += currStat.getStatSize();
+    if (statStruct.getLength() == 0) {
+      return Collections.emptyIterator();
     }
 
-    return statEntries;
+    GelatoMessage<OpenRequest, OpenResponse> openRequest = getMessaging().createOpenTransaction();
+    openRequest.getMessage().setFileDescriptor(getFileDescriptor().getRawFileDescriptor());
+    openRequest.getMessage().setMode((byte) P9Protocol.OPEN_MODE_OREAD);
+    getMessaging().submitAndClose(openRequest);
+    return new GelatoDirectoryIterator(getMessaging(), getFileDescriptor(), statStruct.getLength());
   }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.client.file.impl;
+
+import gelato.GelatoFileDescriptor;
+import gelato.client.GelatoMessage;
+import gelato.client.GelatoMessaging;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import protocol.StatView;
+import protocol.messages.request.CloseRequest;
+import protocol.messages.request.ReadRequest;
+import protocol.messages.response.CloseResponse;
+import protocol.messages.response.ReadResponse;
+
+// Streams directory entries page by page, the returned view is reused on every call to next().
+// The descriptor is expected open for reading and is clunked once the listing runs out.
+public class GelatoDirectoryIterator implements Iterator<StatView> {
+
+  private final Logger logger = LoggerFactory.getLogger(GelatoDirectoryIterator.class);
+  private GelatoMessaging messaging;
+  private GelatoFileDescriptor descriptor;
+  private StatView view = new StatView();
+  private byte[] page = new byte[0];
+  private int pagePosition = 0;
+  private long listingOffset = 0;
+  private long listingSize;
+  private boolean error = false;
+  private boolean clunked = false;
+
+  public GelatoDirectoryIterator(
+      GelatoMessaging messaging, GelatoFileDescriptor descriptor, long listingSize) {
+    this.messaging = messaging;
+    this.descriptor = descriptor;
+    this.listingSize = listingSize;
+  }
+
+  public boolean isError() {
+    return error;
+  }
+
+  private boolean fetchPage() {
+    if (error || listingOffset >= listingSize) {
+      clunk();
+      return false;
+    }
+    GelatoMessage<ReadRequest, ReadResponse> readRequest = messaging.createReadTransaction();
+    readRequest.getMessage().setFileDescriptor(descriptor.getRawFileDescriptor());
+    readRequest.getMessage().setFileOffset(listingOffset);
+    readRequest.getMessage().setBytesToRead(messaging.getIoSize());
+    messaging.submitMessage(readRequest);
+    ReadResponse response = readRequest.getResponse();
+    messaging.close(readRequest);
+    if (readRequest.isError() || response == null) {
+      logger.error("Unable to read directory page " + readRequest.getErrorMessage());
+      error = true;
+      clunk();
+      return false;
+    }
+    if (response.getData() == null || response.getData().length == 0) {
+      clunk();
+      return false;
+    }
+    page = response.getData();
+    pagePosition = 0;
+    listingOffset += page.length;
+    return true;
+  }
+
+  private void clunk() {
+    if (clunked) {
+      return;
+    }
+    clunked = true;
+    GelatoMessage<CloseRequest, CloseResponse> closeRequest = messaging.createCloseTransaction();
+    closeRequest.getMessage().setFileID(descriptor.getRawFileDescriptor());
+    messaging.submitAndClose(closeRequest);
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (pagePosition < page.length) {
+      return true;
+    }
+    return fetchPage();
+  }
+
+  @Override
+  public StatView next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    view.reset(page, pagePosition);
+    pagePosition += view.getStatSize();
+    return view;
+  }
+}
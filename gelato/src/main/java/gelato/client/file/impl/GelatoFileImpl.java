@@ -46,7 +46,7 @@ public class GelatoFileImpl extends GelatoResourceImpl implements GelatoFile {
     return new GelatoInputStream(
         getMessaging(),
         getFileDescriptor(),
-        P9Protocol.MAX_MSG_CONTENT_SIZE,
+        getMessaging().getIoSize(),
         localStruct.getLength());
   }
 
@@ -62,7 +62,7 @@ public class GelatoFileImpl extends GelatoResourceImpl implements GelatoFile {
     openRequest.getMessage().setMode((byte) MODE);
     getMessaging().submitAndClose(openRequest);
     return new GelatoOutputStream(
-        getMessaging(), getFileDescriptor(), P9Protocol.MAX_MSG_CONTENT_SIZE);
+        getMessaging(), getFileDescriptor(), getMessaging().getIoSize());
   }
 
   @Override
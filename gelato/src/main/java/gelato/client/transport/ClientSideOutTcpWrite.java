@@ -20,13 +20,14 @@ import gelato.client.GelatoMessage;
 import gelato.client.GelatoMessaging;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import protocol.Encoder;
 import protocol.P9Protocol;
-import protocol.messages.MessageRaw;
+import protocol.PayloadCodec;
+import protocol.messages.TransactionMessage;
 
 public class ClientSideOutTcpWrite implements SinkAgent<GelatoMessage> {
 
@@ -35,6 +36,7 @@ public class ClientSideOutTcpWrite implements SinkAgent<GelatoMessage> {
   private boolean shutdown = false;
   private int currentTagClient = 0;
   private GelatoMessaging messaging;
+  private ByteBuffer outboundBuffer = ByteBuffer.allocate(P9Protocol.DEFAULT_MSG_SIZE);
 
   public ClientSideOutTcpWrite(OutputStream networkStream, GelatoMessaging messaging) {
     logger.debug("Client side output steamer starting");
@@ -72,10 +74,21 @@ public class ClientSideOutTcpWrite implements SinkAgent<GelatoMessage> {
       outbound.setTag(0);
     }
     messaging.addFuture(outbound);
-    MessageRaw raw = outbound.toMessage().toRaw();
-    byte[] outBytes = Encoder.messageToBytes(raw);
+    TransactionMessage wire = outbound;
+    PayloadCodec codec = messaging.getPayloadCodec();
+    if (codec != null && PayloadCodec.isCompressible(outbound.messageType())) {
+      wire = codec.compress(outbound.toMessage());
+    } else if (!outbound.encodesDirectly()) {
+      wire = outbound.toMessage();
+    }
+    int encodedSize = wire.encodedSize();
+    if (encodedSize > outboundBuffer.capacity()) {
+      outboundBuffer = ByteBuffer.allocate(encodedSize);
+    }
+    outboundBuffer.clear();
+    wire.encodeTo(outboundBuffer);
     try {
-      socketOutputStream.write(outBytes);
+      socketOutputStream.write(outboundBuffer.array(), 0, outboundBuffer.position());
     } catch (IOException e) {
       logger.error("Error",e);
     }
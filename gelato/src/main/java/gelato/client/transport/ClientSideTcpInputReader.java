@@ -21,18 +21,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import protocol.Decoder;
+import protocol.FrameDecoder;
+import protocol.P9Protocol;
+import protocol.PayloadCodec;
 import protocol.messages.Message;
-import protocol.messages.MessageRaw;
 
 public class ClientSideTcpInputReader implements SourceProducer<Message> {
 
   public static final String INCORRECT_HEADER = "Incorrect header";
   public static final String INVALID_BYTE_COUNT =
       "Number of bytes read from stream does not match required amount";
+  public static final String NO_PAYLOAD_CODEC = "Compressed frame without a negotiated codec";
   private final Logger logger = LoggerFactory.getLogger(ClientSideTcpInputReader.class);
   private InputStream netWorkInputStream;
-  private byte[] minHeaderBuffer = new byte[MessageRaw.minSize];
+  private FrameDecoder frameDecoder = new FrameDecoder();
   private boolean shutdown = false;
   private boolean isReady = true;
   private GelatoMessaging messaging;
@@ -44,31 +46,39 @@ public class ClientSideTcpInputReader implements SourceProducer<Message> {
 
   public Message getMessage() throws IOException {
     isReady = false;
-    for (int byteCount = 0; byteCount < MessageRaw.minSize; ++byteCount) {
-      int val = netWorkInputStream.read();
-      if (val != -1) {
-        minHeaderBuffer[byteCount] = (byte) (val & 0xFF);
-      } else {
-        logger.error(INCORRECT_HEADER);
+    Message msg = nextFrame();
+    while (msg == null) {
+      if (frameDecoder.readFrom(netWorkInputStream, Integer.MAX_VALUE) == -1) {
+        String error = frameDecoder.isPartial() ? INVALID_BYTE_COUNT : INCORRECT_HEADER;
+        logger.error(error);
         shutdown();
-        throw new IOException(INCORRECT_HEADER);
+        throw new IOException(error);
       }
+      msg = nextFrame();
     }
-    MessageRaw minMessage = Decoder.decodeRawHeader(minHeaderBuffer);
-    Message msg = minMessage.toMessage();
-    int bytesToRead = msg.getContentSize();
-    byte[] content = new byte[bytesToRead];
-    int rsize = netWorkInputStream.read(content);
-    if (rsize != bytesToRead) {
-      logger.error(INVALID_BYTE_COUNT);
-      shutdown();
-      throw new IOException(INVALID_BYTE_COUNT);
+    if (msg.messageType == P9Protocol.TCODEC) {
+      PayloadCodec codec = messaging.getPayloadCodec();
+      if (codec == null) {
+        logger.error(NO_PAYLOAD_CODEC);
+        shutdown();
+        throw new IOException(NO_PAYLOAD_CODEC);
+      }
+      msg = codec.decompress(msg);
     }
-    msg.messageContent = content;
     isReady = true;
     return msg;
   }
 
+  private Message nextFrame() throws IOException {
+    try {
+      return frameDecoder.poll();
+    } catch (IOException e) {
+      logger.error(INCORRECT_HEADER);
+      shutdown();
+      throw e;
+    }
+  }
+
   @Override
   public void execute(AgentPort<Message> target) {
     try {
@@ -16,16 +16,22 @@ import ciotola.annotations.CiotolaAutowire;
 import ciotola.annotations.CiotolaServiceRun;
 import ciotola.annotations.CiotolaServiceStart;
 import ciotola.annotations.CiotolaServiceStop;
+import ciotola.pools.CiotolaVirtualKeyPool;
 import gelato.Gelato;
 import gelato.GelatoConnection;
 import gelato.GelatoDescriptorManager;
 import gelato.GelatoFileDescriptor;
+import gelato.server.manager.implementation.LatencyRecorder;
+import gelato.server.manager.implementation.PriorityLanes;
 import gelato.server.manager.v2.V2ClientDescriptorHandler;
+import gelato.server.manager.v2.V2EventLoop;
+import gelato.server.manager.v2.V2RequestDispatcher;
 import gelato.server.manager.v2.V2TCPTransport;
 import gelato.transport.GelatoTransport;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -38,10 +44,19 @@ public class GelatoServerConnection implements GelatoConnection, GelatoConnectio
 
   private final Logger logger = LoggerFactory.getLogger(GelatoServerConnection.class);
   private int portNumber = 7073;
-  private ServerSocket serverSocket;
+  private ServerSocketChannel serverSocket;
+  private List<V2EventLoop> eventLoops = new ArrayList<>();
+  private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+  private int dispatcherThreads = Runtime.getRuntime().availableProcessors();
+  private V2RequestDispatcher dispatcher;
+  private boolean virtualThreads = false;
+  private long acceptedConnections = 0;
+  private long lowWatermark = V2TCPTransport.DEFAULT_LOW_WATERMARK;
+  private long highWatermark = V2TCPTransport.DEFAULT_HIGH_WATERMARK;
+  private final LatencyRecorder[] outboundLatency = PriorityLanes.createRecorders();
   private GelatoDescriptorManager descriptorManager;
   private Map<GelatoFileDescriptor, V2TCPTransport> connections = new ConcurrentHashMap<>();
-  private boolean shutdown = false;
+  private volatile boolean shutdown = false;
   private boolean started = false;
   private GelatoConnectionNotifier notifier = this;
   @CiotolaAutowire
@@ -51,7 +66,8 @@ public class GelatoServerConnection implements GelatoConnection, GelatoConnectio
     this.descriptorManager = descriptorManager;
     logger.debug("Starting Server on port: " + Integer.toString(portNumber));
     try {
-      serverSocket = new ServerSocket(portNumber);
+      serverSocket = ServerSocketChannel.open();
+      serverSocket.bind(new InetSocketAddress(portNumber));
       logger.debug("Server Started listening");
 
     } catch (IOException e) {
@@ -60,10 +76,69 @@ public class GelatoServerConnection implements GelatoConnection, GelatoConnectio
     }
   }
 
-  public void startServer() {
+  public synchronized void startServer() {
+    if (started) {
+      return;
+    }
+    if (virtualThreads) {
+      dispatcher = new V2RequestDispatcher(CiotolaVirtualKeyPool.newVirtualThreadExecutor());
+    } else {
+      dispatcher = new V2RequestDispatcher(dispatcherThreads);
+    }
+    for (int loop = 0; loop < eventLoopCount; ++loop) {
+      try {
+        V2EventLoop eventLoop = new V2EventLoop(loop);
+        eventLoop.start();
+        eventLoops.add(eventLoop);
+      } catch (IOException e) {
+        logger.error("Unable to start event loop", e);
+        throw new RuntimeException("Unable to start server");
+      }
+    }
     started = true;
   }
 
+  public int getEventLoopCount() {
+    return eventLoopCount;
+  }
+
+  // Must be set before the server is started, connections are spread over at least one loop
+  public void setEventLoopCount(int eventLoopCount) {
+    this.eventLoopCount = Math.max(1, eventLoopCount);
+  }
+
+  public int getDispatcherThreads() {
+    return dispatcherThreads;
+  }
+
+  // Threads shared by all connections to run session requests, must be set before start
+  public void setDispatcherThreads(int dispatcherThreads) {
+    this.dispatcherThreads = Math.max(1, dispatcherThreads);
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  // Run session requests on virtual threads instead of the fixed dispatcher pool
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  // Applies to connections accepted from now on
+  public void setWriteWatermarks(long low, long high) {
+    if (low > high) {
+      throw new RuntimeException("Low watermark above high watermark");
+    }
+    lowWatermark = low;
+    highWatermark = high;
+  }
+
+  // Time replies spend queued before being staged for the socket, per PriorityLanes lane
+  public LatencyRecorder getOutboundLatency(int lane) {
+    return outboundLatency[lane];
+  }
+
   @Override
   public boolean isStarted() {
     return started;
@@ -93,22 +168,29 @@ public class GelatoServerConnection implements GelatoConnection, GelatoConnectio
   private void processMessages() {
     while (!shutdown) {
       try {
-        Socket clientSocket = serverSocket.accept();
-        clientSocket.setTcpNoDelay(true);
+        SocketChannel clientSocket = serverSocket.accept();
+        clientSocket.socket().setTcpNoDelay(true);
         GelatoFileDescriptor fileDescriptor = descriptorManager.generateDescriptor();
         V2ClientDescriptorHandler clientDescriptorHandler =
-            new V2ClientDescriptorHandler(fileDescriptor);
+            new V2ClientDescriptorHandler(fileDescriptor, dispatcher);
         logger.debug(
             "Connected Client - File Descriptor: "
                 + Long.toString(fileDescriptor.getDescriptorId()));
+        V2EventLoop eventLoop =
+            eventLoops.get((int) (acceptedConnections++ % eventLoops.size()));
         V2TCPTransport tcpTransport =
-            new V2TCPTransport(clientSocket, fileDescriptor, clientDescriptorHandler);
-        int proxy = context.injectService(clientDescriptorHandler);
-        tcpTransport.setSvcProxy(proxy);
+            new V2TCPTransport(clientSocket, fileDescriptor, clientDescriptorHandler, eventLoop);
+        context.injectDependencies(clientDescriptorHandler);
+        tcpTransport.setWriteWatermarks(lowWatermark, highWatermark);
+        tcpTransport.setOutboundLatency(outboundLatency);
         notifier.handle(clientDescriptorHandler);
-        context.execute(tcpTransport);
         connections.put(fileDescriptor, tcpTransport);
+        eventLoop.register(tcpTransport);
       } catch (IOException e) {
+        if (!serverSocket.isOpen()) {
+          logger.debug("Server socket closed - no longer accepting connections");
+          return;
+        }
         logger.error("Unable to handle connections ", e);
       }
     }
@@ -159,6 +241,17 @@ public class GelatoServerConnection implements GelatoConnection, GelatoConnectio
   @Override
   public synchronized void shutdown() {
     shutdown = true;
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      logger.error("Unable to close server socket", e);
+    }
+    for (V2EventLoop eventLoop : eventLoops) {
+      eventLoop.shutdown();
+    }
+    if (dispatcher != null) {
+      dispatcher.shutdown();
+    }
     logger.debug("Server Shutting Down");
   }
 
@@ -18,9 +18,13 @@ import gelato.server.manager.GelatoQIDManager;
 import gelato.server.manager.controllers.GelatoDirectoryController;
 import gelato.server.manager.controllers.GelatoFileController;
 import gelato.server.manager.controllers.GelatoResourceController;
+import gelato.server.manager.controllers.impl.GelatoFileControllerImpl;
+import gelato.server.manager.implementation.BlockCache;
+import gelato.server.manager.implementation.FairRequestQueue;
 import gelato.server.manager.implementation.QIDInMemoryManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import protocol.P9Protocol;
 
 public class GelatoServerManager {
 
@@ -33,6 +37,9 @@ public class GelatoServerManager {
   private Ciotola serviceContainer = Ciotola.getInstance();
   private GelatoDirectoryController rootDirectory;
   private boolean shutdown = false;
+  private int maxMsgSize = P9Protocol.MAX_NEGOTIATED_MSG_SIZE;
+  private int payloadCodecs = P9Protocol.CODEC_DEFLATE;
+  private BlockCache blockCache = null;
 
   public GelatoServerManager(int portNumber) {
     connection = new GelatoServerConnection(descriptorManager, portNumber);
@@ -53,6 +60,12 @@ public class GelatoServerManager {
   }
 
   public void addResource(GelatoResourceController newServerResource) {
+    if (blockCache != null && newServerResource instanceof GelatoFileControllerImpl) {
+      GelatoFileControllerImpl file = (GelatoFileControllerImpl) newServerResource;
+      if (file.getBlockCache() == null) {
+        file.setBlockCache(blockCache);
+      }
+    }
     qidManager.mapResourceHandler(newServerResource.getFileDescriptor(), newServerResource);
   }
 
@@ -84,6 +97,7 @@ public class GelatoServerManager {
 
   public synchronized void shutdown() {
     shutdown = true;
+    parallelRequestHandler.shutdown();
   }
 
   public synchronized boolean isShutdown() {
@@ -110,13 +124,71 @@ public class GelatoServerManager {
     this.parallelRequestHandler = parallelRequestHandler;
   }
 
+  public int getMaxMsgSize() {
+    return maxMsgSize;
+  }
+
+  // Upper bound offered to clients in RVERSION, clients may still settle on less
+  public void setMaxMsgSize(int maxMsgSize) {
+    this.maxMsgSize = maxMsgSize;
+  }
+
+  public int getPayloadCodecs() {
+    return payloadCodecs;
+  }
+
+  // Codecs a client may pick in TCAPABILITY, CODEC_NONE keeps every session uncompressed
+  public void setPayloadCodecs(int payloadCodecs) {
+    this.payloadCodecs = payloadCodecs;
+  }
+
+  public BlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  // Files added after this read through the shared cache, set it before building the tree
+  public void setBlockCache(BlockCache blockCache) {
+    this.blockCache = blockCache;
+  }
+
+  // Deficit round robin across sessions, or across TATTACH user names when perUser is set
+  public void setFairQueuing(boolean enabled, boolean perUser) {
+    if (!enabled) {
+      parallelRequestHandler.setFairQueue(null);
+      return;
+    }
+    FairRequestQueue fairQueue = parallelRequestHandler.getFairQueue();
+    if (fairQueue == null) {
+      fairQueue = new FairRequestQueue();
+    }
+    fairQueue.setFlowPerUser(perUser);
+    parallelRequestHandler.setFairQueue(fairQueue);
+  }
+
+  // Share of the executor a user gets relative to others while fair queuing is on
+  public void setUserWeight(String userName, int weight) {
+    FairRequestQueue fairQueue = parallelRequestHandler.getFairQueue();
+    if (fairQueue == null) {
+      throw new RuntimeException("Fair queuing not enabled");
+    }
+    fairQueue.setUserWeight(userName, weight);
+  }
+
+  // VIRTUAL_THREADS also moves the connection dispatcher onto virtual threads, set it before start
   public void setParallelPolicy(ParallelHandlerMode mode) {
     parallelRequestHandler.setHandlerMode(mode);
+    connection.setVirtualThreads(mode == ParallelHandlerMode.VIRTUAL_THREADS);
   }
 
   public enum ParallelHandlerMode {
     CONTENTION,
     ROUNDROBIN,
-    SESSION_CONTENTION
+    SESSION_CONTENTION,
+    // One virtual thread per request, ordered per QID like CONTENTION
+    VIRTUAL_THREADS,
+    // Reads, stats and walks of a QID run in parallel, other requests are exclusive against them
+    READ_WRITE,
+    // Ordered per QID until a resource turns hot and read only, then as READ_WRITE until written
+    ADAPTIVE
   }
 }
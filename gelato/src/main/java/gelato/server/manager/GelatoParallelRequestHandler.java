@@ -12,23 +12,69 @@
 package gelato.server.manager;
 
 import ciotola.Ciotola;
+import ciotola.pools.CiotolaVirtualKeyPool;
 import gelato.GelatoConnection;
 import gelato.GelatoFileDescriptor;
 import gelato.GelatoSession;
 import gelato.server.GelatoServerManager;
 import gelato.server.manager.controllers.GelatoResourceController;
 import gelato.server.manager.controllers.impl.DefaultFlushHandler;
+import gelato.server.manager.implementation.AdaptiveResourcePolicy;
+import gelato.server.manager.implementation.DecodedRequest;
+import gelato.server.manager.implementation.FairRequestQueue;
+import gelato.server.manager.implementation.LatencyRecorder;
+import gelato.server.manager.implementation.ParallelCompoundRequest;
 import gelato.server.manager.implementation.ParallelRequest;
+import gelato.server.manager.implementation.PriorityLanes;
+import gelato.server.manager.implementation.ResourceReadWriteScheduler;
 import gelato.server.manager.implementation.requests.RequestFlushHandler;
+import java.util.ArrayList;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import protocol.Decoder;
 import protocol.P9Protocol;
 import protocol.messages.Message;
+import protocol.messages.request.CompoundRequest;
+import protocol.messages.request.WriteRequestView;
 import protocol.messages.response.ErrorMessage;
 
 public class GelatoParallelRequestHandler implements GenericRequestHandler {
 
+  // Message types that lead with the fid of the resource they target
+  private static final boolean[] RESOURCE_REQUESTS = new boolean[256];
+
+  static {
+    RESOURCE_REQUESTS[P9Protocol.TOPEN & 0xff] = true;
+    RESOURCE_REQUESTS[P9Protocol.TWALK & 0xff] = true;
+    RESOURCE_REQUESTS[P9Protocol.TREMOVE & 0xff] = true;
+    RESOURCE_REQUESTS[P9Protocol.TWSTAT & 0xff] = true;
+    RESOURCE_REQUESTS[P9Protocol.TWRITE & 0xff] = true;
+    RESOURCE_REQUESTS[P9Protocol.TCLOSE & 0xff] = true;
+    RESOURCE_REQUESTS[P9Protocol.TREAD & 0xff] = true;
+    RESOURCE_REQUESTS[P9Protocol.TSTAT & 0xff] = true;
+    RESOURCE_REQUESTS[P9Protocol.TCREATE & 0xff] = true;
+  }
+
+  // Requests that only look at a resource and can share it under READ_WRITE
+  private static final boolean[] SHARED_REQUESTS = new boolean[256];
+
+  static {
+    SHARED_REQUESTS[P9Protocol.TREAD & 0xff] = true;
+    SHARED_REQUESTS[P9Protocol.TSTAT & 0xff] = true;
+    SHARED_REQUESTS[P9Protocol.TWALK & 0xff] = true;
+  }
+
+  // Requests that change a resource, these end parallel dispatch under ADAPTIVE
+  private static final boolean[] WRITE_REQUESTS = new boolean[256];
+
+  static {
+    WRITE_REQUESTS[P9Protocol.TWRITE & 0xff] = true;
+    WRITE_REQUESTS[P9Protocol.TWSTAT & 0xff] = true;
+    WRITE_REQUESTS[P9Protocol.TREMOVE & 0xff] = true;
+    WRITE_REQUESTS[P9Protocol.TCREATE & 0xff] = true;
+  }
+
   private final Logger logger = LoggerFactory.getLogger(GelatoParallelRequestHandler.class);
   private GelatoQIDManager resources;
   private RequestFlushHandler flushResponseHandler = new DefaultFlushHandler();
@@ -36,6 +82,11 @@ public class GelatoParallelRequestHandler implements GenericRequestHandler {
   private GelatoServerManager.ParallelHandlerMode handlerMode =
       GelatoServerManager.ParallelHandlerMode.CONTENTION;
   private long requestCount = 0;
+  private CiotolaVirtualKeyPool virtualPool = null;
+  private final ResourceReadWriteScheduler readWriteScheduler = new ResourceReadWriteScheduler();
+  private final AdaptiveResourcePolicy adaptivePolicy = new AdaptiveResourcePolicy();
+  private final LatencyRecorder[] queueLatency = PriorityLanes.createRecorders();
+  private volatile FairRequestQueue fairQueue = null;
 
   public GelatoParallelRequestHandler(GelatoQIDManager qidManager) {
     resources = qidManager;
@@ -55,36 +106,19 @@ public class GelatoParallelRequestHandler implements GenericRequestHandler {
       GelatoFileDescriptor descriptor,
       GelatoSession session,
       Message request) {
-    GelatoFileDescriptor requestedResource = new GelatoFileDescriptor();
-    if (request.messageType == P9Protocol.TOPEN) {
-      requestedResource.setRawFileDescriptor(
-          Decoder.decodeOpenRequest(request).getFileDescriptor());
-    } else if (request.messageType == P9Protocol.TWALK) {
-      requestedResource.setRawFileDescriptor(
-          Decoder.decodeWalkRequest(request).getBaseDescriptor());
-    } else if (request.messageType == P9Protocol.TFLUSH) {
+    if (request.messageType == P9Protocol.TFLUSH) {
       return flushResponseHandler.processRequest(
           connection, descriptor, session, Decoder.decodeFlushRequest(request));
-    } else if (request.messageType == P9Protocol.TREMOVE) {
-      requestedResource.setRawFileDescriptor(
-          Decoder.decodeRemoveRequest(request).getFileDescriptor());
-    } else if (request.messageType == P9Protocol.TWSTAT) {
-      requestedResource.setRawFileDescriptor(
-          Decoder.decodeStatWriteRequest(request).getFileDescriptor());
-    } else if (request.messageType == P9Protocol.TWRITE) {
-      requestedResource.setRawFileDescriptor(
-          Decoder.decodeWriteRequest(request).getFileDescriptor());
-    } else if (request.messageType == P9Protocol.TCLOSE) {
-      requestedResource.setRawFileDescriptor(Decoder.decodeCloseRequest(request).getFileID());
-    } else if (request.messageType == P9Protocol.TREAD) {
-      requestedResource.setRawFileDescriptor(
-          Decoder.decodeReadRequest(request).getFileDescriptor());
-    } else if (request.messageType == P9Protocol.TSTAT) {
-      requestedResource.setRawFileDescriptor(
-          Decoder.decodeStatRequest(request).getFileDescriptor());
-    } else if (request.messageType == P9Protocol.TCREATE) {
-      requestedResource.setRawFileDescriptor(
-          Decoder.decodeCreateRequest(request).getFileDescriptor());
+    } else if (request.messageType == P9Protocol.TCOMPOUND) {
+      return processCompound(connection, descriptor, session, request);
+    }
+
+    // Framed once here, the worker dispatches on the same decoded request
+    DecodedRequest decodedRequest = new DecodedRequest(request);
+    GelatoFileDescriptor requestedResource = new GelatoFileDescriptor();
+    if (isResourceRequest(request.messageType)) {
+      // Every resource request leads with the fid it targets
+      requestedResource.setRawFileDescriptor(decodedRequest.getFileDescriptor());
     }
 
     if (!session.getManager().validDescriptor(requestedResource)) {
@@ -95,6 +129,11 @@ public class GelatoParallelRequestHandler implements GenericRequestHandler {
       sendError("Invalid resource", request.tag, descriptor, connection);
       return false;
     }
+    if (!validCounts(decodedRequest)) {
+      logger.error("Invalid write count in Message, Tag: " + request.tag);
+      sendError("Invalid write count", request.tag, descriptor, connection);
+      return false;
+    }
 
     GelatoFileDescriptor serverResource =
         session.getManager().getServerDescriptor(requestedResource);
@@ -105,22 +144,235 @@ public class GelatoParallelRequestHandler implements GenericRequestHandler {
     parallelRequest.setHandler(handler);
     parallelRequest.setDescriptor(descriptor);
     parallelRequest.setSession(session);
-    parallelRequest.setMessage(request);
+    parallelRequest.setRequest(decodedRequest);
+
+    // Reads of a pinned snapshot cannot see a later write, they go to any worker
+    boolean ordered =
+        request.messageType != P9Protocol.TREAD
+            || handler == null
+            || !handler.readsSnapshot(session, requestedResource.getDescriptorId());
+    execute(
+        parallelRequest,
+        session,
+        ordered ? requestKey(descriptor, serverResource) : getRequestCount(),
+        requestCost(decodedRequest),
+        isSharedRequest(request.messageType),
+        isWriteRequest(request.messageType),
+        ordered,
+        PriorityLanes.forRequest(request.messageType));
+
+    return true;
+  }
 
+  public static boolean isResourceRequest(byte messageType) {
+    return RESOURCE_REQUESTS[messageType & 0xff];
+  }
+
+  public static boolean isSharedRequest(byte messageType) {
+    return SHARED_REQUESTS[messageType & 0xff];
+  }
+
+  public static boolean isWriteRequest(byte messageType) {
+    return WRITE_REQUESTS[messageType & 0xff];
+  }
+
+  // Null when the request carries no fid or the fid is not known to the session
+  public GelatoFileDescriptor resolveServerResource(
+      GelatoSession session, DecodedRequest request) {
+    if (!isResourceRequest(request.messageType())) {
+      return null;
+    }
+    GelatoFileDescriptor requestedResource = new GelatoFileDescriptor();
+    requestedResource.setRawFileDescriptor(request.getFileDescriptor());
+    if (!session.getManager().validDescriptor(requestedResource)) {
+      return null;
+    }
+    return session.getManager().getServerDescriptor(requestedResource);
+  }
+
+  // Checked before dispatch, a worker would otherwise fail slicing data the frame does not hold
+  private static boolean validCounts(DecodedRequest request) {
+    return request.messageType() != P9Protocol.TWRITE
+        || new WriteRequestView(request.getFrame()).validByteCount();
+  }
+
+  public GelatoResourceController getHandler(GelatoFileDescriptor serverResource) {
+    return resources.getHandler(serverResource);
+  }
+
+  private long requestKey(GelatoFileDescriptor descriptor, GelatoFileDescriptor serverResource) {
     long key = 0;
-    if (handlerMode == GelatoServerManager.ParallelHandlerMode.CONTENTION) {
+    if (handlerMode == GelatoServerManager.ParallelHandlerMode.CONTENTION
+        || handlerMode == GelatoServerManager.ParallelHandlerMode.VIRTUAL_THREADS
+        || handlerMode == GelatoServerManager.ParallelHandlerMode.READ_WRITE
+        || handlerMode == GelatoServerManager.ParallelHandlerMode.ADAPTIVE) {
       key = serverResource.getQid().getLongFileId();
     } else if (handlerMode == GelatoServerManager.ParallelHandlerMode.ROUNDROBIN) {
       key = getRequestCount();
     } else if (handlerMode == GelatoServerManager.ParallelHandlerMode.SESSION_CONTENTION) {
       key = descriptor.getDescriptorId() + serverResource.getQid().getLongFileId();
     }
+    return Math.abs(key);
+  }
+
+  private void execute(
+      Runnable request,
+      GelatoSession session,
+      long key,
+      int cost,
+      boolean shared,
+      boolean write,
+      boolean ordered,
+      int lane) {
+    LatencyRecorder recorder = queueLatency[lane];
+    FairRequestQueue fair = fairQueue;
+    long queued = System.nanoTime();
+    Runnable timed =
+        () -> {
+          recorder.record(System.nanoTime() - queued);
+          try {
+            request.run();
+          } finally {
+            if (fair != null) {
+              fair.complete();
+            }
+          }
+        };
+    boolean priority = lane == PriorityLanes.METADATA;
+    if (fair == null) {
+      dispatch(timed, key, shared, write, ordered, priority);
+    } else {
+      fair.submit(session, cost, () -> dispatch(timed, key, shared, write, ordered, priority));
+    }
+  }
+
+  private void dispatch(
+      Runnable job, long key, boolean shared, boolean write, boolean ordered, boolean priority) {
+    if (handlerMode == GelatoServerManager.ParallelHandlerMode.VIRTUAL_THREADS) {
+      getVirtualPool().addJob(job, key);
+    } else if (!ordered) {
+      Ciotola.getInstance().execute(job, key, priority);
+    } else if (handlerMode == GelatoServerManager.ParallelHandlerMode.READ_WRITE) {
+      readWriteScheduler.addJob(job, key, shared, priority);
+    } else if (handlerMode == GelatoServerManager.ParallelHandlerMode.ADAPTIVE) {
+      boolean admitShared = adaptivePolicy.admitShared(key, shared, write);
+      readWriteScheduler.addJob(job, key, admitShared, priority);
+    } else {
+      Ciotola.getInstance().execute(job, key, priority);
+    }
+  }
+
+  // Fair queuing cost, one unit per request plus one per 64KB of data moved
+  private static int requestCost(DecodedRequest request) {
+    if (request.messageType() == P9Protocol.TREAD) {
+      return 1 + (Math.max(0, Decoder.viewReadRequest(request.getFrame()).getBytesToRead()) >>> 16);
+    } else if (request.messageType() == P9Protocol.TWRITE) {
+      return 1 + (Decoder.viewWriteRequest(request.getFrame()).getByteCount() >>> 16);
+    }
+    return 1;
+  }
+
+  public FairRequestQueue getFairQueue() {
+    return fairQueue;
+  }
+
+  // Null turns fair queuing off, requests then go straight to the executor
+  public void setFairQueue(FairRequestQueue fairQueue) {
+    this.fairQueue = fairQueue;
+  }
+
+  // Time from a request being accepted to a worker starting it, per PriorityLanes lane
+  public LatencyRecorder getQueueLatency(int lane) {
+    return queueLatency[lane];
+  }
+
+  private synchronized CiotolaVirtualKeyPool getVirtualPool() {
+    if (virtualPool == null) {
+      virtualPool = new CiotolaVirtualKeyPool();
+    }
+    return virtualPool;
+  }
 
-    Ciotola.getInstance().execute(parallelRequest, Math.abs(key));
+  public synchronized void shutdown() {
+    if (virtualPool != null) {
+      virtualPool.shutdown();
+    }
+  }
 
+  private boolean processCompound(
+      GelatoConnection connection,
+      GelatoFileDescriptor descriptor,
+      GelatoSession session,
+      Message request) {
+    CompoundRequest compoundRequest = Decoder.decodeCompoundRequest(request);
+    List<Message> operations = compoundRequest.getOperations();
+    if (operations.isEmpty() || operations.size() > P9Protocol.MAX_COMPOUND_OPERATIONS) {
+      sendError("Invalid compound request", request.tag, descriptor, connection);
+      return true;
+    }
+    List<DecodedRequest> decodedOperations = new ArrayList<>(operations.size());
+    int lane = PriorityLanes.METADATA;
+    for (Message operation : operations) {
+      if (!isResourceRequest(operation.messageType)) {
+        sendError("Unsupported compound operation", request.tag, descriptor, connection);
+        return true;
+      }
+      DecodedRequest decodedOperation = new DecodedRequest(operation);
+      if (!validCounts(decodedOperation)) {
+        sendError("Invalid write count", request.tag, descriptor, connection);
+        return true;
+      }
+      lane = Math.max(lane, PriorityLanes.forRequest(operation.messageType));
+      decodedOperations.add(decodedOperation);
+    }
+
+    // The batch starts on the key of the resource its first operation targets, it moves on to
+    // the key of each later resource once a walk has bound the fid
+    DecodedRequest first = decodedOperations.get(0);
+    GelatoFileDescriptor serverResource = resolveServerResource(session, first);
+    if (serverResource == null) {
+      logger.error("Invalid Descriptor request in compound Message");
+      logger.error("Message Tag: " + request.tag);
+      sendError("Invalid resource", request.tag, descriptor, connection);
+      return false;
+    }
+
+    ParallelCompoundRequest parallelRequest = new ParallelCompoundRequest(this);
+    parallelRequest.setConnection(connection);
+    parallelRequest.setDescriptor(descriptor);
+    parallelRequest.setSession(session);
+    parallelRequest.setMessage(request);
+    parallelRequest.setOperations(decodedOperations);
+    parallelRequest.setLane(lane);
+    boolean shared = isSharedRequest(first.messageType());
+    parallelRequest.startStep(serverResource, shared);
+    execute(
+        parallelRequest,
+        session,
+        requestKey(descriptor, serverResource),
+        decodedOperations.size(),
+        shared,
+        isWriteRequest(first.messageType()),
+        true,
+        lane);
     return true;
   }
 
+  // Later steps of a compound skip the fair queue, the batch was charged in full when admitted
+  public void continueCompound(
+      ParallelCompoundRequest compound,
+      GelatoFileDescriptor serverResource,
+      boolean shared,
+      boolean write) {
+    dispatch(
+        compound,
+        requestKey(compound.getDescriptor(), serverResource),
+        shared,
+        write,
+        true,
+        compound.getLane() == PriorityLanes.METADATA);
+  }
+
   private synchronized long getRequestCount() {
     long cur = requestCount;
     ++requestCount;
@@ -138,6 +390,13 @@ public class GelatoParallelRequestHandler implements GenericRequestHandler {
 
   public void setHandlerMode(GelatoServerManager.ParallelHandlerMode handlerMode) {
     this.handlerMode = handlerMode;
+    readWriteScheduler.setPolicy(
+        handlerMode == GelatoServerManager.ParallelHandlerMode.ADAPTIVE ? adaptivePolicy : null);
+  }
+
+  // Per resource modes and decisions while running ADAPTIVE, keyed by QID file id
+  public AdaptiveResourcePolicy getAdaptivePolicy() {
+    return adaptivePolicy;
   }
 
   private void sendError(
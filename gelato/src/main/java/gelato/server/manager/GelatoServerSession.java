@@ -20,6 +20,8 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import protocol.P9Protocol;
+import protocol.messages.VersionRequest;
 
 public class GelatoServerSession implements GelatoSession {
 
@@ -32,6 +34,7 @@ public class GelatoServerSession implements GelatoSession {
   private GelatoDescriptorManager manager = null;
   private GelatoTags tags;
   private Map<String, Object> sessionVars = new ConcurrentHashMap<>();
+  private volatile int maxMsgSize = P9Protocol.DEFAULT_MSG_SIZE;
 
   @Override
   public void setSessionVar(String varName, Object varValue) {
@@ -43,6 +46,11 @@ public class GelatoServerSession implements GelatoSession {
     return sessionVars.get(varName);
   }
 
+  @Override
+  public void removeSessionVar(String varName) {
+    sessionVars.remove(varName);
+  }
+
   @Override
   public int descriptorCount() {
     return manager.size();
@@ -107,4 +115,19 @@ public class GelatoServerSession implements GelatoSession {
   public void setTags(GelatoTags tags) {
     this.tags = tags;
   }
+
+  @Override
+  public int getMaxMsgSize() {
+    return maxMsgSize;
+  }
+
+  @Override
+  public void setMaxMsgSize(int maxMsgSize) {
+    this.maxMsgSize = maxMsgSize;
+  }
+
+  @Override
+  public int getIoUnit() {
+    return VersionRequest.ioUnit(maxMsgSize);
+  }
 }
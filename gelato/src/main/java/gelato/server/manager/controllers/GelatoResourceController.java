@@ -17,6 +17,7 @@ import gelato.GelatoSession;
 import gelato.server.manager.GelatoQIDManager;
 import gelato.server.manager.GenericRequestHandler;
 import gelato.server.manager.RequestConnection;
+import gelato.server.manager.implementation.DecodedRequest;
 import gelato.server.manager.implementation.requests.RequestFlushHandler;
 import gelato.server.manager.processchain.CloseRequestHandler;
 import gelato.server.manager.processchain.CreateRequestHandler;
@@ -52,6 +53,17 @@ public interface GelatoResourceController extends GenericRequestHandler {
 
   GelatoQIDManager getResourceManager();
 
+  boolean processRequest(
+      GelatoConnection connection,
+      GelatoFileDescriptor descriptor,
+      GelatoSession session,
+      DecodedRequest request);
+
+  // True when reads of the fid come from an immutable snapshot and need no ordering with writes
+  default boolean readsSnapshot(GelatoSession session, long clientFid) {
+    return false;
+  }
+
   void sendErrorMessage(RequestConnection connection, String message);
 
   void sendErrorMessage(
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.controllers.impl;
+
+import gelato.GelatoFileDescriptor;
+import gelato.server.manager.RequestConnection;
+import gelato.server.manager.implementation.BlockCache;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import protocol.messages.response.ReadRegionResponse;
+
+public class GelatoChannelFileControllerImpl extends GelatoFileControllerImpl {
+
+  public static final long DEFAULT_MAP_THRESHOLD = 64L * 1024 * 1024;
+  public static final int MAP_REGION_SIZE = 1 << 30;
+
+  private final Logger logger = LoggerFactory.getLogger(GelatoChannelFileControllerImpl.class);
+  private final FileChannel fileChannel;
+  private final long fileSize;
+  // Mapped and unmapped under the lock, readers only take a copy of the reference
+  private volatile MappedByteBuffer[] mappedRegions = null;
+  private int mapRegionSize = MAP_REGION_SIZE;
+  private boolean zeroCopy = true;
+
+  public GelatoChannelFileControllerImpl(Path filePath, GelatoFileDescriptor descriptor)
+      throws IOException {
+    this(filePath.getFileName().toString(), filePath, descriptor);
+  }
+
+  public GelatoChannelFileControllerImpl(
+      String fileName, Path filePath, GelatoFileDescriptor descriptor) throws IOException {
+    this(fileName, FileChannel.open(filePath, StandardOpenOption.READ), descriptor);
+  }
+
+  public GelatoChannelFileControllerImpl(
+      String fileName, FileChannel channel, GelatoFileDescriptor descriptor) throws IOException {
+    super(fileName, null, channel.size(), descriptor);
+    fileChannel = channel;
+    fileSize = channel.size();
+  }
+
+  public FileChannel getFileChannel() {
+    return fileChannel;
+  }
+
+  public long getFileSize() {
+    return fileSize;
+  }
+
+  // Replies carry the file region and the transport sends it with transferTo, the page cache
+  // already serves those so the block cache is only used once this is off
+  public boolean isZeroCopy() {
+    return zeroCopy;
+  }
+
+  public void setZeroCopy(boolean zeroCopy) {
+    this.zeroCopy = zeroCopy;
+  }
+
+  public boolean isMapped() {
+    return mappedRegions != null;
+  }
+
+  public int getMapRegionSize() {
+    return mapRegionSize;
+  }
+
+  // Must be set before the file is mapped
+  public void setMapRegionSize(int mapRegionSize) {
+    this.mapRegionSize = Math.max(1, mapRegionSize);
+  }
+
+  // Maps the whole file once it is large enough, smaller files stay on positional reads
+  public void enableMemoryMap() throws IOException {
+    enableMemoryMap(DEFAULT_MAP_THRESHOLD);
+  }
+
+  public synchronized void enableMemoryMap(long threshold) throws IOException {
+    if (mappedRegions != null || fileSize < threshold || fileSize == 0) {
+      return;
+    }
+    int regionSize = mapRegionSize;
+    int regionCount = (int) ((fileSize + regionSize - 1) / regionSize);
+    MappedByteBuffer[] regions = new MappedByteBuffer[regionCount];
+    for (int i = 0; i < regionCount; i++) {
+      long start = (long) i * regionSize;
+      regions[i] =
+          fileChannel.map(
+              FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, fileSize - start));
+    }
+    mappedRegions = regions;
+  }
+
+  public synchronized void close() throws IOException {
+    mappedRegions = null;
+    fileChannel.close();
+  }
+
+  @Override
+  public boolean readRequest(
+      RequestConnection connection,
+      GelatoFileDescriptor clientFileDescriptor,
+      long offset,
+      int numberOfBytes) {
+    try {
+      // Positional reads never touch the channel position, so readers do not need a lock
+      if (zeroCopy) {
+        replyRegions(connection, offset, numberOfBytes);
+        return true;
+      }
+      replyChunks(connection, this::readAt, fileSize, offset, numberOfBytes);
+      BlockCache blockCache = getBlockCache();
+      if (blockCache != null) {
+        blockCache.readAhead(
+            connection.getSession(),
+            clientFileDescriptor.getDescriptorId(),
+            this::readChannelAt,
+            getQID(),
+            fileSize,
+            offset,
+            numberOfBytes);
+      }
+      return true;
+    } catch (IOException e) {
+      logger.error("Error in reading file channel", e);
+      return false;
+    }
+  }
+
+  // Same chunking as replyChunks, the regions are only read when the transport sends them
+  private void replyRegions(RequestConnection connection, long offset, int numberOfBytes) {
+    int ioUnit = connection.getSession().getIoUnit();
+    int total = available(Math.max(numberOfBytes, 0), offset);
+    int ptr = 0;
+    do {
+      int copyByte = Math.min(total - ptr, ioUnit);
+      ReadRegionResponse regionResponse = new ReadRegionResponse();
+      regionResponse.setRegion(fileChannel, offset + ptr, copyByte);
+      connection.reply(regionResponse);
+      ptr += copyByte;
+    } while (ptr < total);
+  }
+
+  private int available(int length, long position) {
+    if (position < 0 || position >= fileSize) {
+      return 0;
+    }
+    return (int) Math.min(length, fileSize - position);
+  }
+
+  private int readAt(long position, byte[] buff, int off, int len) throws IOException {
+    BlockCache blockCache = getBlockCache();
+    if (blockCache != null) {
+      return blockCache.read(this::readChannelAt, getQID(), fileSize, position, buff, off, len);
+    }
+    return readChannelAt(position, buff, off, len);
+  }
+
+  private int readChannelAt(long position, byte[] buff, int off, int len) throws IOException {
+    int length = available(len, position);
+    if (length == 0) {
+      return 0;
+    }
+    MappedByteBuffer[] regions = mappedRegions;
+    if (regions != null) {
+      // Every region but the last is full, so the first one gives the size they were mapped with
+      long regionSize = regions[0].capacity();
+      int filled = 0;
+      while (filled < length) {
+        long at = position + filled;
+        ByteBuffer region = regions[(int) (at / regionSize)].duplicate();
+        region.position((int) (at % regionSize));
+        int count = Math.min(length - filled, region.remaining());
+        region.get(buff, off + filled, count);
+        filled += count;
+      }
+      return filled;
+    }
+    ByteBuffer target = ByteBuffer.wrap(buff, off, length);
+    while (target.hasRemaining()) {
+      int count = fileChannel.read(target, position + target.position() - off);
+      if (count == -1) {
+        break;
+      }
+    }
+    return target.position() - off;
+  }
+}
@@ -20,6 +20,7 @@ import gelato.server.manager.RequestConnection;
 import gelato.server.manager.controllers.GelatoDirectoryController;
 import gelato.server.manager.controllers.GelatoFileController;
 import gelato.server.manager.controllers.GelatoResourceController;
+import gelato.server.manager.implementation.DecodedRequest;
 import gelato.server.manager.implementation.requests.RequestFlushHandler;
 import gelato.server.manager.processchain.CloseRequestHandler;
 import gelato.server.manager.processchain.CreateRequestHandler;
@@ -30,11 +31,14 @@ import gelato.server.manager.processchain.StatRequestHandler;
 import gelato.server.manager.processchain.WalkRequestHandler;
 import gelato.server.manager.processchain.WriteRequestHandler;
 import gelato.server.manager.processchain.WriteStatRequestHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import protocol.ByteEncoder;
 import protocol.P9Protocol;
 import protocol.QID;
 import protocol.StatStruct;
@@ -49,39 +53,77 @@ public class GelatoDirectoryControllerImpl
     WalkRequestHandler,
     ReadRequestHandler,
     OpenRequestHandler,
-    StatRequestHandler {
+    StatRequestHandler,
+    CloseRequestHandler {
+
+  private static final String LISTING_VAR = "gelato.listing.";
 
   private final Logger logger = LoggerFactory.getLogger(GelatoDirectoryControllerImpl.class);
   private Map<String, GelatoDirectoryController> directories = new ConcurrentHashMap<>();
   private Map<String, GelatoFileController> files = new ConcurrentHashMap<>();
   private GelatoResourceController resourceController = new GelatoResourceControllerImpl();
+  private final CloseRequestHandler closeRequestHandler;
   private StatStruct parentDir = new StatStruct();
   private GelatoServerManager serverManager;
+  // Null while a child change has not been rebuilt into it yet
+  private volatile DirectoryListing listing = null;
+  private final AtomicLong listingChanges = new AtomicLong();
+  private final Runnable listingInvalidator = this::invalidateListing;
 
   public GelatoDirectoryControllerImpl(GelatoServerManager gelatoServerManager) {
     resourceController.setWalkRequestHandler(this);
     resourceController.setReadRequestHandler(this);
     resourceController.setOpenRequestHandler(this);
     resourceController.setStatRequestHandler(this);
+    closeRequestHandler = resourceController.getCloseRequestHandler();
+    resourceController.setCloseRequestHandler(this);
     resourceController.getStat().getQid().setType(P9Protocol.QID_DIR);
     serverManager = gelatoServerManager;
   }
 
   private long calculateSize() {
-    long count = 0;
+    return getListing().length;
+  }
+
+  // Children report every stat change here, so reads never scan them
+  public void invalidateListing() {
+    listingChanges.incrementAndGet();
+    listing = null;
+  }
+
+  private DirectoryListing getListing() {
+    DirectoryListing current = listing;
+    if (current != null) {
+      return current;
+    }
+    return buildListing();
+  }
+
+  // Entries come from each child's cached encoding, only a changed child encodes again
+  private synchronized DirectoryListing buildListing() {
+    DirectoryListing current = listing;
+    if (current != null) {
+      return current;
+    }
+    long changes = listingChanges.get();
+    List<byte[]> entries = new ArrayList<>();
     for (String dirName : directories.keySet()) {
-      GelatoDirectoryController dirHandler = directories.get(dirName);
-      if (dirName.equals(PARENT_DIR)) {
-        count += parentDir.getStatSize();
-      } else {
-        count += dirHandler.getResourceController().getStat().getStatSize();
+      StatStruct statStruct = directories.get(dirName).getResourceController().getStat();
+      if (dirName.equals(GelatoDirectoryController.PARENT_DIR)) {
+        statStruct = this.parentDir;
       }
+      entries.add(statStruct.EncodeStat());
     }
-
-    for (GelatoFileController fileHandler : files.values()) {
-      count += fileHandler.getResourceController().getStat().getStatSize();
+    for (GelatoFileController file : files.values()) {
+      entries.add(file.getResourceController().getStat().EncodeStat());
+    }
+    DirectoryListing built = new DirectoryListing(entries.toArray(new byte[entries.size()][]));
+    listing = built;
+    // A child that changed while this was built leaves it dirty for the next reader
+    if (listingChanges.get() != changes) {
+      listing = null;
     }
-    return count;
+    return built;
   }
 
   public GelatoServerManager getServerManager() {
@@ -133,9 +175,12 @@ public class GelatoDirectoryControllerImpl
   @Override
   public void mapPaths(GelatoDirectoryController parentDir) {
     directories.put(GelatoDirectoryController.PARENT_DIR, parentDir);
+    this.parentDir.setChangeListener(null);
     this.parentDir = parentDir.getResourceController().getStat().duplicate();
     this.parentDir.setName(GelatoDirectoryController.PARENT_DIR);
     this.parentDir.updateSize();
+    this.parentDir.setChangeListener(listingInvalidator);
+    invalidateListing();
   }
 
   @Override
@@ -149,6 +194,8 @@ public class GelatoDirectoryControllerImpl
       return;
     }
     directories.put(newDirectory.getDirectoryName(), newDirectory);
+    newDirectory.getResourceController().getStat().setChangeListener(listingInvalidator);
+    invalidateListing();
     newDirectory.mapPaths(this);
     serverManager.addResource(newDirectory);
   }
@@ -164,12 +211,16 @@ public class GelatoDirectoryControllerImpl
       return;
     }
     files.put(newFile.getResourceController().resourceName(), newFile);
+    newFile.getResourceController().getStat().setChangeListener(listingInvalidator);
+    invalidateListing();
     serverManager.addResource(newFile);
   }
 
   @Override
   public void removeFile(GelatoFileController file) {
     files.remove(file.getResourceController().resourceName());
+    file.getResourceController().getStat().setChangeListener(null);
+    invalidateListing();
     serverManager.removeResource(file);
   }
 
@@ -196,54 +247,69 @@ public class GelatoDirectoryControllerImpl
       GelatoFileDescriptor clientFileDescriptor,
       long offset,
       int numberOfBytes) {
-    if (directories.size() == 0 && files.size() == 0) {
+    DirectoryListing current =
+        listingFor(connection.getSession(), clientFileDescriptor.getDescriptorId(), offset);
+    if (offset >= current.length) {
       ReadResponse readResponse = new ReadResponse();
       connection.reply(readResponse);
+      return true;
+    }
+    // Pages always start on an entry, the client resumes at offset + bytes received
+    int index = Arrays.binarySearch(current.offsets, offset);
+    if (index < 0) {
+      sendErrorMessage(connection, "Invalid directory offset");
+      return true;
+    }
+    int limit = Math.min(numberOfBytes, connection.getSession().getIoUnit());
+    int end = index;
+    int pageSize = 0;
+    while (end < current.entries.length && pageSize + current.entries[end].length <= limit) {
+      pageSize += current.entries[end].length;
+      ++end;
+    }
+    if (end == index) {
+      sendErrorMessage(connection, "Read size too small for directory entry");
+      return true;
     }
 
-    // Serialise the whole struct to memory
-    byte[] statBuff = new byte[numberOfBytes];
+    byte[] page = new byte[pageSize];
     int ptr = 0;
-    byte[] encodedStat = null;
-
-    for (String dirName : directories.keySet()) {
-      GelatoResourceController dir = directories.get(dirName);
-      StatStruct statStruct = dir.getStat();
-      if (dirName.equals(GelatoDirectoryController.PARENT_DIR)) {
-        statStruct = this.parentDir;
-      }
-      encodedStat = statStruct.EncodeStat();
-      ByteEncoder.copyBytesTo(encodedStat, statBuff, ptr, encodedStat.length);
-      ptr += encodedStat.length;
+    for (int entry = index; entry < end; ++entry) {
+      System.arraycopy(current.entries[entry], 0, page, ptr, current.entries[entry].length);
+      ptr += current.entries[entry].length;
     }
+    ReadResponse readResponse = new ReadResponse();
+    readResponse.setData(page);
+    connection.reply(readResponse);
+    return true;
+  }
 
-    for (GelatoFileController files : files.values()) {
-      StatStruct statStruct = files.getResourceController().getStat();
-      encodedStat = statStruct.EncodeStat();
-      ByteEncoder.copyBytesTo(encodedStat, statBuff, ptr, encodedStat.length);
-      ptr += encodedStat.length;
+  // A listing read from offset 0 is frozen for the fid, so changes between pages cannot shift
+  // the entry boundaries under it
+  private DirectoryListing listingFor(GelatoSession session, long fid, long offset) {
+    if (session == null) {
+      return getListing();
+    }
+    String varName = LISTING_VAR + fid + "." + getQID().getLongFileId();
+    if (offset == 0) {
+      DirectoryListing current = getListing();
+      session.setSessionVar(varName, current);
+      return current;
     }
+    DirectoryListing frozen = (DirectoryListing) session.getSessionVar(varName);
+    return frozen != null ? frozen : getListing();
+  }
 
-    if (statBuff.length < P9Protocol.MAX_MSG_CONTENT_SIZE) {
-      ReadResponse readResponse = new ReadResponse();
-      readResponse.setData(statBuff);
-      connection.reply(readResponse);
-    } else {
-      ptr = 0;
-      while (ptr < statBuff.length) {
-        int copy = statBuff.length - ptr;
-        if (copy > P9Protocol.MAX_MSG_CONTENT_SIZE) {
-          copy = P9Protocol.MAX_MSG_CONTENT_SIZE;
-        }
-        encodedStat = new byte[copy];
-        ReadResponse readResponse = new ReadResponse();
-        ByteEncoder.copyBytesTo(encodedStat, statBuff, ptr, copy);
-        readResponse.setData(encodedStat);
-        connection.reply(readResponse);
-        ptr += copy;
-      }
+  // Clunk of the fid, its frozen listing goes with it
+  @Override
+  public boolean closeRequest(
+      RequestConnection connection, GelatoFileDescriptor clientFileDescriptor) {
+    GelatoSession session = connection.getSession();
+    if (session != null) {
+      session.removeSessionVar(
+          LISTING_VAR + clientFileDescriptor.getDescriptorId() + "." + getQID().getLongFileId());
     }
-    return true;
+    return closeRequestHandler.closeRequest(connection, clientFileDescriptor);
   }
 
   @Override
@@ -252,6 +318,7 @@ public class GelatoDirectoryControllerImpl
     if (mode == P9Protocol.OPEN_MODE_OREAD) {
       OpenResponse response = new OpenResponse();
       response.setFileQID(getQID());
+      response.setSizeIO(connection.getSession().getIoUnit());
       connection.reply(response);
       return true;
     }
@@ -262,7 +329,9 @@ public class GelatoDirectoryControllerImpl
   @Override
   public boolean statRequest(
       RequestConnection connection, GelatoFileDescriptor clientFileDescriptor) {
-    StatStruct selfStat = getStat();
+    // TSTAT runs shared, so the reply gets its own copy rather than changing the stat that other
+    // readers and the parent listing are encoding
+    StatStruct selfStat = getStat().duplicate();
     selfStat.setLength(calculateSize());
     StatResponse response = new StatResponse();
     response.setStatStruct(selfStat);
@@ -455,4 +524,31 @@ public class GelatoDirectoryControllerImpl
       Message request) {
     return resourceController.processRequest(connection, descriptor, session, request);
   }
+
+  @Override
+  public boolean processRequest(
+      GelatoConnection connection,
+      GelatoFileDescriptor descriptor,
+      GelatoSession session,
+      DecodedRequest request) {
+    return resourceController.processRequest(connection, descriptor, session, request);
+  }
+
+  private static class DirectoryListing {
+
+    private final byte[][] entries;
+    private final long[] offsets;
+    private final long length;
+
+    DirectoryListing(byte[][] entries) {
+      this.entries = entries;
+      offsets = new long[entries.length];
+      long ptr = 0;
+      for (int entry = 0; entry < entries.length; ++entry) {
+        offsets[entry] = ptr;
+        ptr += entries[entry].length;
+      }
+      length = ptr;
+    }
+  }
 }
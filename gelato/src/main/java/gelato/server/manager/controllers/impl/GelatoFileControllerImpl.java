@@ -18,6 +18,8 @@ import gelato.server.manager.GelatoQIDManager;
 import gelato.server.manager.RequestConnection;
 import gelato.server.manager.controllers.GelatoFileController;
 import gelato.server.manager.controllers.GelatoResourceController;
+import gelato.server.manager.implementation.BlockCache;
+import gelato.server.manager.implementation.DecodedRequest;
 import gelato.server.manager.implementation.requests.RequestFlushHandler;
 import gelato.server.manager.processchain.CloseRequestHandler;
 import gelato.server.manager.processchain.CreateRequestHandler;
@@ -30,7 +32,6 @@ import gelato.server.manager.processchain.WriteRequestHandler;
 import gelato.server.manager.processchain.WriteStatRequestHandler;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import protocol.P9Protocol;
@@ -42,11 +43,17 @@ import protocol.messages.response.ReadResponse;
 import protocol.messages.response.StatResponse;
 
 public class GelatoFileControllerImpl
-    implements GelatoFileController, ReadRequestHandler, StatRequestHandler, OpenRequestHandler {
+    implements GelatoFileController,
+        ReadRequestHandler,
+        StatRequestHandler,
+        OpenRequestHandler,
+        CloseRequestHandler {
 
   private final Logger logger = LoggerFactory.getLogger(GelatoFileControllerImpl.class);
   private GelatoResourceController resourceController = new GelatoResourceControllerImpl();
-  private InputStream fileInputStream;
+  private final CloseRequestHandler closeRequestHandler;
+  private volatile InputStream fileInputStream;
+  private BlockCache blockCache = null;
 
   public GelatoFileControllerImpl(
       String fileName,
@@ -56,6 +63,8 @@ public class GelatoFileControllerImpl
     resourceController.setReadRequestHandler(this);
     resourceController.setOpenRequestHandler(this);
     resourceController.setStatRequestHandler(this);
+    closeRequestHandler = resourceController.getCloseRequestHandler();
+    resourceController.setCloseRequestHandler(this);
     fileInputStream = inputStream;
     resourceController.getStat().setName(fileName);
     resourceController.getStat().setLength(resourceSize);
@@ -68,8 +77,22 @@ public class GelatoFileControllerImpl
     return fileInputStream;
   }
 
+  // New content is a new QID version, so no cached block of the old stream is served for it
   public void setFileInputStream(InputStream fileInputStream) {
     this.fileInputStream = fileInputStream;
+    getQID().setVersion(getQID().getVersion() + 1);
+    if (blockCache != null) {
+      blockCache.invalidate(getQID().getLongFileId());
+    }
+  }
+
+  public BlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  // Reads are served from the shared cache, the stream is only touched for missing blocks
+  public void setBlockCache(BlockCache blockCache) {
+    this.blockCache = blockCache;
   }
 
   // Defaults
@@ -80,6 +103,7 @@ public class GelatoFileControllerImpl
     if (mode == P9Protocol.OPEN_MODE_OREAD) {
       OpenResponse response = new OpenResponse();
       response.setFileQID(getQID());
+      response.setSizeIO(connection.getSession().getIoUnit());
       connection.reply(response);
       return true;
     }
@@ -93,28 +117,22 @@ public class GelatoFileControllerImpl
       GelatoFileDescriptor clientFileDescriptor,
       long offset,
       int numberOfBytes) {
-    // Reset stream
+    if (blockCache != null && fileInputStream != null) {
+      return cachedRead(connection, clientFileDescriptor, offset, numberOfBytes);
+    }
     try {
-      int ptr = 0;
-      fileInputStream.reset();
-      fileInputStream.skip(offset);
-      byte[] buff = new byte[P9Protocol.MAX_MSG_CONTENT_SIZE];
-
-      while (ptr < numberOfBytes) {
-        int copyByte = numberOfBytes - ptr;
-        if (copyByte > P9Protocol.MAX_MSG_CONTENT_SIZE) {
-          copyByte = (int) P9Protocol.MAX_MSG_CONTENT_SIZE;
-        }
-        // Copy stream to buffer
-        for (int i = 0; i < copyByte; ++i) {
-          buff[i] = (byte) fileInputStream.read();
-        }
-        ReadResponse readResponse = new ReadResponse();
-        readResponse.setData(Arrays.copyOf(buff, copyByte));
-        connection.reply(readResponse);
-        ptr += copyByte;
+      // The stream position is shared, concurrent reads only hold it while copying out
+      synchronized (fileInputStream) {
+        fileInputStream.reset();
+        fileInputStream.skip(offset);
+        // Chunks follow each other, the stream is already where the next one starts
+        replyChunks(
+            connection,
+            (position, buff, off, len) -> readStream(buff, off, len),
+            getStat().getLength(),
+            offset,
+            numberOfBytes);
       }
-
       return true;
     } catch (IOException e) {
       logger.error("Error in reading Input stream", e);
@@ -122,6 +140,106 @@ public class GelatoFileControllerImpl
     }
   }
 
+  private boolean cachedRead(
+      RequestConnection connection,
+      GelatoFileDescriptor clientFileDescriptor,
+      long offset,
+      int numberOfBytes) {
+    long fileSize = getStat().getLength();
+    BlockCache.BlockSource source = this::readStreamAt;
+    try {
+      replyChunks(
+          connection,
+          (position, buff, off, len) ->
+              blockCache.read(source, getQID(), fileSize, position, buff, off, len),
+          fileSize,
+          offset,
+          numberOfBytes);
+    } catch (IOException e) {
+      logger.error("Error in reading Input stream", e);
+      return false;
+    }
+    blockCache.readAhead(
+        connection.getSession(),
+        clientFileDescriptor.getDescriptorId(),
+        source,
+        getQID(),
+        fileSize,
+        offset,
+        numberOfBytes);
+    return true;
+  }
+
+  // One RREAD per IO unit, sized to what the file still has from offset and replied as soon as it
+  // is filled. A read at or past the end gets a single empty RREAD.
+  protected void replyChunks(
+      RequestConnection connection,
+      BlockCache.BlockSource source,
+      long fileSize,
+      long offset,
+      int numberOfBytes)
+      throws IOException {
+    int ioUnit = connection.getSession().getIoUnit();
+    int available = 0;
+    if (numberOfBytes > 0 && offset >= 0 && offset < fileSize) {
+      available = (int) Math.min(numberOfBytes, fileSize - offset);
+    }
+    int ptr = 0;
+    do {
+      int copyByte = Math.min(available - ptr, ioUnit);
+      byte[] buff = new byte[copyByte];
+      int filled = copyByte == 0 ? 0 : source.read(offset + ptr, buff, 0, copyByte);
+      ReadResponse readResponse = new ReadResponse();
+      readResponse.setData(buff, 0, filled);
+      connection.reply(readResponse);
+      if (filled < copyByte) {
+        return;
+      }
+      ptr += copyByte;
+    } while (ptr < available);
+  }
+
+  private int readStream(byte[] buff, int off, int len) throws IOException {
+    int filled = 0;
+    while (filled < len) {
+      int count = fileInputStream.read(buff, off + filled, len - filled);
+      if (count == -1) {
+        break;
+      }
+      filled += count;
+    }
+    return filled;
+  }
+
+  // Block loads share the stream with uncached reads, so they hold it the same way
+  private int readStreamAt(long position, byte[] buff, int off, int len) throws IOException {
+    synchronized (fileInputStream) {
+      fileInputStream.reset();
+      long remaining = position;
+      while (remaining > 0) {
+        long skipped = fileInputStream.skip(remaining);
+        if (skipped <= 0) {
+          return 0;
+        }
+        remaining -= skipped;
+      }
+      return readStream(buff, off, len);
+    }
+  }
+
+  // Clunk ends the read stream of the fid
+  @Override
+  public boolean closeRequest(
+      RequestConnection connection, GelatoFileDescriptor clientFileDescriptor) {
+    if (blockCache != null) {
+      blockCache.release(
+          connection.getSession(),
+          clientFileDescriptor.getDescriptorId(),
+          getQID().getLongFileId());
+    }
+    return closeRequestHandler.closeRequest(connection, clientFileDescriptor);
+  }
+
   @Override
   public boolean statRequest(
       RequestConnection connection, GelatoFileDescriptor clientFileDescriptor) {
@@ -318,6 +436,15 @@ public class GelatoFileControllerImpl
     return resourceController.processRequest(connection, descriptor, session, request);
   }
 
+  @Override
+  public boolean processRequest(
+      GelatoConnection connection,
+      GelatoFileDescriptor descriptor,
+      GelatoSession session,
+      DecodedRequest request) {
+    return resourceController.processRequest(connection, descriptor, session, request);
+  }
+
   @Override
   public GelatoResourceController getResourceController() {
     return resourceController;
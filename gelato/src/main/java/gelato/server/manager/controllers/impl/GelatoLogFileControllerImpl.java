@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.controllers.impl;
+
+import gelato.GelatoFileDescriptor;
+import gelato.GelatoSession;
+import gelato.server.manager.RequestConnection;
+import gelato.server.manager.implementation.BlockCache;
+import gelato.server.manager.implementation.SegmentLog;
+import gelato.server.manager.processchain.WriteRequestHandler;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import protocol.P9Protocol;
+import protocol.messages.response.OpenResponse;
+import protocol.messages.response.WriteResponse;
+
+// Read write file stored in a shared segment log, a TWRITE is answered once its record is durable
+// and carries the file to the next QID version. Opening for read pins the version the client saw
+// until the fid is clunked, so readers never wait on or see half of a write.
+public class GelatoLogFileControllerImpl extends GelatoFileControllerImpl
+    implements WriteRequestHandler {
+
+  private static final String SNAPSHOT_VAR = "gelato.snapshot.";
+
+  private final Logger logger = LoggerFactory.getLogger(GelatoLogFileControllerImpl.class);
+  private final SegmentLog segmentLog;
+  private final long logFileId;
+
+  public GelatoLogFileControllerImpl(
+      String fileName, SegmentLog segmentLog, GelatoFileDescriptor descriptor) {
+    this(fileName, segmentLog, descriptor.getQid().getLongFileId(), descriptor);
+  }
+
+  // The log file id has to stay the same across restarts for the replayed data to be found
+  public GelatoLogFileControllerImpl(
+      String fileName, SegmentLog segmentLog, long logFileId, GelatoFileDescriptor descriptor) {
+    super(fileName, null, segmentLog.getLength(logFileId), descriptor);
+    this.segmentLog = segmentLog;
+    this.logFileId = logFileId;
+    setWriteRequestHandler(this);
+    getQID().setVersion(segmentLog.getSnapshot(logFileId).getVersion());
+  }
+
+  public SegmentLog getSegmentLog() {
+    return segmentLog;
+  }
+
+  public long getLogFileId() {
+    return logFileId;
+  }
+
+  @Override
+  public boolean openRequest(
+      RequestConnection connection, GelatoFileDescriptor clientFileDescriptor, byte mode) {
+    if ((mode & P9Protocol.OPEN_MODE_OTRUNC) != 0) {
+      sendErrorMessage(connection, "Truncate is not supported");
+      return false;
+    }
+    if ((mode & 0x3) == P9Protocol.OPEN_MODE_OEXEC) {
+      sendErrorMessage(connection, "Only READ and WRITE modes are allowed");
+      return false;
+    }
+    if ((mode & 0x3) == P9Protocol.OPEN_MODE_OREAD) {
+      pinSnapshot(connection.getSession(), clientFileDescriptor.getDescriptorId());
+    }
+    OpenResponse response = new OpenResponse();
+    response.setFileQID(getQID());
+    response.setSizeIO(connection.getSession().getIoUnit());
+    connection.reply(response);
+    return true;
+  }
+
+  @Override
+  public boolean readRequest(
+      RequestConnection connection,
+      GelatoFileDescriptor clientFileDescriptor,
+      long offset,
+      int numberOfBytes) {
+    SegmentLog.Snapshot snapshot =
+        pinForRead(getPin(connection.getSession(), clientFileDescriptor.getDescriptorId()));
+    try {
+      // Blocks of a version never change, so the shared cache can hold them under it
+      BlockCache blockCache = getBlockCache();
+      BlockCache.BlockSource source =
+          (position, buff, off, len) -> segmentLog.read(snapshot, position, buff, off, len);
+      long path = getQID().getLongFileId();
+      BlockCache.BlockSource cached =
+          (position, buff, off, len) ->
+              blockCache.read(
+                  source,
+                  path,
+                  snapshot.getVersion(),
+                  snapshot.getLength(),
+                  position,
+                  buff,
+                  off,
+                  len);
+      replyChunks(
+          connection,
+          blockCache == null ? source : cached,
+          snapshot.getLength(),
+          offset,
+          numberOfBytes);
+    } catch (IOException e) {
+      logger.error("Error in reading segment log", e);
+      return false;
+    } finally {
+      unpin(snapshot);
+    }
+    return true;
+  }
+
+  @Override
+  public boolean writeRequest(
+      RequestConnection connection,
+      GelatoFileDescriptor clientFileDescriptor,
+      long offset,
+      byte[] data) {
+    return writeRequest(connection, clientFileDescriptor, offset, ByteBuffer.wrap(data));
+  }
+
+  // The frame slice goes straight into the segment, nothing is buffered on the heap
+  @Override
+  public boolean writeRequest(
+      RequestConnection connection,
+      GelatoFileDescriptor clientFileDescriptor,
+      long offset,
+      ByteBuffer data) {
+    int length = data.remaining();
+    if (!SegmentLog.validRange(offset, length)) {
+      sendErrorMessage(connection, "Write offset out of range");
+      return false;
+    }
+    try {
+      long sequence = segmentLog.append(logFileId, offset, data);
+      segmentLog.commit(sequence);
+      publishVersion();
+    } catch (IOException e) {
+      logger.error("Error in writing segment log", e);
+      sendErrorMessage(connection, "Write failed");
+      return false;
+    }
+    WriteResponse response = new WriteResponse();
+    response.setBytesWritten(length);
+    connection.reply(response);
+    return true;
+  }
+
+  // Clunk drops the snapshot the fid was reading
+  @Override
+  public boolean closeRequest(
+      RequestConnection connection, GelatoFileDescriptor clientFileDescriptor) {
+    GelatoSession session = connection.getSession();
+    long clientFid = clientFileDescriptor.getDescriptorId();
+    SnapshotPin pin = getPin(session, clientFid);
+    if (pin != null) {
+      session.removeSessionVar(SNAPSHOT_VAR + clientFid + "." + logFileId);
+      releasePin(pin);
+    }
+    return super.closeRequest(connection, clientFileDescriptor);
+  }
+
+  @Override
+  public boolean readsSnapshot(GelatoSession session, long clientFid) {
+    SnapshotPin pin = getPin(session, clientFid);
+    return pin != null && pin.snapshot != null;
+  }
+
+  // The QID is shared with the stat, moving its version invalidates cached stat encodings
+  private synchronized void publishVersion() {
+    SegmentLog.Snapshot snapshot = segmentLog.getSnapshot(logFileId);
+    if (snapshot.getVersion() <= getQID().getVersion()) {
+      return;
+    }
+    getQID().setVersion(snapshot.getVersion());
+    getStat().setLength(snapshot.getLength());
+    getStat().updateSize();
+  }
+
+  private SnapshotPin getPin(GelatoSession session, long clientFid) {
+    return (SnapshotPin) session.getSessionVar(SNAPSHOT_VAR + clientFid + "." + logFileId);
+  }
+
+  private void pinSnapshot(GelatoSession session, long clientFid) {
+    SnapshotPin pin = getPin(session, clientFid);
+    if (pin == null) {
+      pin = new SnapshotPin();
+      session.setSessionVar(SNAPSHOT_VAR + clientFid + "." + logFileId, pin);
+    }
+    releasePin(pin);
+    synchronized (pin) {
+      pin.snapshot = segmentLog.pin(logFileId);
+    }
+  }
+
+  // Reads hold their own pin so a clunk racing an unordered read cannot free its segments
+  private SegmentLog.Snapshot pinForRead(SnapshotPin pin) {
+    if (pin != null) {
+      synchronized (pin) {
+        if (pin.snapshot != null) {
+          return segmentLog.pin(pin.snapshot);
+        }
+      }
+    }
+    return segmentLog.pin(logFileId);
+  }
+
+  private void releasePin(SnapshotPin pin) {
+    SegmentLog.Snapshot snapshot;
+    synchronized (pin) {
+      snapshot = pin.snapshot;
+      pin.snapshot = null;
+    }
+    if (snapshot != null) {
+      unpin(snapshot);
+    }
+  }
+
+  private void unpin(SegmentLog.Snapshot snapshot) {
+    try {
+      segmentLog.unpin(snapshot);
+    } catch (IOException e) {
+      logger.error("Unable to reclaim compacted segments", e);
+    }
+  }
+
+  // Reads that fetched the holder before a clunk removed it still go through its lock
+  private static final class SnapshotPin {
+    private volatile SegmentLog.Snapshot snapshot = null;
+  }
+}
@@ -17,6 +17,7 @@ import gelato.GelatoSession;
 import gelato.server.manager.GelatoQIDManager;
 import gelato.server.manager.RequestConnection;
 import gelato.server.manager.controllers.GelatoResourceController;
+import gelato.server.manager.implementation.DecodedRequest;
 import gelato.server.manager.implementation.requests.RequestFlushHandler;
 import gelato.server.manager.processchain.CloseRequestHandler;
 import gelato.server.manager.processchain.CreateRequestHandler;
@@ -35,14 +36,11 @@ import protocol.P9Protocol;
 import protocol.QID;
 import protocol.StatStruct;
 import protocol.messages.Message;
-import protocol.messages.request.CloseRequest;
 import protocol.messages.request.CreateRequest;
-import protocol.messages.request.OpenRequest;
-import protocol.messages.request.ReadRequest;
-import protocol.messages.request.RemoveRequest;
-import protocol.messages.request.StatRequest;
-import protocol.messages.request.WalkRequest;
-import protocol.messages.request.WriteRequest;
+import protocol.messages.request.OpenRequestView;
+import protocol.messages.request.ReadRequestView;
+import protocol.messages.request.WalkRequestView;
+import protocol.messages.request.WriteRequestView;
 import protocol.messages.request.WriteStatRequest;
 import protocol.messages.response.ErrorMessage;
 
@@ -67,6 +65,22 @@ public class GelatoResourceControllerImpl implements GelatoResourceController {
   private RequestFlushHandler flushHandler = new DefaultFlushHandler();
   private ReadRequestHandler readRequestHandler = new NotSupportedHandler();
 
+  // Indexed by message type so dispatch is a single lookup instead of a chain of compares
+  private static final RequestDispatch[] DISPATCH = new RequestDispatch[256];
+
+  static {
+    DISPATCH[P9Protocol.TOPEN & 0xff] = GelatoResourceControllerImpl::dispatchOpen;
+    DISPATCH[P9Protocol.TWALK & 0xff] = GelatoResourceControllerImpl::dispatchWalk;
+    DISPATCH[P9Protocol.TFLUSH & 0xff] = GelatoResourceControllerImpl::dispatchFlush;
+    DISPATCH[P9Protocol.TREMOVE & 0xff] = GelatoResourceControllerImpl::dispatchRemove;
+    DISPATCH[P9Protocol.TWSTAT & 0xff] = GelatoResourceControllerImpl::dispatchWriteStat;
+    DISPATCH[P9Protocol.TWRITE & 0xff] = GelatoResourceControllerImpl::dispatchWrite;
+    DISPATCH[P9Protocol.TCLOSE & 0xff] = GelatoResourceControllerImpl::dispatchClose;
+    DISPATCH[P9Protocol.TREAD & 0xff] = GelatoResourceControllerImpl::dispatchRead;
+    DISPATCH[P9Protocol.TSTAT & 0xff] = GelatoResourceControllerImpl::dispatchStat;
+    DISPATCH[P9Protocol.TCREATE & 0xff] = GelatoResourceControllerImpl::dispatchCreate;
+  }
+
   public GelatoResourceControllerImpl() {
 
     resourceStat.setAccessTime(Instant.now().getEpochSecond());
@@ -112,6 +126,10 @@ public class GelatoResourceControllerImpl implements GelatoResourceController {
 
   @Override
   public void setStat(StatStruct newStat) {
+    // Whoever listens for changes to the old stat, the parent directory listing, follows it
+    Runnable listener = resourceStat.getChangeListener();
+    resourceStat.setChangeListener(null);
+    newStat.setChangeListener(listener);
     resourceStat = newStat;
     resourceStat.updateSize();
     resourceStat.setQid(resourceQID);
@@ -152,78 +170,99 @@ public class GelatoResourceControllerImpl implements GelatoResourceController {
       GelatoFileDescriptor descriptor,
       GelatoSession session,
       Message request) {
+    return processRequest(connection, descriptor, session, new DecodedRequest(request));
+  }
+
+  @Override
+  public boolean processRequest(
+      GelatoConnection connection,
+      GelatoFileDescriptor descriptor,
+      GelatoSession session,
+      DecodedRequest request) {
     RequestConnection requestConnection = new RequestConnection();
     requestConnection.setConnection(connection);
     requestConnection.setDescriptor(descriptor);
     requestConnection.setSession(session);
     requestConnection.setResourceController(this);
-    requestConnection.setTransactionId(request.tag);
-
-    if (request.messageType == P9Protocol.TOPEN) {
-      OpenRequest openRequest = Decoder.decodeOpenRequest(request);
-      GelatoFileDescriptor clientDescriptor = new GelatoFileDescriptor();
-      clientDescriptor.setQid(getQID());
-      clientDescriptor.setRawFileDescriptor(openRequest.getFileDescriptor());
-      return openRequestHandler.openRequest(
-          requestConnection, clientDescriptor, openRequest.getMode());
-    } else if (request.messageType == P9Protocol.TWALK) {
-      WalkRequest walkRequest = Decoder.decodeWalkRequest(request);
-      GelatoFileDescriptor clientDescriptor =
-          generateDescriptor(getQID(), walkRequest.getNewDecriptor());
-      return walkRequestHandler.walkRequest(
-          requestConnection, walkRequest.getTargetFile(), clientDescriptor);
-    } else if (request.messageType == P9Protocol.TFLUSH) {
-      return flushHandler.processRequest(
-          connection, descriptor, session, Decoder.decodeFlushRequest(request));
-    } else if (request.messageType == P9Protocol.TREMOVE) {
-      RemoveRequest removeRequest = Decoder.decodeRemoveRequest(request);
-      GelatoFileDescriptor descriptor1 =
-          generateDescriptor(getQID(), removeRequest.getFileDescriptor());
-      return removeRequestHandler.removeRequest(requestConnection, descriptor1);
-    } else if (request.messageType == P9Protocol.TWSTAT) {
-      WriteStatRequest writeStatRequest = Decoder.decodeStatWriteRequest(request);
-      GelatoFileDescriptor descriptor1 =
-          generateDescriptor(getQID(), writeStatRequest.getFileDescriptor());
-      return writeStatRequestHandler.writeStatRequest(
-          requestConnection, descriptor1, writeStatRequest.getStatStruct());
-    } else if (request.messageType == P9Protocol.TWRITE) {
-      WriteRequest writeRequest = Decoder.decodeWriteRequest(request);
-      GelatoFileDescriptor descriptor1 =
-          generateDescriptor(getQID(), writeRequest.getFileDescriptor());
-      return writeRequestHandler.writeRequest(
-          requestConnection,
-          descriptor1,
-          writeRequest.getFileOffset(),
-          writeRequest.getWriteData());
-    } else if (request.messageType == P9Protocol.TCLOSE) {
-      CloseRequest closeRequest = Decoder.decodeCloseRequest(request);
-      GelatoFileDescriptor descriptor1 = generateDescriptor(getQID(), closeRequest.getFileID());
-      return closeRequestHandler.closeRequest(requestConnection, descriptor1);
-    } else if (request.messageType == P9Protocol.TREAD) {
-      ReadRequest readRequest = Decoder.decodeReadRequest(request);
-      GelatoFileDescriptor descriptor1 =
-          generateDescriptor(getQID(), readRequest.getFileDescriptor());
-      return readRequestHandler.readRequest(
-          requestConnection,
-          descriptor1,
-          readRequest.getFileOffset(),
-          readRequest.getBytesToRead());
-    } else if (request.messageType == P9Protocol.TSTAT) {
-      StatRequest statRequest = Decoder.decodeStatRequest(request);
-      GelatoFileDescriptor descriptor1 =
-          generateDescriptor(getQID(), statRequest.getFileDescriptor());
-      return statRequestHandler.statRequest(requestConnection, descriptor1);
-    } else if (request.messageType == P9Protocol.TCREATE) {
-      CreateRequest createRequest = Decoder.decodeCreateRequest(request);
-      return createRequestHandler.createRequest(
-          requestConnection,
-          createRequest.getFileName(),
-          createRequest.getPermission(),
-          createRequest.getMode());
+    requestConnection.setTransactionId(request.getTag());
+
+    RequestDispatch dispatch = DISPATCH[request.messageType() & 0xff];
+    if (dispatch == null) {
+      logger.error("Unable to Process Request");
+      return false;
     }
+    return dispatch.dispatch(this, requestConnection, request);
+  }
+
+  private boolean dispatchOpen(RequestConnection connection, DecodedRequest request) {
+    OpenRequestView openRequest = Decoder.viewOpenRequest(request.getFrame());
+    GelatoFileDescriptor clientDescriptor = new GelatoFileDescriptor();
+    clientDescriptor.setQid(getQID());
+    clientDescriptor.setRawFileDescriptor(openRequest.getFileDescriptor());
+    return openRequestHandler.openRequest(connection, clientDescriptor, openRequest.getMode());
+  }
+
+  private boolean dispatchWalk(RequestConnection connection, DecodedRequest request) {
+    WalkRequestView walkRequest = Decoder.viewWalkRequest(request.getFrame());
+    GelatoFileDescriptor clientDescriptor =
+        generateDescriptor(getQID(), walkRequest.getNewDecriptor());
+    return walkRequestHandler.walkRequest(
+        connection, walkRequest.getTargetFile(), clientDescriptor);
+  }
+
+  private boolean dispatchFlush(RequestConnection connection, DecodedRequest request) {
+    return flushHandler.processRequest(
+        connection.getConnection(),
+        connection.getDescriptor(),
+        connection.getSession(),
+        Decoder.decodeFlushRequest(request.getMessage()));
+  }
+
+  private boolean dispatchRemove(RequestConnection connection, DecodedRequest request) {
+    GelatoFileDescriptor descriptor = generateDescriptor(getQID(), request.getFileDescriptor());
+    return removeRequestHandler.removeRequest(connection, descriptor);
+  }
+
+  private boolean dispatchWriteStat(RequestConnection connection, DecodedRequest request) {
+    WriteStatRequest writeStatRequest = Decoder.decodeStatWriteRequest(request.getMessage());
+    GelatoFileDescriptor descriptor =
+        generateDescriptor(getQID(), writeStatRequest.getFileDescriptor());
+    return writeStatRequestHandler.writeStatRequest(
+        connection, descriptor, writeStatRequest.getStatStruct());
+  }
+
+  private boolean dispatchWrite(RequestConnection connection, DecodedRequest request) {
+    WriteRequestView writeRequest = Decoder.viewWriteRequest(request.getFrame());
+    GelatoFileDescriptor descriptor =
+        generateDescriptor(getQID(), writeRequest.getFileDescriptor());
+    return writeRequestHandler.writeRequest(
+        connection, descriptor, writeRequest.getFileOffset(), writeRequest.getWriteData());
+  }
 
-    logger.error("Unable to Process Request");
-    return false;
+  private boolean dispatchClose(RequestConnection connection, DecodedRequest request) {
+    GelatoFileDescriptor descriptor = generateDescriptor(getQID(), request.getFileDescriptor());
+    return closeRequestHandler.closeRequest(connection, descriptor);
+  }
+
+  private boolean dispatchRead(RequestConnection connection, DecodedRequest request) {
+    ReadRequestView readRequest = Decoder.viewReadRequest(request.getFrame());
+    GelatoFileDescriptor descriptor = generateDescriptor(getQID(), readRequest.getFileDescriptor());
+    return readRequestHandler.readRequest(
+        connection, descriptor, readRequest.getFileOffset(), readRequest.getBytesToRead());
+  }
+
+  private boolean dispatchStat(RequestConnection connection, DecodedRequest request) {
+    GelatoFileDescriptor descriptor = generateDescriptor(getQID(), request.getFileDescriptor());
+    return statRequestHandler.statRequest(connection, descriptor);
+  }
+
+  private boolean dispatchCreate(RequestConnection connection, DecodedRequest request) {
+    CreateRequest createRequest = Decoder.decodeCreateRequest(request.getMessage());
+    return createRequestHandler.createRequest(
+        connection,
+        createRequest.getFileName(),
+        createRequest.getPermission(),
+        createRequest.getMode());
   }
 
   @Override
@@ -366,4 +405,11 @@ public class GelatoResourceControllerImpl implements GelatoResourceController {
   public void setReadRequestHandler(ReadRequestHandler readRequestHandler) {
     this.readRequestHandler = readRequestHandler;
   }
+
+  private interface RequestDispatch {
+    boolean dispatch(
+        GelatoResourceControllerImpl controller,
+        RequestConnection connection,
+        DecodedRequest request);
+  }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.implementation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Decides per resource whether shared requests may run in parallel. A resource starts KEYED and is
+// promoted to PARALLEL once a window shows a high request rate, requests queueing behind each
+// other and no writes. Any write demotes it straight back to KEYED, opens and clunks do not.
+// Resources idle for a number of windows are forgotten and start over as KEYED.
+public class AdaptiveResourcePolicy {
+
+  public static final long DEFAULT_WINDOW_MILLIS = 1000;
+  public static final int DEFAULT_PROMOTE_REQUESTS = 200;
+  public static final long DEFAULT_PROMOTE_WAIT_MICROS = 200;
+  public static final int DEFAULT_IDLE_WINDOWS = 30;
+
+  private final Logger logger = LoggerFactory.getLogger(AdaptiveResourcePolicy.class);
+  private final Map<Long, ResourceStats> resources = new ConcurrentHashMap<>();
+  private final LongAdder promotions = new LongAdder();
+  private final LongAdder demotions = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+  private volatile long windowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WINDOW_MILLIS);
+  private volatile int promoteRequests = DEFAULT_PROMOTE_REQUESTS;
+  private volatile long promoteWaitNanos =
+      TimeUnit.MICROSECONDS.toNanos(DEFAULT_PROMOTE_WAIT_MICROS);
+  private volatile int idleWindows = DEFAULT_IDLE_WINDOWS;
+
+  public enum ResourceMode {
+    KEYED,
+    PARALLEL
+  }
+
+  // Records the request and answers whether it may run shared with others on the resource
+  public boolean admitShared(long key, boolean sharedRequest, boolean writeRequest) {
+    sweepIdle(System.nanoTime());
+    while (true) {
+      ResourceStats stats = resources.computeIfAbsent(key, ResourceStats::new);
+      synchronized (stats) {
+        // Swept between the lookup and the lock, the next lookup creates a fresh one
+        if (stats.evicted) {
+          continue;
+        }
+        long now = System.nanoTime();
+        stats.lastSeen = now;
+        if (now - stats.windowStart >= windowNanos) {
+          evaluate(stats, now);
+        }
+        ++stats.windowRequests;
+        if (writeRequest) {
+          ++stats.windowWrites;
+          if (stats.mode == ResourceMode.PARALLEL) {
+            changeMode(stats, ResourceMode.KEYED, "write");
+          }
+        }
+        return sharedRequest && stats.mode == ResourceMode.PARALLEL;
+      }
+    }
+  }
+
+  // At most one sweep per window, whichever request gets there first does it
+  private void sweepIdle(long now) {
+    long last = lastSweep.get();
+    if (now - last < windowNanos || !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    long idleNanos = windowNanos * idleWindows;
+    for (ResourceStats stats : resources.values()) {
+      synchronized (stats) {
+        if (now - stats.lastSeen >= idleNanos) {
+          stats.evicted = true;
+          resources.remove(stats.key, stats);
+          evictions.increment();
+        }
+      }
+    }
+  }
+
+  public void recordWait(long key, long waitNanos) {
+    ResourceStats stats = resources.get(key);
+    if (stats == null) {
+      return;
+    }
+    synchronized (stats) {
+      stats.windowWaitNanos += waitNanos;
+      ++stats.windowWaits;
+    }
+  }
+
+  private void evaluate(ResourceStats stats, long now) {
+    double seconds = (now - stats.windowStart) / 1e9;
+    stats.lastRate = (long) (stats.windowRequests / seconds);
+    stats.lastWaitNanos = stats.windowWaits == 0 ? 0 : stats.windowWaitNanos / stats.windowWaits;
+    stats.lastWrites = stats.windowWrites;
+    if (stats.mode == ResourceMode.KEYED
+        && stats.windowWrites == 0
+        && stats.lastRate >= promoteRequests
+        && stats.lastWaitNanos >= promoteWaitNanos) {
+      changeMode(stats, ResourceMode.PARALLEL, "hot and read only");
+    }
+    stats.windowStart = now;
+    stats.windowRequests = 0;
+    stats.windowWrites = 0;
+    stats.windowWaits = 0;
+    stats.windowWaitNanos = 0;
+  }
+
+  private void changeMode(ResourceStats stats, ResourceMode mode, String reason) {
+    stats.mode = mode;
+    stats.lastDecision = reason;
+    if (mode == ResourceMode.PARALLEL) {
+      promotions.increment();
+    } else {
+      demotions.increment();
+    }
+    logger.info(
+        "Resource "
+            + Long.toString(stats.key)
+            + " -> "
+            + mode
+            + " ("
+            + reason
+            + ", "
+            + Long.toString(stats.lastRate)
+            + " req/s, wait "
+            + Long.toString(stats.lastWaitNanos / 1000)
+            + "us)");
+  }
+
+  public ResourceMode getResourceMode(long key) {
+    ResourceStats stats = resources.get(key);
+    if (stats == null) {
+      return ResourceMode.KEYED;
+    }
+    synchronized (stats) {
+      return stats.mode;
+    }
+  }
+
+  public Map<Long, ResourceMode> getResourceModes() {
+    Map<Long, ResourceMode> modes = new HashMap<>();
+    for (ResourceStats stats : resources.values()) {
+      synchronized (stats) {
+        modes.put(stats.key, stats.mode);
+      }
+    }
+    return modes;
+  }
+
+  // Mode, reason for the last change and the figures of the last closed window
+  public String describe(long key) {
+    ResourceStats stats = resources.get(key);
+    if (stats == null) {
+      return "KEYED (no requests)";
+    }
+    synchronized (stats) {
+      return stats.mode
+          + " ("
+          + stats.lastDecision
+          + ") rate="
+          + Long.toString(stats.lastRate)
+          + "/s wait="
+          + Long.toString(stats.lastWaitNanos / 1000)
+          + "us writes="
+          + Long.toString(stats.lastWrites);
+    }
+  }
+
+  public long getPromotions() {
+    return promotions.sum();
+  }
+
+  public long getDemotions() {
+    return demotions.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public int getTrackedResources() {
+    return resources.size();
+  }
+
+  public void setWindowMillis(long windowMillis) {
+    windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+  }
+
+  public void setPromoteRequestsPerSecond(int requestsPerSecond) {
+    promoteRequests = requestsPerSecond;
+  }
+
+  public void setPromoteWaitMicros(long waitMicros) {
+    promoteWaitNanos = TimeUnit.MICROSECONDS.toNanos(waitMicros);
+  }
+
+  public void setIdleWindows(int windows) {
+    idleWindows = windows;
+  }
+
+  private static class ResourceStats {
+    private final long key;
+    private ResourceMode mode = ResourceMode.KEYED;
+    private String lastDecision = "initial";
+    private long windowStart = System.nanoTime();
+    private long windowRequests = 0;
+    private long windowWrites = 0;
+    private long windowWaits = 0;
+    private long windowWaitNanos = 0;
+    private long lastRate = 0;
+    private long lastWaitNanos = 0;
+    private long lastWrites = 0;
+    private long lastSeen = System.nanoTime();
+    private boolean evicted = false;
+
+    private ResourceStats(long key) {
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.implementation;
+
+import gelato.GelatoSession;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import protocol.QID;
+
+// Server wide cache of file blocks keyed by QID path and version. Hits only touch the map and a
+// reference bit, inserts run CLOCK eviction under the cache lock until the memory budget fits.
+// A new QID version misses naturally and the stale blocks age out of the ring.
+public class BlockCache {
+
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+  public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+  public static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+  // Back to back reads of a fid before it counts as sequential
+  public static final int SEQUENTIAL_THRESHOLD = 2;
+  private static final int READ_AHEAD_QUEUE = 256;
+  private static final String READ_AHEAD_VAR = "gelato.readahead.";
+
+  private final Logger logger = LoggerFactory.getLogger(BlockCache.class);
+  private final Map<BlockKey, CachedBlock> blocks = new ConcurrentHashMap<>();
+  private final Map<BlockKey, Boolean> loading = new ConcurrentHashMap<>();
+  private final List<CachedBlock> clock = new ArrayList<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder readAheads = new LongAdder();
+  private final AtomicInteger threadCounter = new AtomicInteger(0);
+  private final ThreadPoolExecutor readAheadExecutor;
+  private final int blockSize;
+  private final long budget;
+  private int hand = 0;
+  private long usedBytes = 0;
+  private int readAheadBlocks = DEFAULT_READ_AHEAD_BLOCKS;
+
+  public BlockCache() {
+    this(DEFAULT_BUDGET, DEFAULT_BLOCK_SIZE);
+  }
+
+  public BlockCache(long budget, int blockSize) {
+    if (blockSize <= 0 || budget < blockSize) {
+      throw new RuntimeException("Block cache budget smaller than a block");
+    }
+    this.budget = budget;
+    this.blockSize = blockSize;
+    // Read ahead is best effort, a full queue drops the request instead of piling up
+    readAheadExecutor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(READ_AHEAD_QUEUE),
+            runnable -> {
+              String name = "gelato-readahead-" + Integer.toString(threadCounter.incrementAndGet());
+              Thread thread = new Thread(runnable, name);
+              thread.setDaemon(true);
+              return thread;
+            },
+            (task, executor) -> loading.remove(((ReadAheadTask) task).key));
+  }
+
+  // Copies up to len bytes at offset into buff, loading missing blocks from the source
+  public int read(
+      BlockSource source, QID qid, long fileSize, long offset, byte[] buff, int off, int len)
+      throws IOException {
+    return read(source, qid.getLongFileId(), qid.getVersion(), fileSize, offset, buff, off, len);
+  }
+
+  // For readers of an older version than the QID currently carries
+  public int read(
+      BlockSource source,
+      long path,
+      long version,
+      long fileSize,
+      long offset,
+      byte[] buff,
+      int off,
+      int len)
+      throws IOException {
+    if (offset >= fileSize) {
+      return 0;
+    }
+    len = (int) Math.min(len, fileSize - offset);
+    int filled = 0;
+    while (filled < len) {
+      long position = offset + filled;
+      long index = position / blockSize;
+      byte[] block = getBlock(source, path, version, fileSize, index);
+      int inBlock = (int) (position - index * blockSize);
+      int count = Math.min(len - filled, block.length - inBlock);
+      if (count <= 0) {
+        break;
+      }
+      System.arraycopy(block, inBlock, buff, off + filled, count);
+      filled += count;
+    }
+    return filled;
+  }
+
+  // Tracks the read position per session and fid, sequential streams get the next blocks loaded
+  public void readAhead(
+      GelatoSession session,
+      long fid,
+      BlockSource source,
+      QID qid,
+      long fileSize,
+      long offset,
+      int len) {
+    if (readAheadBlocks <= 0 || session == null) {
+      return;
+    }
+    String varName = READ_AHEAD_VAR + fid + "." + qid.getLongFileId();
+    long version = qid.getVersion();
+    ReadAheadState state = (ReadAheadState) session.getSessionVar(varName);
+    if (state == null) {
+      state = new ReadAheadState();
+      session.setSessionVar(varName, state);
+    }
+    long firstBlock;
+    long lastBlock;
+    synchronized (state) {
+      // A seek or a new version starts the stream over, nothing counts as prefetched for it
+      if (state.nextOffset != offset || state.version != version) {
+        state.run = 0;
+        state.prefetched = -1;
+        state.version = version;
+      } else {
+        state.run++;
+      }
+      state.nextOffset = offset + len;
+      if (state.run < SEQUENTIAL_THRESHOLD) {
+        return;
+      }
+      long nextBlock = (offset + len + blockSize - 1) / blockSize;
+      firstBlock = Math.max(nextBlock, state.prefetched + 1);
+      lastBlock = Math.min(nextBlock + readAheadBlocks - 1, (fileSize - 1) / blockSize);
+      if (firstBlock > lastBlock) {
+        return;
+      }
+      state.prefetched = lastBlock;
+    }
+    long path = qid.getLongFileId();
+    for (long index = firstBlock; index <= lastBlock; index++) {
+      BlockKey key = new BlockKey(path, version, index);
+      if (blocks.containsKey(key) || loading.putIfAbsent(key, Boolean.TRUE) != null) {
+        continue;
+      }
+      readAheadExecutor.execute(new ReadAheadTask(key, source, fileSize));
+    }
+  }
+
+  // Clunk of the fid, its stream state goes with it
+  public void release(GelatoSession session, long fid, long path) {
+    if (session != null) {
+      session.removeSessionVar(READ_AHEAD_VAR + fid + "." + path);
+    }
+  }
+
+  private byte[] getBlock(BlockSource source, long path, long version, long fileSize, long index)
+      throws IOException {
+    BlockKey key = new BlockKey(path, version, index);
+    CachedBlock cached = blocks.get(key);
+    if (cached != null) {
+      cached.referenced = true;
+      hits.increment();
+      return cached.data;
+    }
+    misses.increment();
+    byte[] data = load(source, fileSize, index);
+    put(key, data);
+    return data;
+  }
+
+  private byte[] load(BlockSource source, long fileSize, long index) throws IOException {
+    long start = index * blockSize;
+    int size = (int) Math.min(blockSize, fileSize - start);
+    byte[] data = new byte[size];
+    int filled = source.read(start, data, 0, size);
+    return filled < size ? Arrays.copyOf(data, Math.max(filled, 0)) : data;
+  }
+
+  private synchronized void put(BlockKey key, byte[] data) {
+    if (blocks.containsKey(key)) {
+      return;
+    }
+    while (usedBytes + data.length > budget && !clock.isEmpty()) {
+      evictOne();
+    }
+    CachedBlock block = new CachedBlock(key, data);
+    clock.add(block);
+    blocks.put(key, block);
+    usedBytes += data.length;
+  }
+
+  // Referenced blocks get a second chance, the first unreferenced one under the hand goes
+  private void evictOne() {
+    while (true) {
+      if (hand >= clock.size()) {
+        hand = 0;
+      }
+      CachedBlock block = clock.get(hand);
+      if (block.referenced) {
+        block.referenced = false;
+        hand++;
+        continue;
+      }
+      removeAt(hand);
+      evictions.increment();
+      return;
+    }
+  }
+
+  private void removeAt(int slot) {
+    CachedBlock block = clock.get(slot);
+    CachedBlock last = clock.remove(clock.size() - 1);
+    if (slot < clock.size()) {
+      clock.set(slot, last);
+    }
+    blocks.remove(block.key);
+    usedBytes -= block.data.length;
+  }
+
+  // Drops every cached block of a path, whatever its version
+  public synchronized void invalidate(long path) {
+    for (int slot = clock.size() - 1; slot >= 0; slot--) {
+      if (clock.get(slot).key.path == path) {
+        removeAt(slot);
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    clock.clear();
+    blocks.clear();
+    usedBytes = 0;
+    hand = 0;
+  }
+
+  public void shutdown() {
+    readAheadExecutor.shutdownNow();
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  public int getCachedBlocks() {
+    return blocks.size();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public long getReadAheads() {
+    return readAheads.sum();
+  }
+
+  public int getReadAheadBlocks() {
+    return readAheadBlocks;
+  }
+
+  // Zero turns read ahead off
+  public void setReadAheadBlocks(int readAheadBlocks) {
+    this.readAheadBlocks = readAheadBlocks;
+  }
+
+  @Override
+  public String toString() {
+    return "blocks="
+        + getCachedBlocks()
+        + " used="
+        + getUsedBytes()
+        + " hits="
+        + getHits()
+        + " misses="
+        + getMisses()
+        + " evictions="
+        + getEvictions()
+        + " readAheads="
+        + getReadAheads();
+  }
+
+  // Positional read of the underlying file, short only at the end of the data
+  public interface BlockSource {
+    int read(long position, byte[] buff, int off, int len) throws IOException;
+  }
+
+  private static final class BlockKey {
+    private final long path;
+    private final long version;
+    private final long index;
+
+    private BlockKey(long path, long version, long index) {
+      this.path = path;
+      this.version = version;
+      this.index = index;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof BlockKey)) {
+        return false;
+      }
+      BlockKey key = (BlockKey) other;
+      return path == key.path && version == key.version && index == key.index;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(path * 31 + version) * 31 + Long.hashCode(index);
+    }
+  }
+
+  private static final class CachedBlock {
+    private final BlockKey key;
+    private final byte[] data;
+    private volatile boolean referenced = false;
+
+    private CachedBlock(BlockKey key, byte[] data) {
+      this.key = key;
+      this.data = data;
+    }
+  }
+
+  private final class ReadAheadTask implements Runnable {
+    private final BlockKey key;
+    private final BlockSource source;
+    private final long fileSize;
+
+    private ReadAheadTask(BlockKey key, BlockSource source, long fileSize) {
+      this.key = key;
+      this.source = source;
+      this.fileSize = fileSize;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (!blocks.containsKey(key)) {
+          put(key, load(source, fileSize, key.index));
+          readAheads.increment();
+        }
+      } catch (IOException e) {
+        logger.error("Read ahead failed", e);
+      } finally {
+        loading.remove(key);
+      }
+    }
+  }
+
+  private static final class ReadAheadState {
+    private long nextOffset = -1;
+    private int run = 0;
+    private long prefetched = -1;
+    private long version = 0;
+  }
+}
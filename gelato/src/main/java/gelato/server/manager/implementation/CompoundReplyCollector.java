@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.implementation;
+
+import gelato.Gelato;
+import gelato.GelatoConnection;
+import gelato.GelatoFileDescriptor;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import protocol.P9Protocol;
+import protocol.messages.FileRegionMessage;
+import protocol.messages.Message;
+
+// Stands in for the client connection while a compound runs so replies can be batched
+public class CompoundReplyCollector implements GelatoConnection {
+
+  private final Logger logger = LoggerFactory.getLogger(CompoundReplyCollector.class);
+  private List<Message> replies = new ArrayList<>();
+  private boolean closed = false;
+
+  public synchronized int size() {
+    return replies.size();
+  }
+
+  public synchronized List<Message> getReplies() {
+    return new ArrayList<>(replies);
+  }
+
+  public synchronized boolean hasError(int fromReply) {
+    for (int i = fromReply; i < replies.size(); ++i) {
+      if (replies.get(i).messageType == P9Protocol.RERROR) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public synchronized void close() {
+    closed = true;
+  }
+
+  @Override
+  public Message getMessage() {
+    return null;
+  }
+
+  @Override
+  public Message getMessage(GelatoFileDescriptor fileDescriptor) {
+    return null;
+  }
+
+  @Override
+  public Gelato.MODE getMode() {
+    return null;
+  }
+
+  @Override
+  public List<GelatoFileDescriptor> getConnections() {
+    return null;
+  }
+
+  @Override
+  public int getMessageCount(GelatoFileDescriptor fileDescriptor) {
+    return 0;
+  }
+
+  @Override
+  public int getMessageCount() {
+    return 0;
+  }
+
+  @Override
+  public int connections() {
+    return 0;
+  }
+
+  @Override
+  public synchronized void sendMessage(GelatoFileDescriptor descriptor, Message msg) {
+    if (closed) {
+      logger.error("Dropping reply sent after the compound completed, tag " + msg.tag);
+      return;
+    }
+    // Compound replies are packed into one frame, so file regions are read in here
+    if (msg instanceof FileRegionMessage) {
+      msg = ((FileRegionMessage) msg).materialize();
+    }
+    replies.add(msg);
+  }
+
+  @Override
+  public void sendMessage(Message msg) {
+    sendMessage(null, msg);
+  }
+
+  @Override
+  public void shutdown() {
+  }
+
+  @Override
+  public boolean isStarted() {
+    return false;
+  }
+
+  @Override
+  public void begin() {
+  }
+
+  @Override
+  public void closeConnection(GelatoFileDescriptor descriptor) {
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.implementation;
+
+import protocol.Decoder;
+import protocol.messages.Message;
+import protocol.messages.MessageFrame;
+
+// A request framed once on the dispatch path and handed through to the controller
+public class DecodedRequest {
+
+  private final Message message;
+  private final MessageFrame frame;
+
+  public DecodedRequest(Message message) {
+    this.message = message;
+    this.frame = Decoder.decodeFrame(message);
+  }
+
+  public Message getMessage() {
+    return message;
+  }
+
+  public MessageFrame getFrame() {
+    return frame;
+  }
+
+  public byte messageType() {
+    return message.messageType;
+  }
+
+  public int getTag() {
+    return message.tag;
+  }
+
+  public int getFileDescriptor() {
+    return Decoder.viewRequest(frame).getFileDescriptor();
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.implementation;
+
+import gelato.GelatoSession;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Deficit round robin in front of the executor. Requests queue per flow, a session or a user name,
+// and only a bounded number are handed to the executor at once, picked round robin with each
+// flow allowed quantum x weight cost units per round. A client pipelining thousands of reads
+// then waits in its own flow instead of in front of everyone else on the key pool.
+public class FairRequestQueue {
+
+  public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+  public static final int DEFAULT_QUANTUM = 8;
+  public static final int DEFAULT_WEIGHT = 1;
+
+  private final Map<Object, Flow> flows = new HashMap<>();
+  private final ArrayDeque<Flow> activeFlows = new ArrayDeque<>();
+  private final Map<String, Integer> userWeights = new ConcurrentHashMap<>();
+  private volatile boolean flowPerUser = false;
+  private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+  private int quantum = DEFAULT_QUANTUM;
+  private int inFlight = 0;
+  private long queued = 0;
+
+  // Release runs once the request's turn comes, the released work must call complete() when done.
+  // Releases only hand work to the executor and run under the lock so a flow keeps its order.
+  public synchronized void submit(GelatoSession session, int cost, Runnable release) {
+    Object flowKey = flowPerUser ? userName(session) : session;
+    Flow flow = flows.get(flowKey);
+    if (flow == null) {
+      flow = new Flow(flowKey, userName(session));
+      flows.put(flowKey, flow);
+    }
+    if (flow.pending.isEmpty()) {
+      activeFlows.addLast(flow);
+    }
+    flow.pending.add(new Pending(release, Math.max(cost, 1)));
+    ++queued;
+    releaseReady();
+  }
+
+  public synchronized void complete() {
+    --inFlight;
+    releaseReady();
+  }
+
+  private void releaseReady() {
+    while (inFlight < maxInFlight && !activeFlows.isEmpty()) {
+      Flow flow = activeFlows.peekFirst();
+      if (!flow.visited) {
+        flow.deficit += (long) quantum * getUserWeight(flow.userName);
+        flow.visited = true;
+      }
+      Pending head = flow.pending.peek();
+      if (head.cost > flow.deficit) {
+        // Out of credit for this round, the rest waits for its next turn
+        activeFlows.pollFirst();
+        flow.visited = false;
+        activeFlows.addLast(flow);
+        continue;
+      }
+      flow.pending.poll();
+      flow.deficit -= head.cost;
+      --queued;
+      ++inFlight;
+      if (flow.pending.isEmpty()) {
+        activeFlows.pollFirst();
+        flows.remove(flow.key);
+      }
+      head.release.run();
+    }
+  }
+
+  private static String userName(GelatoSession session) {
+    String userName = session.getUserName();
+    return userName == null ? "" : userName;
+  }
+
+  public int getUserWeight(String userName) {
+    return userWeights.getOrDefault(userName, DEFAULT_WEIGHT);
+  }
+
+  public void setUserWeight(String userName, int weight) {
+    if (weight < 1) {
+      throw new RuntimeException("Weight must be at least 1");
+    }
+    userWeights.put(userName, weight);
+  }
+
+  public boolean isFlowPerUser() {
+    return flowPerUser;
+  }
+
+  // Share between user names from TATTACH instead of between sessions
+  public void setFlowPerUser(boolean flowPerUser) {
+    this.flowPerUser = flowPerUser;
+  }
+
+  public synchronized void setMaxInFlight(int maxInFlight) {
+    this.maxInFlight = Math.max(maxInFlight, 1);
+  }
+
+  public synchronized void setQuantum(int quantum) {
+    this.quantum = Math.max(quantum, 1);
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public synchronized long getQueued() {
+    return queued;
+  }
+
+  public synchronized int getActiveFlows() {
+    return activeFlows.size();
+  }
+
+  private static class Flow {
+    private final Object key;
+    private final String userName;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private long deficit = 0;
+    private boolean visited = false;
+
+    private Flow(Object key, String userName) {
+      this.key = key;
+      this.userName = userName;
+    }
+  }
+
+  private static class Pending {
+    private final Runnable release;
+    private final int cost;
+
+    private Pending(Runnable release, int cost) {
+      this.release = release;
+      this.cost = cost;
+    }
+  }
+}
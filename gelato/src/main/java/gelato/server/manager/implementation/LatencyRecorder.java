@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.implementation;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock free latency histogram with power of two nanosecond buckets, percentiles come back as the
+// upper bound of the bucket they fall in so they are accurate to within a factor of two
+public class LatencyRecorder {
+
+  private static final int BUCKETS = 64;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    // Bucket b holds [2^(b-1), 2^b), zero gets bucket 0
+    buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+    count.increment();
+    totalNanos.add(nanos);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getMeanMicros() {
+    long samples = count.sum();
+    return samples == 0 ? 0 : totalNanos.sum() / samples / 1000;
+  }
+
+  public long getPercentileMicros(double percentile) {
+    long samples = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+      snapshot[bucket] = buckets.get(bucket);
+      samples += snapshot[bucket];
+    }
+    if (samples == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(samples * percentile / 100.0);
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+      seen += snapshot[bucket];
+      if (seen >= rank) {
+        return bucket == 0 ? 0 : (1L << Math.min(bucket, 62)) / 1000;
+      }
+    }
+    return Long.MAX_VALUE / 1000;
+  }
+
+  public void reset() {
+    for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+      buckets.set(bucket, 0);
+    }
+    count.reset();
+    totalNanos.reset();
+  }
+
+  @Override
+  public String toString() {
+    return "count="
+        + Long.toString(getCount())
+        + " mean="
+        + Long.toString(getMeanMicros())
+        + "us p50="
+        + Long.toString(getPercentileMicros(50))
+        + "us p99="
+        + Long.toString(getPercentileMicros(99))
+        + "us";
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.implementation;
+
+import gelato.GelatoConnection;
+import gelato.GelatoFileDescriptor;
+import gelato.GelatoSession;
+import gelato.server.manager.GelatoParallelRequestHandler;
+import gelato.server.manager.controllers.GelatoResourceController;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import protocol.messages.Message;
+import protocol.messages.response.CompoundResponse;
+import protocol.messages.response.ErrorMessage;
+
+public class ParallelCompoundRequest implements Runnable {
+
+  public static final String INVALID_RESOURCE = "Invalid resource";
+  public static final String GENERAL_FAILURE = "General Failure - Handling Operation ";
+  public static final String NO_REPLY = "Operation did not reply within the compound";
+  public static final String REPLY_TOO_LARGE = "Compound reply exceeds negotiated message size";
+
+  private final Logger logger = LoggerFactory.getLogger(ParallelCompoundRequest.class);
+  private GelatoParallelRequestHandler requestHandler;
+  private Message message;
+  private List<DecodedRequest> operations;
+  private GelatoSession session;
+  private GelatoConnection connection;
+  private GelatoFileDescriptor descriptor;
+  private int lane;
+  private final CompoundReplyCollector collector = new CompoundReplyCollector();
+  // Next operation to run and the resource and mode the current step was scheduled with
+  private int next = 0;
+  private long stepResource;
+  private boolean stepShared;
+
+  public ParallelCompoundRequest(GelatoParallelRequestHandler requestHandler) {
+    this.requestHandler = requestHandler;
+  }
+
+  public GelatoConnection getConnection() {
+    return connection;
+  }
+
+  public void setConnection(GelatoConnection connection) {
+    this.connection = connection;
+  }
+
+  public Message getMessage() {
+    return message;
+  }
+
+  public void setMessage(Message message) {
+    this.message = message;
+  }
+
+  public List<DecodedRequest> getOperations() {
+    return operations;
+  }
+
+  public void setOperations(List<DecodedRequest> operations) {
+    this.operations = operations;
+  }
+
+  public GelatoSession getSession() {
+    return session;
+  }
+
+  public void setSession(GelatoSession session) {
+    this.session = session;
+  }
+
+  public GelatoFileDescriptor getDescriptor() {
+    return descriptor;
+  }
+
+  public void setDescriptor(GelatoFileDescriptor descriptor) {
+    this.descriptor = descriptor;
+  }
+
+  public int getLane() {
+    return lane;
+  }
+
+  public void setLane(int lane) {
+    this.lane = lane;
+  }
+
+  public void startStep(GelatoFileDescriptor serverResource, boolean shared) {
+    stepResource = serverResource.getQid().getLongFileId();
+    stepShared = shared;
+  }
+
+  private void addError(CompoundReplyCollector collector, int tag, String error) {
+    ErrorMessage msg = new ErrorMessage();
+    msg.setTag(tag);
+    msg.setErrorMessage(error);
+    collector.sendMessage(descriptor, msg.toMessage());
+  }
+
+  // Operations run in order, each one resolved after the previous so walks can chain fids. A step
+  // runs the operations on one resource, the batch is handed to the key of the next resource or
+  // rescheduled exclusive when a change follows shared operations.
+  @Override
+  public void run() {
+    while (next < operations.size()) {
+      DecodedRequest operation = operations.get(next);
+      GelatoFileDescriptor serverResource =
+          requestHandler.resolveServerResource(session, operation);
+      GelatoResourceController handler =
+          serverResource == null ? null : requestHandler.getHandler(serverResource);
+      if (handler == null) {
+        addError(collector, operation.getTag(), INVALID_RESOURCE);
+        break;
+      }
+      boolean shared = GelatoParallelRequestHandler.isSharedRequest(operation.messageType());
+      if (serverResource.getQid().getLongFileId() != stepResource || (stepShared && !shared)) {
+        startStep(serverResource, shared);
+        requestHandler.continueCompound(
+            this,
+            serverResource,
+            shared,
+            GelatoParallelRequestHandler.isWriteRequest(operation.messageType()));
+        return;
+      }
+      ++next;
+      int replies = collector.size();
+      boolean completedOk = handler.processRequest(collector, descriptor, session, operation);
+      if (collector.hasError(replies)) {
+        break;
+      }
+      if (!completedOk) {
+        addError(collector, operation.getTag(), GENERAL_FAILURE);
+        logger.error(
+            "Unable to process compound operation : "
+                + Integer.toString(operation.messageType())
+                + " Resource "
+                + handler.getStat().getName());
+        break;
+      }
+      if (collector.size() == replies) {
+        addError(collector, operation.getTag(), NO_REPLY);
+        break;
+      }
+    }
+    collector.close();
+
+    CompoundResponse response = new CompoundResponse();
+    response.setTag(message.tag);
+    response.setReplies(collector.getReplies());
+    if (response.encodedSize() > session.getMaxMsgSize()) {
+      ErrorMessage msg = new ErrorMessage();
+      msg.setTag(message.tag);
+      msg.setErrorMessage(REPLY_TOO_LARGE);
+      connection.sendMessage(descriptor, msg.toMessage());
+      return;
+    }
+    connection.sendMessage(descriptor, response.toMessage());
+  }
+}
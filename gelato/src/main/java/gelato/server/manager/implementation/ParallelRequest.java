@@ -17,13 +17,12 @@ import gelato.GelatoSession;
 import gelato.server.manager.controllers.GelatoResourceController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import protocol.messages.Message;
 import protocol.messages.response.ErrorMessage;
 
 public class ParallelRequest implements Runnable {
 
   private final Logger logger = LoggerFactory.getLogger(ParallelRequest.class);
-  private Message message;
+  private DecodedRequest request;
   private GelatoResourceController handler;
   private GelatoSession session;
   private GelatoConnection connection;
@@ -37,12 +36,12 @@ public class ParallelRequest implements Runnable {
     this.connection = connection;
   }
 
-  public Message getMessage() {
-    return message;
+  public DecodedRequest getRequest() {
+    return request;
   }
 
-  public void setMessage(Message message) {
-    this.message = message;
+  public void setRequest(DecodedRequest request) {
+    this.request = request;
   }
 
   public GelatoResourceController getHandler() {
@@ -71,14 +70,14 @@ public class ParallelRequest implements Runnable {
 
   @Override
   public void run() {
-    if (!handler.processRequest(connection, descriptor, session, message)) {
+    if (!handler.processRequest(connection, descriptor, session, request)) {
       ErrorMessage msg = new ErrorMessage();
-      msg.setTag(message.tag);
+      msg.setTag(request.getTag());
       msg.setErrorMessage("General Failure - Handling Operation ");
       connection.sendMessage(descriptor, msg.toMessage());
       logger.error(
           "Unable to process Message : "
-              + Integer.toString(message.messageType)
+              + Integer.toString(request.messageType())
               + " Resource "
               + handler.getStat().getName());
     }
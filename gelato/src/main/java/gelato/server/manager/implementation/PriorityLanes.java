@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.implementation;
+
+import protocol.P9Protocol;
+import protocol.messages.Message;
+
+// Scheduling classes for requests and replies. Metadata work is small and latency sensitive, it
+// goes ahead of bulk data wherever ordering allows.
+public class PriorityLanes {
+
+  public static final int METADATA = 0;
+  public static final int BULK = 1;
+  public static final int LANE_COUNT = 2;
+
+  // Replies up to this size count as metadata whatever their type
+  public static final int METADATA_REPLY_LIMIT = 1024;
+
+  public static int forRequest(byte messageType) {
+    if (messageType == P9Protocol.TREAD || messageType == P9Protocol.TWRITE) {
+      return BULK;
+    }
+    return METADATA;
+  }
+
+  public static int forReply(Message reply) {
+    if (reply.messageType == P9Protocol.RREAD || reply.encodedSize() > METADATA_REPLY_LIMIT) {
+      return BULK;
+    }
+    return METADATA;
+  }
+
+  public static String name(int lane) {
+    return lane == METADATA ? "metadata" : "bulk";
+  }
+
+  public static LatencyRecorder[] createRecorders() {
+    LatencyRecorder[] recorders = new LatencyRecorder[LANE_COUNT];
+    for (int lane = 0; lane < LANE_COUNT; ++lane) {
+      recorders[lane] = new LatencyRecorder();
+    }
+    return recorders;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.implementation;
+
+import ciotola.Ciotola;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Per resource read/write ordering on top of the keyed pool. Shared requests on a resource run
+// side by side on any worker, an exclusive request waits for the running ones to drain and holds
+// back everything submitted after it until it completes. Requests never overtake a waiting one.
+public class ResourceReadWriteScheduler {
+
+  private final Logger logger = LoggerFactory.getLogger(ResourceReadWriteScheduler.class);
+  private final Map<Long, ResourceState> resources = new ConcurrentHashMap<>();
+  private final AtomicLong sharedSequence = new AtomicLong();
+  private volatile AdaptiveResourcePolicy policy = null;
+
+  // Receives how long each job queued before it ran
+  public void setPolicy(AdaptiveResourcePolicy policy) {
+    this.policy = policy;
+  }
+
+  public void addJob(Runnable job, long key, boolean shared) {
+    addJob(job, key, shared, false);
+  }
+
+  public void addJob(Runnable job, long key, boolean shared, boolean priority) {
+    while (true) {
+      ResourceState state = resources.computeIfAbsent(key, ResourceState::new);
+      Runnable ready;
+      synchronized (state) {
+        if (state.retired) {
+          // Lost a race with the last completion removing this entry
+          continue;
+        }
+        ScheduledJob scheduled = new ScheduledJob(state, job, shared, priority);
+        if (!state.waiting.isEmpty() || !state.admits(shared)) {
+          state.waiting.add(scheduled);
+          return;
+        }
+        state.start(shared);
+        ready = scheduled;
+      }
+      dispatch(ready, key, shared, priority);
+      return;
+    }
+  }
+
+  private void dispatch(Runnable job, long key, boolean shared, boolean priority) {
+    // Shared jobs spread over the workers, exclusive ones keep the resource key
+    long dispatchKey = shared ? sharedSequence.getAndIncrement() & Long.MAX_VALUE : key;
+    Ciotola.getInstance().execute(job, dispatchKey, priority);
+  }
+
+  private void complete(ResourceState state, boolean shared) {
+    List<ScheduledJob> ready = new ArrayList<>();
+    synchronized (state) {
+      state.finish(shared);
+      ScheduledJob next = state.waiting.peek();
+      while (next != null && state.admits(next.shared)) {
+        state.waiting.poll();
+        state.start(next.shared);
+        ready.add(next);
+        if (!next.shared) {
+          break;
+        }
+        next = state.waiting.peek();
+      }
+      if (state.isIdle()) {
+        state.retired = true;
+        resources.remove(state.key, state);
+      }
+    }
+    for (ScheduledJob job : ready) {
+      dispatch(job, state.key, job.shared, job.priority);
+    }
+  }
+
+  public int activeResources() {
+    return resources.size();
+  }
+
+  private class ScheduledJob implements Runnable {
+    private final ResourceState state;
+    private final Runnable job;
+    private final boolean shared;
+    private final boolean priority;
+    private final long submitted = System.nanoTime();
+
+    private ScheduledJob(ResourceState state, Runnable job, boolean shared, boolean priority) {
+      this.state = state;
+      this.job = job;
+      this.shared = shared;
+      this.priority = priority;
+    }
+
+    @Override
+    public void run() {
+      AdaptiveResourcePolicy observer = policy;
+      if (observer != null) {
+        observer.recordWait(state.key, System.nanoTime() - submitted);
+      }
+      try {
+        job.run();
+      } catch (Exception ex) {
+        logger.error("Exception thrown by job: ", ex);
+      } finally {
+        complete(state, shared);
+      }
+    }
+  }
+
+  private static class ResourceState {
+    private final long key;
+    private final ArrayDeque<ScheduledJob> waiting = new ArrayDeque<>();
+    private int activeReaders = 0;
+    private boolean writerActive = false;
+    private boolean retired = false;
+
+    private ResourceState(long key) {
+      this.key = key;
+    }
+
+    private boolean admits(boolean shared) {
+      return shared ? !writerActive : !writerActive && activeReaders == 0;
+    }
+
+    private void start(boolean shared) {
+      if (shared) {
+        ++activeReaders;
+      } else {
+        writerActive = true;
+      }
+    }
+
+    private void finish(boolean shared) {
+      if (shared) {
+        --activeReaders;
+      } else {
+        writerActive = false;
+      }
+    }
+
+    private boolean isIdle() {
+      return activeReaders == 0 && !writerActive && waiting.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,739 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.implementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Append only storage for writable files. Every write becomes a record in the active segment and
+// an extent in the per file index, the latest write of a range wins. Writers that append close
+// together share one fsync, sealed segments that are mostly overwritten get their live extents
+// copied forward and are deleted. Records are replayed on open to rebuild the index.
+// Every write publishes an immutable snapshot of the file's extents with the next version, readers
+// work from a pinned snapshot without locks, and a compacted segment is only deleted once no
+// pinned snapshot references it. Records carry the file version so it survives a reopen.
+public class SegmentLog {
+
+  public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+  public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+  // Data length, file id, file offset, file version after the write and the CRC32 of all of them
+  // and the data, a flipped bit in the header must not move or misattribute a write on replay
+  static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 8 + 4;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private final Logger logger = LoggerFactory.getLogger(SegmentLog.class);
+  private final Path directory;
+  private final long segmentSize;
+  private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+  private final Map<Long, FileExtents> files = new ConcurrentHashMap<>();
+  private final Object appendLock = new Object();
+  private final Object commitLock = new Object();
+  private final Object pinLock = new Object();
+  // Compacted segments waiting for the pinned snapshots that still reference them
+  private final List<Segment> retired = new ArrayList<>();
+  private final LongAdder syncs = new LongAdder();
+  private final LongAdder commits = new LongAdder();
+  private final LongAdder appendedBytes = new LongAdder();
+  private final LongAdder compactedSegments = new LongAdder();
+  private Segment active = null;
+  private long appendedSequence = 0;
+  private volatile long durableSequence = 0;
+  private volatile boolean syncWrites = true;
+  private double compactionRatio = DEFAULT_COMPACTION_RATIO;
+  private ScheduledExecutorService compactor = null;
+
+  public SegmentLog(Path directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public SegmentLog(Path directory, long segmentSize) throws IOException {
+    if (segmentSize <= RECORD_HEADER_SIZE) {
+      throw new RuntimeException("Segment size smaller than a record header");
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    Files.createDirectories(directory);
+    recover();
+    synchronized (appendLock) {
+      if (active == null || active.size >= segmentSize) {
+        roll();
+      }
+    }
+  }
+
+  // Client offsets are unsigned 64 bit, the index only holds ranges that fit a long
+  public static boolean validRange(long fileOffset, long length) {
+    return fileOffset >= 0 && length >= 0 && fileOffset + length >= fileOffset;
+  }
+
+  // Appends one write, the returned sequence is durable once commit returns for it
+  public long append(long fileId, long fileOffset, ByteBuffer data) throws IOException {
+    if (!validRange(fileOffset, data.remaining())) {
+      throw new IOException("Write range outside of the file");
+    }
+    FileExtents extents = files.computeIfAbsent(fileId, FileExtents::new);
+    extents.lock.lock();
+    try {
+      long sequence = appendRecord(extents, fileOffset, data, extents.version + 1);
+      extents.version++;
+      extents.publish();
+      return sequence;
+    } finally {
+      extents.lock.unlock();
+    }
+  }
+
+  // Callers hold the file write lock, it keeps the log order of a file the same as its index order
+  // so only the segment write needs the append lock
+  private long appendRecord(FileExtents extents, long fileOffset, ByteBuffer data, long version)
+      throws IOException {
+    int length = data.remaining();
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    header.putInt(length).putLong(extents.fileId).putLong(fileOffset).putLong(version);
+    header.putInt(checksum(header, data.duplicate())).flip();
+    Segment segment;
+    long position;
+    long sequence;
+    synchronized (appendLock) {
+      if (active.size > 0 && active.size + RECORD_HEADER_SIZE + length > segmentSize) {
+        roll();
+      }
+      segment = active;
+      position = active.size;
+      writeFully(active.channel, header, position);
+      writeFully(active.channel, data.duplicate(), position + RECORD_HEADER_SIZE);
+      active.size += RECORD_HEADER_SIZE + length;
+      active.dataBytes += length;
+      appendedBytes.add(length);
+      sequence = ++appendedSequence;
+    }
+    if (length > 0) {
+      extents.put(fileOffset, new Extent(segment, position + RECORD_HEADER_SIZE, length));
+    }
+    return sequence;
+  }
+
+  // The first writer in syncs everything appended so far, the ones queued behind it find their
+  // sequence already durable and return without another fsync
+  public void commit(long sequence) throws IOException {
+    commits.increment();
+    if (!syncWrites || durableSequence >= sequence) {
+      return;
+    }
+    synchronized (commitLock) {
+      if (durableSequence >= sequence) {
+        return;
+      }
+      long target;
+      Segment segment;
+      synchronized (appendLock) {
+        target = appendedSequence;
+        segment = active;
+      }
+      // Segments before the active one were forced when they were sealed
+      segment.channel.force(false);
+      syncs.increment();
+      durableSequence = target;
+    }
+  }
+
+  // Ranges no write covered read back as zeros, reads stop at the file length
+  public int read(long fileId, long offset, byte[] buff, int off, int len) throws IOException {
+    Snapshot snapshot = pin(fileId);
+    try {
+      return read(snapshot, offset, buff, off, len);
+    } finally {
+      unpin(snapshot);
+    }
+  }
+
+  // The snapshot has to stay pinned while this runs
+  public int read(Snapshot snapshot, long offset, byte[] buff, int off, int len)
+      throws IOException {
+    if (offset >= snapshot.length) {
+      return 0;
+    }
+    len = (int) Math.min(len, snapshot.length - offset);
+    Arrays.fill(buff, off, off + len, (byte) 0);
+    long end = offset + len;
+    List<Node> overlapping = new ArrayList<>();
+    collect(snapshot.root, offset, end, overlapping);
+    for (Node node : overlapping) {
+      long start = node.start;
+      Extent extent = node.extent;
+      long copyStart = Math.max(start, offset);
+      long copyEnd = Math.min(start + extent.length, end);
+      if (copyStart >= copyEnd) {
+        continue;
+      }
+      ByteBuffer target =
+          ByteBuffer.wrap(buff, off + (int) (copyStart - offset), (int) (copyEnd - copyStart));
+      readFully(extent.segment.channel, target, extent.position + (copyStart - start));
+    }
+    return len;
+  }
+
+  public long getLength(long fileId) {
+    return getSnapshot(fileId).length;
+  }
+
+  // Latest published version, not pinned
+  public Snapshot getSnapshot(long fileId) {
+    return files.computeIfAbsent(fileId, FileExtents::new).current;
+  }
+
+  // Keeps the segments behind the current version of a file readable until unpin
+  public Snapshot pin(long fileId) {
+    FileExtents extents = files.computeIfAbsent(fileId, FileExtents::new);
+    synchronized (pinLock) {
+      return retain(extents.current);
+    }
+  }
+
+  // Another pin on a snapshot the caller already holds pinned
+  public Snapshot pin(Snapshot snapshot) {
+    synchronized (pinLock) {
+      return retain(snapshot);
+    }
+  }
+
+  public void unpin(Snapshot snapshot) throws IOException {
+    synchronized (pinLock) {
+      if (snapshot.pins == 0) {
+        return;
+      }
+      snapshot.pins--;
+      for (Segment segment : snapshot.segments) {
+        segment.pins--;
+      }
+    }
+    reclaim();
+  }
+
+  // Caller holds the pin lock, every segment the snapshot's extents live in stays readable
+  private static Snapshot retain(Snapshot snapshot) {
+    snapshot.pins++;
+    for (Segment segment : snapshot.segments) {
+      segment.pins++;
+    }
+    return snapshot;
+  }
+
+  // Deletes compacted segments no pinned snapshot references any more
+  private void reclaim() throws IOException {
+    List<Segment> reclaimable = new ArrayList<>();
+    synchronized (pinLock) {
+      Iterator<Segment> iterator = retired.iterator();
+      while (iterator.hasNext()) {
+        Segment candidate = iterator.next();
+        if (candidate.pins == 0) {
+          reclaimable.add(candidate);
+          iterator.remove();
+        }
+      }
+    }
+    for (Segment candidate : reclaimable) {
+      candidate.channel.close();
+      Files.deleteIfExists(candidate.path);
+      compactedSegments.increment();
+    }
+  }
+
+  // Copies the live extents of sealed segments under the ratio forward, then deletes them
+  public void compact() throws IOException {
+    List<Segment> candidates = new ArrayList<>();
+    synchronized (appendLock) {
+      for (Segment segment : segments.values()) {
+        // Headers are never live, measuring against size would compact small record segments
+        if (segment != active
+            && segment.liveBytes.get() < segment.dataBytes * compactionRatio) {
+          candidates.add(segment);
+        }
+      }
+    }
+    for (Segment segment : candidates) {
+      relocate(segment);
+      // The copies have to be on disk before the only other copy goes away
+      long sequence;
+      synchronized (appendLock) {
+        sequence = appendedSequence;
+      }
+      commit(sequence);
+      // Snapshots published from here on no longer reference it, older ones hold its pins
+      segments.remove(segment.id);
+      synchronized (pinLock) {
+        retired.add(segment);
+      }
+    }
+    reclaim();
+  }
+
+  // Every file with extents in the segment gets one new snapshot for all of its moved extents
+  private void relocate(Segment segment) throws IOException {
+    for (FileExtents extents : files.values()) {
+      extents.lock.lock();
+      try {
+        if (!extents.segmentExtents.containsKey(segment)) {
+          continue;
+        }
+        List<Node> moved = new ArrayList<>();
+        collect(extents.root, segment, moved);
+        for (Node node : moved) {
+          ByteBuffer data = ByteBuffer.allocate(node.extent.length);
+          readFully(segment.channel, data, node.extent.position);
+          data.flip();
+          // Same bytes in a new place, readers keep the version they have
+          appendRecord(extents, node.start, data, extents.version);
+        }
+        extents.publish();
+      } finally {
+        extents.lock.unlock();
+      }
+    }
+  }
+
+  public synchronized void startCompaction(long periodMillis) {
+    if (compactor != null) {
+      return;
+    }
+    compactor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "gelato-compactor");
+              thread.setDaemon(true);
+              return thread;
+            });
+    compactor.scheduleWithFixedDelay(
+        () -> {
+          try {
+            compact();
+          } catch (IOException e) {
+            logger.error("Segment compaction failed", e);
+          }
+        },
+        periodMillis,
+        periodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void close() throws IOException {
+    if (compactor != null) {
+      compactor.shutdownNow();
+      compactor = null;
+    }
+    synchronized (appendLock) {
+      active.channel.force(false);
+      for (Segment segment : segments.values()) {
+        segment.channel.close();
+      }
+      synchronized (pinLock) {
+        for (Segment candidate : retired) {
+          candidate.channel.close();
+        }
+      }
+    }
+  }
+
+  private void roll() throws IOException {
+    long id = 0;
+    if (active != null) {
+      active.channel.force(false);
+      id = active.id + 1;
+    }
+    if (!segments.isEmpty()) {
+      id = Math.max(id, segments.lastKey() + 1);
+    }
+    Path path = directory.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    active = new Segment(id, path, openChannel(path));
+    segments.put(id, active);
+  }
+
+  private void recover() throws IOException {
+    List<Long> ids = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path path : stream) {
+        String name = path.getFileName().toString();
+        ids.add(
+            Long.parseLong(
+                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+      }
+    }
+    ids.sort(Long::compare);
+    for (Long id : ids) {
+      Path path = directory.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+      Segment segment = new Segment(id, path, openChannel(path));
+      segments.put(id, segment);
+      replay(segment);
+      active = segment;
+    }
+    for (FileExtents extents : files.values()) {
+      extents.publish();
+    }
+  }
+
+  // Covers the header fields in front of the checksum slot and then the data
+  private static int checksum(ByteBuffer header, ByteBuffer data) {
+    CRC32 crc = new CRC32();
+    crc.update(header.array(), 0, RECORD_HEADER_SIZE - 4);
+    crc.update(data);
+    return (int) crc.getValue();
+  }
+
+  // A torn record at the tail of a segment is what a crash mid append leaves, it is cut off
+  private void replay(Segment segment) throws IOException {
+    long fileSize = segment.channel.size();
+    long position = 0;
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    while (position + RECORD_HEADER_SIZE <= fileSize) {
+      header.clear();
+      readFully(segment.channel, header, position);
+      header.flip();
+      int length = header.getInt();
+      long fileId = header.getLong();
+      long fileOffset = header.getLong();
+      long version = header.getLong();
+      int checksum = header.getInt();
+      if (length < 0 || position + RECORD_HEADER_SIZE + length > fileSize) {
+        break;
+      }
+      ByteBuffer data = ByteBuffer.allocate(length);
+      readFully(segment.channel, data, position + RECORD_HEADER_SIZE);
+      data.flip();
+      if (checksum(header, data) != checksum) {
+        break;
+      }
+      // Written before ranges were checked on append, skipped so the rest of the log still opens
+      if (!validRange(fileOffset, length)) {
+        logger.error("Skipping record outside of the file range in " + segment.path);
+      } else {
+        FileExtents extents = files.computeIfAbsent(fileId, FileExtents::new);
+        extents.version = Math.max(extents.version, version);
+        if (length > 0) {
+          extents.put(fileOffset, new Extent(segment, position + RECORD_HEADER_SIZE, length));
+        }
+      }
+      position += RECORD_HEADER_SIZE + length;
+      segment.dataBytes += length;
+    }
+    if (position < fileSize) {
+      logger.error("Truncating torn tail of " + segment.path + " at " + position);
+      segment.channel.truncate(position);
+    }
+    segment.size = position;
+  }
+
+  private static FileChannel openChannel(Path path) throws IOException {
+    return FileChannel.open(
+        path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer data, long position)
+      throws IOException {
+    while (data.hasRemaining()) {
+      position += channel.write(data, position);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer target, long position)
+      throws IOException {
+    while (target.hasRemaining()) {
+      int count = channel.read(target, position);
+      if (count == -1) {
+        throw new IOException("Segment shorter than its index");
+      }
+      position += count;
+    }
+  }
+
+  public boolean isSyncWrites() {
+    return syncWrites;
+  }
+
+  // Off leaves durability to the OS, commit returns straight away
+  public void setSyncWrites(boolean syncWrites) {
+    this.syncWrites = syncWrites;
+  }
+
+  public double getCompactionRatio() {
+    return compactionRatio;
+  }
+
+  public void setCompactionRatio(double compactionRatio) {
+    this.compactionRatio = compactionRatio;
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  public long getSyncCount() {
+    return syncs.sum();
+  }
+
+  public long getCommitCount() {
+    return commits.sum();
+  }
+
+  public long getAppendedBytes() {
+    return appendedBytes.sum();
+  }
+
+  public long getCompactedSegments() {
+    return compactedSegments.sum();
+  }
+
+  // Compacted segments still held by pinned snapshots
+  public int getRetiredSegments() {
+    synchronized (pinLock) {
+      return retired.size();
+    }
+  }
+
+  // Walks the extents overlapping [offset, end) in file order
+  private static void collect(Node node, long offset, long end, List<Node> into) {
+    if (node == null) {
+      return;
+    }
+    // Extents are disjoint, nothing left of a node starting at or before offset reaches it
+    if (node.start > offset) {
+      collect(node.left, offset, end, into);
+    }
+    if (node.start < end) {
+      if (node.start + node.extent.length > offset) {
+        into.add(node);
+      }
+      collect(node.right, offset, end, into);
+    }
+  }
+
+  private static void collect(Node node, Segment segment, List<Node> into) {
+    if (node == null) {
+      return;
+    }
+    collect(node.left, segment, into);
+    if (node.extent.segment == segment) {
+      into.add(node);
+    }
+    collect(node.right, segment, into);
+  }
+
+  // Nodes starting before key and the rest, only the path to key is copied
+  private static Node[] split(Node node, long key) {
+    if (node == null) {
+      return new Node[2];
+    }
+    if (node.start < key) {
+      Node[] parts = split(node.right, key);
+      parts[0] = node.with(node.left, parts[0]);
+      return parts;
+    }
+    Node[] parts = split(node.left, key);
+    parts[1] = node.with(parts[1], node.right);
+    return parts;
+  }
+
+  // Every start in left is below every start in right
+  private static Node merge(Node left, Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      return left.with(left.left, merge(left.right, right));
+    }
+    return right.with(merge(left, right.left), right.right);
+  }
+
+  private static Node last(Node node) {
+    while (node != null && node.right != null) {
+      node = node.right;
+    }
+    return node;
+  }
+
+  // Immutable view of a file at one version
+  public static final class Snapshot {
+    private final long version;
+    private final long length;
+    private final Node root;
+    // Segments the extents live in, pinning the snapshot pins each of them
+    private final Segment[] segments;
+    // Guarded by the pin lock
+    private int pins = 0;
+
+    private Snapshot(long version, long length, Node root, Segment[] segments) {
+      this.version = version;
+      this.length = length;
+      this.root = root;
+      this.segments = segments;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public long getLength() {
+      return length;
+    }
+  }
+
+  private static final class Segment {
+    private final long id;
+    private final Path path;
+    private final FileChannel channel;
+    private final AtomicLong liveBytes = new AtomicLong(0);
+    // Guarded by the append lock once the log is open
+    private long size = 0;
+    private long dataBytes = 0;
+    // Pinned snapshots referencing this segment, guarded by the pin lock
+    private int pins = 0;
+
+    private Segment(long id, Path path, FileChannel channel) {
+      this.id = id;
+      this.path = path;
+      this.channel = channel;
+    }
+  }
+
+  private static final class Extent {
+    private final Segment segment;
+    private final long position;
+    private final int length;
+
+    private Extent(Segment segment, long position, int length) {
+      this.segment = segment;
+      this.position = position;
+      this.length = length;
+    }
+
+    private Extent slice(long skip, long newLength) {
+      return new Extent(segment, position + skip, (int) newLength);
+    }
+  }
+
+  // Immutable treap node keyed by file offset, heap ordered on a random priority
+  private static final class Node {
+    private final long start;
+    private final Extent extent;
+    private final int priority;
+    private final Node left;
+    private final Node right;
+
+    private Node(long start, Extent extent, int priority, Node left, Node right) {
+      this.start = start;
+      this.extent = extent;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+    }
+
+    private Node with(Node newLeft, Node newRight) {
+      return new Node(start, extent, priority, newLeft, newRight);
+    }
+  }
+
+  // Non overlapping extents in a persistent treap, writers hold lock and readers use current.
+  // A write copies only the paths it changes so a published version shares the rest of the tree.
+  private static final class FileExtents {
+    private final long fileId;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Extent count per segment in the tree
+    private final Map<Segment, Integer> segmentExtents = new HashMap<>();
+    private Node root = null;
+    private long length = 0;
+    private long version = 0;
+    private volatile Snapshot current = new Snapshot(0, 0, null, new Segment[0]);
+
+    private FileExtents(long fileId) {
+      this.fileId = fileId;
+    }
+
+    private void publish() {
+      current =
+          new Snapshot(version, length, root, segmentExtents.keySet().toArray(new Segment[0]));
+    }
+
+    // Trims whatever the new extent covers, the overwritten bytes stop counting as live
+    private void put(long fileOffset, Extent extent) {
+      long end = fileOffset + extent.length;
+      Node[] lower = split(root, fileOffset);
+      Node[] upper = split(lower[1], end);
+      Node head = lower[0];
+      Node tail = upper[1];
+      Node floor = last(head);
+      if (floor != null && floor.start + floor.extent.length > fileOffset) {
+        long floorEnd = floor.start + floor.extent.length;
+        head = split(head, floor.start)[0];
+        release(floor.extent);
+        head = merge(head, add(floor.start, floor.extent.slice(0, fileOffset - floor.start)));
+        if (floorEnd > end) {
+          tail = merge(add(end, floor.extent.slice(end - floor.start, floorEnd - end)), tail);
+        }
+      }
+      List<Node> covered = new ArrayList<>();
+      collect(upper[0], fileOffset, end, covered);
+      for (Node old : covered) {
+        long oldEnd = old.start + old.extent.length;
+        release(old.extent);
+        if (oldEnd > end) {
+          tail = merge(add(end, old.extent.slice(end - old.start, oldEnd - end)), tail);
+        }
+      }
+      root = merge(merge(head, add(fileOffset, extent)), tail);
+      length = Math.max(length, end);
+    }
+
+    private Node add(long start, Extent extent) {
+      extent.segment.liveBytes.addAndGet(extent.length);
+      segmentExtents.merge(extent.segment, 1, Integer::sum);
+      return new Node(start, extent, ThreadLocalRandom.current().nextInt(), null, null);
+    }
+
+    private void release(Extent extent) {
+      extent.segment.liveBytes.addAndGet(-extent.length);
+      segmentExtents.computeIfPresent(
+          extent.segment, (segment, count) -> count > 1 ? count - 1 : null);
+    }
+  }
+}
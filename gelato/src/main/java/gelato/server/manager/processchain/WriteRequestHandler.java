@@ -13,6 +13,7 @@ package gelato.server.manager.processchain;
 
 import gelato.GelatoFileDescriptor;
 import gelato.server.manager.RequestConnection;
+import java.nio.ByteBuffer;
 
 public interface WriteRequestHandler {
 
@@ -21,4 +22,15 @@ public interface WriteRequestHandler {
       GelatoFileDescriptor clientFileDescriptor,
       long offset,
       byte[] data);
+
+  // Handlers that can consume the frame slice directly should override this to skip the copy
+  default boolean writeRequest(
+      RequestConnection connection,
+      GelatoFileDescriptor clientFileDescriptor,
+      long offset,
+      ByteBuffer data) {
+    byte[] bytes = new byte[data.remaining()];
+    data.duplicate().get(bytes);
+    return writeRequest(connection, clientFileDescriptor, offset, bytes);
+  }
 }
@@ -11,11 +11,7 @@
 
 package gelato.server.manager.v2;
 
-import ciotola.Ciotola;
 import ciotola.annotations.CiotolaAutowire;
-import ciotola.annotations.CiotolaServiceRun;
-import ciotola.annotations.CiotolaServiceStart;
-import ciotola.annotations.CiotolaServiceStop;
 import gelato.GelatoConnection;
 import gelato.GelatoDescriptorManager;
 import gelato.GelatoFileDescriptor;
@@ -29,24 +25,29 @@ import gelato.server.manager.RequestConnection;
 import gelato.server.manager.controllers.GelatoDirectoryController;
 import gelato.server.manager.processchain.AttachRequestHandler;
 import gelato.server.manager.processchain.AuthRequestHandler;
+import gelato.server.manager.processchain.CapabilityRequestHandler;
 import gelato.server.manager.processchain.UnknownRequestHandler;
 import gelato.server.manager.processchain.VersionRequestHandler;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import protocol.ByteEncoder;
 import protocol.Decoder;
 import protocol.P9Protocol;
+import protocol.PayloadCodec;
+import protocol.messages.CapabilityRequest;
 import protocol.messages.Message;
 import protocol.messages.VersionRequest;
 import protocol.messages.request.AttachRequest;
 import protocol.messages.request.AuthRequest;
 import protocol.messages.response.AttachResponse;
 
+// Passive per connection state, requests are run by the shared V2RequestDispatcher
 public class V2ClientDescriptorHandler extends GelatoAbstractGenericRequestHandler
     implements VersionRequestHandler,
+    CapabilityRequestHandler,
     AttachRequestHandler,
     AuthRequestHandler,
     UnknownRequestHandler {
@@ -54,17 +55,23 @@ public class V2ClientDescriptorHandler extends GelatoAbstractGenericRequestHandl
   public static final String INVALID_FID = "Only NO_FID supported";
   public static final String NO_SESSION = "No Session started - TVERSION Expected not found";
   public static final String NOT_SUPPORTED = "Not supported";
+  public static final String INVALID_MSG_SIZE = "Message size not supported";
+  // Requests handled per dispatch before the connection yields its dispatcher thread
+  public static final int MAX_MESSAGES_PER_DISPATCH = 64;
 
   final Logger logger = LoggerFactory.getLogger(V2ClientDescriptorHandler.class);
   private GenericRequestHandler genericRequestHandler = this;
   private VersionRequestHandler versionRequestHandler = this;
+  private CapabilityRequestHandler capabilityRequestHandler = this;
   private AttachRequestHandler attachRequestHandler = this;
   private AuthRequestHandler authRequestHandler = this;
   private UnknownRequestHandler unknownRequestHandler = this;
   private GenericRequestHandler nextHandlerChain;
-  private BlockingQueue<V2Message> readMessageQueue = new LinkedBlockingQueue<>();
+  private Queue<V2Message> readMessageQueue = new ConcurrentLinkedQueue<>();
+  private AtomicBoolean scheduled = new AtomicBoolean(false);
+  private V2RequestDispatcher dispatcher;
   private GelatoDirectoryController rootAttach;
-  private boolean shutdown = false;
+  private volatile boolean shutdown = false;
 
   @CiotolaAutowire
   private GelatoServerManager manager;
@@ -75,38 +82,58 @@ public class V2ClientDescriptorHandler extends GelatoAbstractGenericRequestHandl
   private GelatoFileDescriptor clientFileDescriptor = null;
   private GelatoTags clientTagHandler = null;
 
-  public V2ClientDescriptorHandler(GelatoFileDescriptor connectionName) {
+  public V2ClientDescriptorHandler(
+      GelatoFileDescriptor connectionName, V2RequestDispatcher requestDispatcher) {
     clientFileDescriptor = connectionName;
+    dispatcher = requestDispatcher;
   }
 
-  private void processMessages() {
-    boolean completedOk = true;
+  // Runs on a dispatcher thread, never more than one at a time so requests keep their order
+  void processMessages() {
     try {
-      V2Message message =
-          readMessageQueue.poll(Ciotola.getInstance().getConnectionTimeOut(), TimeUnit.SECONDS);
-      Message msg = message.getMessage();
-      GelatoConnection clientConnection = message.getClientConnection();
-      completedOk =
-          genericRequestHandler.processRequest(
-              clientConnection, clientFileDescriptor, clientSession, msg);
-    } catch (InterruptedException | NullPointerException e) {
-      logger.debug("Connection interrupted - Possible time out - Stopping");
+      if (nextHandlerChain == null) {
+        nextHandlerChain = manager.getParallelRequestHandler();
+        rootAttach = manager.getRoot();
+      }
+      for (int count = 0; count < MAX_MESSAGES_PER_DISPATCH && !isShutdown(); ++count) {
+        V2Message message = readMessageQueue.poll();
+        if (message == null) {
+          break;
+        }
+        boolean completedOk =
+            genericRequestHandler.processRequest(
+                message.getClientConnection(),
+                clientFileDescriptor,
+                clientSession,
+                message.getMessage());
+        if (!completedOk) {
+          shutdown();
+          logger.error("Shutting client connection down - Process Chain Error");
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.error("Shutting client connection down - Unexpected error", e);
       shutdown();
-      return;
+    } finally {
+      scheduled.set(false);
+    }
+    if (!readMessageQueue.isEmpty()) {
+      schedule();
     }
+  }
 
-    if (!completedOk) {
-      shutdown();
-      logger.error("Shutting client connection down - Process Chain Error");
+  private void schedule() {
+    if (!isShutdown() && scheduled.compareAndSet(false, true)) {
+      dispatcher.dispatch(this);
     }
   }
 
   public void addMessage(V2Message processMessage) {
-    try {
-      readMessageQueue.put(processMessage);
-    } catch (InterruptedException e) {
-      logger.error("Interrupted", e);
+    if (isShutdown()) {
+      return;
     }
+    readMessageQueue.add(processMessage);
+    schedule();
   }
 
   public boolean sessionValid() {
@@ -160,7 +187,10 @@ public class V2ClientDescriptorHandler extends GelatoAbstractGenericRequestHandl
       return false;
     }
 
-    if (request.messageType == P9Protocol.TATTACH) {
+    if (request.messageType == P9Protocol.TCAPABILITY) {
+      CapabilityRequest capabilityRequest = Decoder.decodeCapabilityRequest(request);
+      return capabilityRequestHandler.capabilityRequest(requestConnection, capabilityRequest);
+    } else if (request.messageType == P9Protocol.TATTACH) {
       AttachRequest attachRequest = Decoder.decodeAttachRequest(request);
       return attachRequestHandler.attachRequest(requestConnection, attachRequest);
     } else if (request.messageType == P9Protocol.TAUTH) {
@@ -174,15 +204,25 @@ public class V2ClientDescriptorHandler extends GelatoAbstractGenericRequestHandl
   @Override
   public boolean versionRequest(RequestConnection connection, VersionRequest versionRequest) {
 
+    int msgSize =
+        VersionRequest.negotiateMsgSize(versionRequest.getMaxMsgSize(), manager.getMaxMsgSize());
+    if (!VersionRequest.validMsgSize(msgSize)) {
+      logger.error("Rejecting session - Unusable message size " + Integer.toString(msgSize));
+      sendErrorMessage(connection, INVALID_MSG_SIZE);
+      return false;
+    }
+
     clientTagHandler = new GelatoTags();
     clientSession = new GelatoServerSession();
     clientDescriptors = new GelatoDescriptorManager();
     clientSession.setManager(clientDescriptors);
     clientSession.setConnection(connection.getConnection());
     clientSession.setTags(clientTagHandler);
+    clientSession.setMaxMsgSize(msgSize);
 
     // Send Reply
     VersionRequest response = new VersionRequest();
+    response.setMaxMsgSize(msgSize);
     Message rspVersion = response.toMessage();
     rspVersion.messageType = P9Protocol.RVERSION;
     rspVersion.tag = P9Protocol.NO_TAG;
@@ -197,6 +237,40 @@ public class V2ClientDescriptorHandler extends GelatoAbstractGenericRequestHandl
     return true;
   }
 
+  @Override
+  public boolean capabilityRequest(RequestConnection connection, CapabilityRequest request) {
+
+    if (!validateSession(connection.getDescriptor(), connection.getOriginalMessage())) {
+      sendErrorMessage(connection, NO_SESSION);
+      return false;
+    }
+
+    int codec = PayloadCodec.negotiate(request.getCodecs(), manager.getPayloadCodecs());
+    if (!(connection.getConnection() instanceof V2TransportProxy)) {
+      codec = P9Protocol.CODEC_NONE;
+    }
+    // The transport must be able to inflate before the client learns the codec
+    if (codec != P9Protocol.CODEC_NONE) {
+      ((V2TransportProxy) connection.getConnection())
+          .getTransport()
+          .setPayloadCodec(new PayloadCodec(codec));
+    }
+
+    CapabilityRequest response = new CapabilityRequest();
+    response.setCodecs(codec);
+    Message rspCapability = response.toMessage();
+    rspCapability.messageType = P9Protocol.RCAPABILITY;
+    rspCapability.tag = connection.getOriginalMessage().tag;
+    connection.reply(rspCapability);
+
+    logger.debug(
+        "Payload codec "
+            + Integer.toString(codec)
+            + " for Descriptor "
+            + Long.toString(connection.getDescriptor().getDescriptorId()));
+    return true;
+  }
+
   @Override
   public boolean attachRequest(RequestConnection connection, AttachRequest request) {
 
@@ -253,26 +327,16 @@ public class V2ClientDescriptorHandler extends GelatoAbstractGenericRequestHandl
     return false;
   }
 
-  @CiotolaServiceRun
-  public void process() {
-    nextHandlerChain = manager.getParallelRequestHandler();
-    rootAttach = manager.getRoot();
-    while (!isShutdown()) {
-      processMessages();
-    }
-  }
-
-  @CiotolaServiceStop
-  public synchronized void shutdown() {
+  public void shutdown() {
     shutdown = true;
+    readMessageQueue.clear();
   }
 
-  @CiotolaServiceStart
-  public synchronized void start() {
+  public void start() {
     shutdown = false;
   }
 
-  public synchronized boolean isShutdown() {
+  public boolean isShutdown() {
     return shutdown;
   }
 }
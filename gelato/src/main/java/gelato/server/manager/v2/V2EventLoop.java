@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.v2;
+
+import ciotola.Ciotola;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// One selector thread servicing many connections, the thread sleeps in select when idle
+public class V2EventLoop extends Thread {
+
+  private static final long IDLE_SCAN_INTERVAL = 1000;
+
+  private final Logger logger = LoggerFactory.getLogger(V2EventLoop.class);
+  private final Selector selector;
+  private final Queue<V2TCPTransport> pendingRegistrations = new ConcurrentLinkedQueue<>();
+  private final Queue<V2TCPTransport> pendingWrites = new ConcurrentLinkedQueue<>();
+  private volatile boolean running = true;
+  private int loopId;
+  private long lastIdleScan = System.currentTimeMillis();
+
+  public V2EventLoop(int loopId) throws IOException {
+    this.loopId = loopId;
+    selector = Selector.open();
+    setName("gelato-event-loop-" + Integer.toString(loopId));
+    setDaemon(true);
+  }
+
+  public void register(V2TCPTransport transport) {
+    pendingRegistrations.add(transport);
+    selector.wakeup();
+  }
+
+  // Called from any thread once a transport has replies queued
+  public void scheduleWrite(V2TCPTransport transport) {
+    pendingWrites.add(transport);
+    selector.wakeup();
+  }
+
+  public int connections() {
+    return selector.keys().size();
+  }
+
+  public boolean inEventLoop() {
+    return Thread.currentThread() == this;
+  }
+
+  @Override
+  public void run() {
+    logger.trace("Event loop [" + Integer.toString(loopId) + "] now servicing connections");
+    while (running) {
+      try {
+        selector.select(IDLE_SCAN_INTERVAL);
+        processRegistrations();
+        processSelected();
+        processWrites();
+        closeIdle();
+      } catch (IOException | RuntimeException ex) {
+        // Nothing may end the loop, every connection it services would hang with it
+        logger.error("Event loop error", ex);
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      logger.error("Unable to close selector", e);
+    }
+  }
+
+  private void processRegistrations() {
+    V2TCPTransport transport = pendingRegistrations.poll();
+    while (transport != null) {
+      try {
+        transport.register(selector);
+      } catch (IOException e) {
+        logger.error("Unable to register connection", e);
+        close(transport);
+      }
+      transport = pendingRegistrations.poll();
+    }
+  }
+
+  private void processSelected() {
+    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+    while (iter.hasNext()) {
+      SelectionKey key = iter.next();
+      iter.remove();
+      V2TCPTransport transport = (V2TCPTransport) key.attachment();
+      try {
+        if (key.isValid() && key.isReadable()) {
+          transport.processInbound();
+        }
+        if (key.isValid() && key.isWritable()) {
+          transport.processOutbound();
+        }
+      } catch (Exception ex) {
+        logger.debug(
+            "["
+                + Integer.toString(loopId)
+                + "] - Closing connection: "
+                + Long.toString(transport.getConnectionId())
+                + "  - "
+                + ex.getMessage());
+        close(transport);
+      }
+    }
+  }
+
+  private void processWrites() {
+    V2TCPTransport transport = pendingWrites.poll();
+    while (transport != null) {
+      try {
+        transport.processOutbound();
+      } catch (Exception ex) {
+        logger.debug("Closing connection on write error " + ex.getMessage());
+        close(transport);
+      }
+      transport = pendingWrites.poll();
+    }
+  }
+
+  private void closeIdle() {
+    long now = System.currentTimeMillis();
+    if (now - lastIdleScan < IDLE_SCAN_INTERVAL) {
+      return;
+    }
+    lastIdleScan = now;
+    long expiry = Ciotola.getInstance().getConnectionTimeOut() * 1000;
+    for (SelectionKey key : selector.keys()) {
+      V2TCPTransport transport = (V2TCPTransport) key.attachment();
+      long timeSpent = now - transport.getProcessedTime();
+      if (timeSpent > expiry) {
+        logger.debug(
+            "["
+                + Integer.toString(loopId)
+                + "] - Closing connection: "
+                + Long.toString(transport.getConnectionId())
+                + "  - CONNECTION_IDLE ["
+                + Long.toString(timeSpent / 1000)
+                + "] Seconds");
+        close(transport);
+      }
+    }
+  }
+
+  // A failing close costs that connection only, not the loop
+  private void close(V2TCPTransport transport) {
+    try {
+      transport.close();
+    } catch (RuntimeException ex) {
+      logger.error("Unable to close connection " + Long.toString(transport.getConnectionId()), ex);
+    }
+  }
+
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.v2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import protocol.P9Protocol;
+import protocol.messages.FileRegionMessage;
+import protocol.messages.Message;
+
+// Batches queued frames into a single gathering write. Headers and small bodies are copied into a
+// shared staging buffer, larger bodies are written from their own arrays without a copy. Frames
+// can only be added once the previous batch is fully written. A file region closes the batch, its
+// body goes out with transferTo once the buffers ahead of it are written.
+class V2OutboundStage {
+
+  static final int MAX_BATCH_BUFFERS = 64;
+  static final int COPY_THRESHOLD = 1024;
+  static final int STAGING_SIZE = 64 * 1024;
+  // Largest slice of a file region sent per write, the rest waits for the next one
+  static final int REGION_CHUNK = 256 * 1024;
+
+  private final ByteBuffer staging =
+      ByteBuffer.allocate(STAGING_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH_BUFFERS];
+  private int first = 0;
+  private int count = 0;
+  private int stagingStart = 0;
+  private int frames = 0;
+  private FileRegionMessage region = null;
+  private long regionSent = 0;
+
+  boolean hasRemaining() {
+    return first < count || staging.position() > stagingStart || region != null;
+  }
+
+  int frames() {
+    return frames;
+  }
+
+  // False when the batch is full, the frame has to wait for the next one
+  boolean add(Message msg) {
+    if (region != null) {
+      return false;
+    }
+    if (msg instanceof FileRegionMessage) {
+      return addRegion((FileRegionMessage) msg);
+    }
+    int contentSize = msg.getContentSize();
+    boolean copy = contentSize <= COPY_THRESHOLD;
+    int stagingNeeded = P9Protocol.MIN_MSG_SIZE + (copy ? contentSize : 0);
+    if (count + 3 > MAX_BATCH_BUFFERS || staging.remaining() < stagingNeeded) {
+      return false;
+    }
+    staging.putInt(msg.messageSize);
+    staging.put(msg.messageType);
+    staging.putShort((short) msg.tag);
+    if (copy) {
+      if (contentSize > 0) {
+        staging.put(msg.messageContent, 0, contentSize);
+      }
+    } else {
+      closeStaging();
+      buffers[count++] = ByteBuffer.wrap(msg.messageContent, 0, contentSize);
+    }
+    ++frames;
+    return true;
+  }
+
+  private boolean addRegion(FileRegionMessage msg) {
+    int stagingNeeded = P9Protocol.MIN_MSG_SIZE + P9Protocol.MSG_INT_SIZE;
+    if (count + 2 > MAX_BATCH_BUFFERS || staging.remaining() < stagingNeeded) {
+      return false;
+    }
+    staging.putInt(msg.messageSize);
+    staging.put(msg.messageType);
+    staging.putShort((short) msg.tag);
+    staging.put(msg.messageContent, 0, P9Protocol.MSG_INT_SIZE);
+    region = msg;
+    regionSent = 0;
+    ++frames;
+    return true;
+  }
+
+  long write(GatheringByteChannel channel) throws IOException {
+    closeStaging();
+    long written = channel.write(buffers, first, count - first);
+    while (first < count && !buffers[first].hasRemaining()) {
+      buffers[first++] = null;
+    }
+    if (first == count && region != null) {
+      written += writeRegion(channel);
+    }
+    if (first == count && region == null) {
+      reset();
+    }
+    return written;
+  }
+
+  // Zero means the socket is full, the event loop comes back on OP_WRITE
+  private long writeRegion(GatheringByteChannel channel) throws IOException {
+    long written = 0;
+    while (regionSent < region.getRegionLength() && written < REGION_CHUNK) {
+      long sent = region.transferTo(channel, regionSent, REGION_CHUNK - written);
+      if (sent <= 0) {
+        if (region.getRegionPosition() + regionSent >= region.getRegionChannel().size()) {
+          throw new IOException("File region truncated while sending");
+        }
+        return written;
+      }
+      regionSent += sent;
+      written += sent;
+    }
+    if (regionSent == region.getRegionLength()) {
+      region = null;
+    }
+    return written;
+  }
+
+  private void closeStaging() {
+    if (staging.position() > stagingStart) {
+      ByteBuffer region = staging.duplicate();
+      region.position(stagingStart);
+      region.limit(staging.position());
+      buffers[count++] = region;
+      stagingStart = staging.position();
+    }
+  }
+
+  private void reset() {
+    first = 0;
+    count = 0;
+    frames = 0;
+    stagingStart = 0;
+    staging.clear();
+    region = null;
+    regionSent = 0;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato.server.manager.v2;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shared pool draining client handlers, the thread count does not depend on the client count
+public class V2RequestDispatcher {
+
+  private final ExecutorService executor;
+  private final AtomicInteger threadCounter = new AtomicInteger(0);
+
+  public V2RequestDispatcher(int threads) {
+    executor =
+        Executors.newFixedThreadPool(
+            threads,
+            runnable -> {
+              String name = "gelato-dispatcher-" + Integer.toString(threadCounter.incrementAndGet());
+              Thread thread = new Thread(runnable, name);
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  public V2RequestDispatcher(ExecutorService executorService) {
+    executor = executorService;
+  }
+
+  public void dispatch(V2ClientDescriptorHandler handler) {
+    executor.execute(handler::processMessages);
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+}
@@ -11,79 +11,134 @@
 
 package gelato.server.manager.v2;
 
-import ciotola.CiotolaConnectionService;
 import gelato.GelatoFileDescriptor;
+import gelato.server.manager.implementation.LatencyRecorder;
+import gelato.server.manager.implementation.PriorityLanes;
 import gelato.transport.GelatoTransport;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import protocol.Decoder;
-import protocol.Encoder;
+import protocol.FrameDecoder;
+import protocol.P9Protocol;
+import protocol.PayloadCodec;
+import protocol.messages.FileRegionMessage;
 import protocol.messages.Message;
-import protocol.messages.MessageRaw;
 
-public class V2TCPTransport implements GelatoTransport, CiotolaConnectionService {
+// Non blocking transport, all socket IO happens on the owning event loop
+public class V2TCPTransport implements GelatoTransport {
+
+  // Reads handled per readiness event before other connections get a turn
+  private static final int MAX_READS_PER_EVENT = 16;
+  // Region sends read the file on the loop thread, this keeps one connection from holding it
+  private static final long MAX_WRITE_BYTES_PER_EVENT = 1024 * 1024;
+  public static final long DEFAULT_HIGH_WATERMARK = 4 * P9Protocol.MAX_NEGOTIATED_MSG_SIZE;
+  public static final long DEFAULT_LOW_WATERMARK = P9Protocol.MAX_NEGOTIATED_MSG_SIZE;
 
   final Logger logger = LoggerFactory.getLogger(V2TCPTransport.class);
 
   private BlockingQueue<Message> readMessageQueue = new LinkedBlockingQueue<>();
-  private BlockingQueue<Message> writeMessageQueue = new LinkedBlockingQueue<>();
-  private boolean closeConnction = false;
-  private int headerSize = MessageRaw.minSize;
-  private int readSize = 0;
-  private byte[] minHeaderBuffer = new byte[headerSize];
+  // Small metadata replies overtake queued bulk data, each lane keeps its own order
+  private Queue<OutboundMessage> metadataQueue = new ConcurrentLinkedQueue<>();
+  private Queue<OutboundMessage> bulkQueue = new ConcurrentLinkedQueue<>();
+  private LatencyRecorder[] outboundLatency = PriorityLanes.createRecorders();
+  private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+  // Reply bytes not yet written to the socket, staged and deferred frames included
+  private AtomicLong queuedBytes = new AtomicLong(0);
+  private V2OutboundStage outboundStage = new V2OutboundStage();
+  private Message deferred = null;
+  private long highWatermark = DEFAULT_HIGH_WATERMARK;
+  private long lowWatermark = DEFAULT_LOW_WATERMARK;
+  private volatile boolean readPaused = false;
+  private volatile boolean closeConnction = false;
+  private FrameDecoder frameDecoder = new FrameDecoder();
   private V2TransportProxy proxy = new V2TransportProxy(this);
-  private Socket clientSocket;
+  private SocketChannel clientChannel;
+  private SelectionKey selectionKey;
+  private V2EventLoop eventLoop;
   private GelatoFileDescriptor descriptor;
-  private long processTime = System.currentTimeMillis();
+  private volatile long processTime = System.currentTimeMillis();
   private V2ClientDescriptorHandler nextHandler;
-  private int svcProxy = CiotolaConnectionService.NO_PROXY_TERMINATION;
+  private volatile PayloadCodec payloadCodec = null;
 
   public V2TCPTransport(
-      Socket cliSocket,
+      SocketChannel cliChannel,
       GelatoFileDescriptor connectionDescriptor,
-      V2ClientDescriptorHandler clientDescriptorHandler) {
+      V2ClientDescriptorHandler clientDescriptorHandler,
+      V2EventLoop loop) {
     descriptor = connectionDescriptor;
-    clientSocket = cliSocket;
+    clientChannel = cliChannel;
     nextHandler = clientDescriptorHandler;
+    eventLoop = loop;
   }
 
   public int getSourcePort() {
-    return clientSocket.getPort();
+    return clientChannel.socket().getPort();
   }
 
   public String getAddress() {
-    return clientSocket.getInetAddress().toString();
+    return clientChannel.socket().getInetAddress().toString();
+  }
+
+  // Replies queued before the connection was registered go out on the first write readiness
+  void register(Selector selector) throws IOException {
+    clientChannel.configureBlocking(false);
+    selectionKey = clientChannel.register(selector, 0, this);
+    updateInterest(writeScheduled.get());
   }
 
   @Override
   public synchronized void close() {
+    if (closeConnction) {
+      return;
+    }
     logger.debug("Closing Connection");
     closeConnction = true;
-    nextHandler.shutdown();
-    nextHandler = null;
+    if (nextHandler != null) {
+      nextHandler.shutdown();
+      nextHandler = null;
+    }
     closeStream();
   }
 
   @Override
-  public synchronized boolean isOpen() {
+  public boolean isOpen() {
     return !closeConnction;
   }
 
+  // Safe from any thread, the event loop picks the write up
   @Override
   public boolean writeMessage(Message messageRaw) {
-    try {
-      writeMessageQueue.put(messageRaw);
-      return true;
-    } catch (InterruptedException e) {
-      logger.error("Interrupted - Nothing Written to transport", e);
+    if (closeConnction) {
+      logger.error("Connection closed - Nothing Written to transport");
+      return false;
+    }
+    // The codec needs the bytes, read them here rather than on the event loop. File regions
+    // lose the direct send on compressed connections.
+    if (payloadCodec != null && messageRaw instanceof FileRegionMessage) {
+      messageRaw = ((FileRegionMessage) messageRaw).materialize();
+    }
+    queuedBytes.addAndGet(messageRaw.encodedSize());
+    int lane = PriorityLanes.forReply(messageRaw);
+    OutboundMessage outbound = new OutboundMessage(messageRaw, lane);
+    if (lane == PriorityLanes.METADATA) {
+      metadataQueue.add(outbound);
+    } else {
+      bulkQueue.add(outbound);
+    }
+    if (writeScheduled.compareAndSet(false, true)) {
+      eventLoop.scheduleWrite(this);
     }
-    return false;
+    return true;
   }
 
   @Override
@@ -101,146 +156,223 @@ public class V2TCPTransport implements GelatoTransport, CiotolaConnectionService
     return readMessageQueue.size();
   }
 
-  private void processOutbound(OutputStream os) throws InterruptedException, IOException {
+  // Drains the queue in gathered batches until the socket pushes back or the connection has sent
+  // its share for this wakeup, then waits for OP_WRITE
+  void processOutbound() throws IOException {
+    // Not registered yet, the write stays scheduled until register picks it up
+    if (closeConnction || selectionKey == null) {
+      return;
+    }
+    long budget = MAX_WRITE_BYTES_PER_EVENT;
+    do {
+      while (outboundStage.hasRemaining() || fillOutbound()) {
+        long written = outboundStage.write(clientChannel);
+        queuedBytes.addAndGet(-written);
+        underLowWatermark();
+        budget -= written;
+        if (outboundStage.hasRemaining() || budget <= 0) {
+          updateInterest(true);
+          return;
+        }
+      }
+      writeScheduled.set(false);
+      // A writer may have queued after the last poll but lost the race to schedule
+    } while (hasQueuedWrites() && writeScheduled.compareAndSet(false, true));
+    updateInterest(false);
+    processTime = System.currentTimeMillis();
+  }
 
-    Message outbound = writeMessageQueue.take();
-    MessageRaw raw = outbound.toRaw();
-    byte[] outBytes = Encoder.messageToBytes(raw);
-    os.write(outBytes);
+  private boolean fillOutbound() {
+    Message next = deferred != null ? deferred : nextOutbound();
+    deferred = null;
+    while (next != null) {
+      if (!outboundStage.add(next)) {
+        deferred = next;
+        break;
+      }
+      next = nextOutbound();
+    }
+    return outboundStage.hasRemaining();
   }
 
-  private void processInbound(InputStream is) throws InterruptedException, IOException {
-    // peek if there are bytes available otherwise just skip
-    readSize = is.available();
-    if (readSize == 0) {
-      return;
+  private boolean hasQueuedWrites() {
+    return !metadataQueue.isEmpty() || !bulkQueue.isEmpty();
+  }
+
+  private Message nextOutbound() {
+    OutboundMessage outbound = metadataQueue.poll();
+    if (outbound == null) {
+      outbound = bulkQueue.poll();
+    }
+    if (outbound == null) {
+      return null;
+    }
+    outboundLatency[outbound.lane].record(System.nanoTime() - outbound.queued);
+    Message encoded = encodePayload(outbound.message);
+    // Counted from here on at the size that goes out on the socket
+    queuedBytes.addAndGet(encoded.encodedSize() - outbound.message.encodedSize());
+    return encoded;
+  }
+
+  // Shared with the other transports of a server so latency is reported per lane, not per socket
+  public void setOutboundLatency(LatencyRecorder[] outboundLatency) {
+    this.outboundLatency = outboundLatency;
+  }
+
+  private void updateInterest(boolean writePending) {
+    int ops = readPaused ? 0 : SelectionKey.OP_READ;
+    if (writePending) {
+      ops |= SelectionKey.OP_WRITE;
     }
+    selectionKey.interestOps(ops);
+  }
 
-    MessageRaw minMessage;
-    int rsize = 0;
-    // Read the header of the incoming message
-    if (readSize >= headerSize) {
-      rsize = is.read(minHeaderBuffer);
-      if (rsize == -1 || rsize != headerSize) {
-        logger.error("Invalid size detected for header");
-        throw new IOException("??-WTF");
+  // Stop taking requests while the peer is not reading its replies
+  private boolean overHighWatermark() {
+    if (!readPaused && queuedBytes.get() > highWatermark) {
+      readPaused = true;
+      if (selectionKey != null) {
+        selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
       }
-    } else {
-      for (int byteCount = 0; byteCount < headerSize; ++byteCount) {
-        int val = is.read();
-        if (val != -1) {
-          minHeaderBuffer[byteCount] = (byte) (val & 0xFF);
-        } else {
-          logger.error("Unable to read header");
-          throw new IOException("WTF");
-        }
+    }
+    return readPaused;
+  }
+
+  // Checked after every socket write, reading resumes while replies are still draining
+  private void underLowWatermark() {
+    if (readPaused && queuedBytes.get() <= lowWatermark) {
+      readPaused = false;
+    }
+  }
+
+  public long getQueuedBytes() {
+    return queuedBytes.get();
+  }
+
+  public boolean isReadPaused() {
+    return readPaused;
+  }
+
+  // Reading stops above the high watermark of queued reply bytes and resumes below the low one
+  public void setWriteWatermarks(long low, long high) {
+    if (low > high) {
+      throw new RuntimeException("Low watermark above high watermark");
+    }
+    lowWatermark = low;
+    highWatermark = high;
+  }
+
+  // Partial frames stay in the decoder until the next readiness event
+  void processInbound() throws IOException {
+    ByteBuffer readBuffer = frameDecoder.getReadBuffer();
+    for (int reads = 0; reads < MAX_READS_PER_EVENT && !closeConnction; ++reads) {
+      if (overHighWatermark()) {
+        break;
+      }
+      int rsize = clientChannel.read(readBuffer);
+      if (rsize == -1) {
+        throw new IOException("Connection closed");
+      }
+      if (rsize == 0) {
+        break;
+      }
+      Message msg = frameDecoder.poll();
+      while (msg != null) {
+        dispatchInbound(msg);
+        msg = frameDecoder.poll();
+      }
+    }
+    processTime = System.currentTimeMillis();
+  }
+
+  private void dispatchInbound(Message msg) throws IOException {
+    if (msg.messageType == P9Protocol.TCODEC) {
+      if (payloadCodec == null) {
+        logger.error("Compressed frame without a negotiated codec");
+        throw new IOException("No payload codec");
       }
+      msg = payloadCodec.decompress(msg);
+    }
+    V2ClientDescriptorHandler handler = nextHandler;
+    if (handler == null) {
+      return;
     }
-    minMessage = Decoder.decodeRawHeader(minHeaderBuffer);
-    Message msg = minMessage.toMessage();
-    int bytesToRead = msg.getContentSize();
-    byte[] content = new byte[bytesToRead];
-    rsize = is.read(content);
-    msg.messageContent = content;
     V2Message newMessage = new V2Message();
     newMessage.setMessage(msg);
     newMessage.setDescriptor(descriptor);
     newMessage.setClientConnection(proxy);
-    nextHandler.addMessage(newMessage);
+    handler.addMessage(newMessage);
 
-    if (nextHandler.isShutdown()) {
+    if (handler.isShutdown()) {
       notifyClose();
     }
   }
 
-  public InputStream getSocketInputStream() {
-    try {
-      return clientSocket.getInputStream();
-    } catch (IOException e) {
-      logger.error("Unable to open Input stream", e);
+  // Compression never grows a frame so packing decisions can use the plain size
+  private Message encodePayload(Message outbound) {
+    PayloadCodec codec = payloadCodec;
+    if (codec == null) {
+      return outbound;
     }
-    return null;
+    return codec.compress(outbound);
   }
 
-  public OutputStream getSocketOutputStream() {
-    try {
-      return clientSocket.getOutputStream();
-    } catch (IOException e) {
-      logger.error("Unable to open Output stream", e);
-    }
-    return null;
+  public PayloadCodec getPayloadCodec() {
+    return payloadCodec;
+  }
+
+  public void setPayloadCodec(PayloadCodec payloadCodec) {
+    this.payloadCodec = payloadCodec;
   }
 
   public void closeStream() {
     try {
-      clientSocket.close();
+      clientChannel.close();
     } catch (IOException e) {
       logger.error("Unable to close socket", e);
     }
   }
 
-  @Override
-  public int bytesToProcessInbound() throws IOException {
-    return getSocketInputStream().available();
-  }
-
-  @Override
   public int messagesToProcessOutbound() {
-    return writeMessageQueue.size();
+    return metadataQueue.size() + bulkQueue.size();
   }
 
-  @Override
   public long getConnectionId() {
     return descriptor.getDescriptorId();
   }
 
-  @Override
-  public void processInbound() throws IOException, InterruptedException {
-    InputStream is = getSocketInputStream();
-    processInbound(is);
-  }
-
-  @Override
-  public void processOutbound() throws IOException, InterruptedException {
-    OutputStream os = getSocketOutputStream();
-    processOutbound(os);
-  }
-
-  @Override
   public void notifyClose() {
     close();
   }
 
-  @Override
   public boolean isRunning() {
     return !closeConnction;
   }
 
-  @Override
   public long getProcessedTime() {
     return processTime;
   }
 
-  @Override
   public void setProcessedTime(long time) {
     processTime = time;
   }
 
-  @Override
   public boolean isClosed() {
     return closeConnction;
   }
 
-  @Override
-  public int getProxyId() {
-    return svcProxy;
+  public V2EventLoop getEventLoop() {
+    return eventLoop;
   }
 
-  public int getSvcProxy() {
-    return svcProxy;
-  }
+  private static class OutboundMessage {
+    private final Message message;
+    private final int lane;
+    private final long queued = System.nanoTime();
 
-  public void setSvcProxy(int svcProxy) {
-    this.svcProxy = svcProxy;
+    private OutboundMessage(Message message, int lane) {
+      this.message = message;
+      this.lane = lane;
+    }
   }
 }
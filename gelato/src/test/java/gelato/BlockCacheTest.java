@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gelato.server.manager.GelatoServerSession;
+import gelato.server.manager.implementation.BlockCache;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import protocol.QID;
+
+class BlockCacheTest {
+
+  private static final int BLOCK = 1024;
+
+  private static byte[] content(int size) {
+    byte[] data = new byte[size];
+    for (int counter = 0; counter < size; ++counter) {
+      data[counter] = (byte) (counter * 31 + 7);
+    }
+    return data;
+  }
+
+  private static BlockCache.BlockSource source(byte[] data, AtomicInteger loads) {
+    return (position, buff, off, len) -> {
+      loads.incrementAndGet();
+      int count = (int) Math.min(len, data.length - position);
+      System.arraycopy(data, (int) position, buff, off, count);
+      return count;
+    };
+  }
+
+  private static QID qid(long path, long version) {
+    QID qid = new QID();
+    qid.setLongFileId(path);
+    qid.setVersion(version);
+    return qid;
+  }
+
+  @Test
+  void testHitsEvictionAndVersions() throws Exception {
+    byte[] data = content(10 * BLOCK + 100);
+    AtomicInteger loads = new AtomicInteger();
+    BlockCache cache = new BlockCache(4 * BLOCK, BLOCK);
+    cache.setReadAheadBlocks(0);
+    BlockCache.BlockSource source = source(data, loads);
+
+    // Unaligned reads span blocks and come back exactly as the file holds them
+    byte[] buff = new byte[BLOCK + 100];
+    assertEquals(buff.length, cache.read(source, qid(1, 0), data.length, 900, buff, 0, buff.length));
+    assertArrayEquals(Arrays.copyOfRange(data, 900, 900 + buff.length), buff);
+    assertEquals(2, cache.getMisses());
+    cache.read(source, qid(1, 0), data.length, 900, buff, 0, buff.length);
+    assertEquals(2, cache.getHits());
+    assertEquals(2, loads.get());
+
+    // Short at the end of the file
+    assertEquals(100, cache.read(source, qid(1, 0), data.length, 10 * BLOCK, buff, 0, BLOCK));
+
+    // A scan larger than the budget stays inside it
+    for (int block = 0; block < 10; ++block) {
+      cache.read(source, qid(1, 0), data.length, block * BLOCK, buff, 0, BLOCK);
+    }
+    assertTrue(cache.getUsedBytes() <= 4 * BLOCK);
+    assertTrue(cache.getEvictions() > 0);
+
+    // A new QID version never sees blocks of the old one
+    long misses = cache.getMisses();
+    cache.read(source, qid(1, 1), data.length, 9 * BLOCK, buff, 0, BLOCK);
+    assertEquals(misses + 1, cache.getMisses());
+  }
+
+  @Test
+  void testSequentialReadAhead() throws Exception {
+    byte[] data = content(16 * BLOCK);
+    BlockCache cache = new BlockCache(64 * BLOCK, BLOCK);
+    cache.setReadAheadBlocks(4);
+    BlockCache.BlockSource source = source(data, new AtomicInteger());
+    GelatoServerSession session = new GelatoServerSession();
+    byte[] buff = new byte[BLOCK];
+
+    for (int block = 0; block < 3; ++block) {
+      cache.read(source, qid(2, 0), data.length, block * BLOCK, buff, 0, BLOCK);
+      cache.readAhead(session, 5, source, qid(2, 0), data.length, block * BLOCK, BLOCK);
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (cache.getReadAheads() < 4 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(4, cache.getReadAheads());
+
+    // The prefetched blocks are hits for the reader that keeps going
+    long misses = cache.getMisses();
+    for (int block = 3; block < 7; ++block) {
+      cache.read(source, qid(2, 0), data.length, block * BLOCK, buff, 0, BLOCK);
+      assertArrayEquals(Arrays.copyOfRange(data, block * BLOCK, (block + 1) * BLOCK), buff);
+    }
+    assertEquals(misses, cache.getMisses());
+
+    // Seeking back starts a new stream, it gets its read ahead again
+    cache.clear();
+    for (int block = 0; block < 3; ++block) {
+      cache.read(source, qid(2, 0), data.length, block * BLOCK, buff, 0, BLOCK);
+      cache.readAhead(session, 5, source, qid(2, 0), data.length, block * BLOCK, BLOCK);
+    }
+    deadline = System.currentTimeMillis() + 5000;
+    while (cache.getReadAheads() < 8 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(8, cache.getReadAheads());
+
+    // Clunk drops the stream state instead of leaving it in the session
+    cache.release(session, 5, 2);
+    assertNull(session.getSessionVar("gelato.readahead.5.2"));
+    cache.shutdown();
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gelato.server.manager.GelatoServerSession;
+import gelato.server.manager.RequestConnection;
+import gelato.server.manager.controllers.impl.GelatoChannelFileControllerImpl;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import protocol.Decoder;
+import protocol.messages.Message;
+
+class ChannelFileControllerTest {
+
+  private static final int REGION_SIZE = 1000;
+  private static final int FILE_SIZE = 10 * REGION_SIZE + 37;
+
+  private static byte[] fill(int size) {
+    byte[] data = new byte[size];
+    for (int counter = 0; counter < size; ++counter) {
+      data[counter] = (byte) (counter * 31 + counter / 251);
+    }
+    return data;
+  }
+
+  // Everything a single read replied with, joined in order
+  private static byte[] read(
+      GelatoChannelFileControllerImpl controller, long offset, int numberOfBytes) {
+    RecordingConnection connection = new RecordingConnection();
+    RequestConnection request = new RequestConnection();
+    request.setSession(new GelatoServerSession());
+    request.setConnection(connection);
+    assertTrue(controller.readRequest(request, new GelatoFileDescriptor(), offset, numberOfBytes));
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    for (Message reply : connection.replies()) {
+      byte[] chunk = Decoder.decodeReadResponse(reply).getData();
+      if (chunk != null) {
+        data.write(chunk, 0, chunk.length);
+      }
+    }
+    return data.toByteArray();
+  }
+
+  private static byte[] expected(byte[] content, long offset, int numberOfBytes) {
+    if (offset >= content.length) {
+      return new byte[0];
+    }
+    return Arrays.copyOfRange(
+        content, (int) offset, (int) Math.min(content.length, offset + numberOfBytes));
+  }
+
+  @Test
+  void testMappedReadsCrossRegionsAndStopAtTheEnd() throws Exception {
+    byte[] content = fill(FILE_SIZE);
+    Path file = Files.createTempFile("channel", ".bin");
+    Files.write(file, content);
+    GelatoChannelFileControllerImpl controller =
+        new GelatoChannelFileControllerImpl(file, new GelatoFileDescriptor());
+    controller.setZeroCopy(false);
+    controller.setMapRegionSize(REGION_SIZE);
+    controller.enableMemoryMap(0);
+    assertTrue(controller.isMapped());
+
+    // Reads ending on, starting on and spanning region boundaries
+    long[][] reads = {
+      {0, REGION_SIZE},
+      {REGION_SIZE - 1, 2},
+      {REGION_SIZE, REGION_SIZE},
+      {REGION_SIZE / 2, 3 * REGION_SIZE},
+      {0, FILE_SIZE},
+      {10 * REGION_SIZE - 1, 10}
+    };
+    for (long[] at : reads) {
+      int count = (int) at[1];
+      assertArrayEquals(expected(content, at[0], count), read(controller, at[0], count));
+    }
+
+    // The tail past the end is cut off and reads from the end on come back empty
+    assertArrayEquals(expected(content, FILE_SIZE - 5, 100), read(controller, FILE_SIZE - 5, 100));
+    assertEquals(0, read(controller, FILE_SIZE, 10).length);
+    assertEquals(0, read(controller, FILE_SIZE + REGION_SIZE, 10).length);
+
+    // Readers share the regions without any lock
+    ExecutorService readers = Executors.newFixedThreadPool(8);
+    List<Future<?>> results = new ArrayList<>();
+    for (int reader = 0; reader < 8; ++reader) {
+      Random random = new Random(reader);
+      results.add(
+          readers.submit(
+              () -> {
+                for (int counter = 0; counter < 200; ++counter) {
+                  long offset = random.nextInt(FILE_SIZE + 100);
+                  int count = random.nextInt(3 * REGION_SIZE);
+                  assertArrayEquals(
+                      expected(content, offset, count), read(controller, offset, count));
+                }
+              }));
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+    readers.shutdown();
+    controller.close();
+    Files.delete(file);
+  }
+}
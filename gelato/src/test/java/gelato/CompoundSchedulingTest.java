@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gelato.server.GelatoServerManager;
+import gelato.server.manager.GelatoParallelRequestHandler;
+import gelato.server.manager.GelatoServerSession;
+import gelato.server.manager.RequestConnection;
+import gelato.server.manager.controllers.impl.GelatoDirectoryControllerImpl;
+import gelato.server.manager.controllers.impl.GelatoFileControllerImpl;
+import gelato.server.manager.implementation.QIDInMemoryManager;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import protocol.ByteEncoder;
+import protocol.Decoder;
+import protocol.P9Protocol;
+import protocol.messages.Message;
+import protocol.messages.request.CloseRequest;
+import protocol.messages.request.CompoundRequest;
+import protocol.messages.request.OpenRequest;
+import protocol.messages.request.ReadRequest;
+import protocol.messages.request.StatRequest;
+import protocol.messages.request.WalkRequest;
+import protocol.messages.request.WriteRequest;
+import protocol.messages.request.WriteRequestView;
+import protocol.messages.response.CompoundResponse;
+
+class CompoundSchedulingTest {
+
+  private static GelatoFileDescriptor fid(long id) {
+    GelatoFileDescriptor descriptor = new GelatoFileDescriptor();
+    descriptor.setDescriptorId(id);
+    descriptor.getQid().setLongFileId(id);
+    return descriptor;
+  }
+
+  private static Message reply(RecordingConnection connection, byte type, int tag)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (System.currentTimeMillis() < deadline) {
+      for (Message message : connection.replies()) {
+        if (message.messageType == type && message.tag == tag) {
+          return message;
+        }
+      }
+      Thread.sleep(5);
+    }
+    return null;
+  }
+
+  @Test
+  void testCompoundMovesOnToTheResourceItWalkedTo() throws Exception {
+    QIDInMemoryManager qids = new QIDInMemoryManager();
+    GelatoServerManager manager = new GelatoServerManager(null, qids);
+    CountDownLatch statStarted = new CountDownLatch(1);
+    CountDownLatch releaseStat = new CountDownLatch(1);
+    GelatoDirectoryControllerImpl directory =
+        new GelatoDirectoryControllerImpl(manager) {
+          @Override
+          public boolean statRequest(
+              RequestConnection connection, GelatoFileDescriptor clientFileDescriptor) {
+            statStarted.countDown();
+            try {
+              releaseStat.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return super.statRequest(connection, clientFileDescriptor);
+          }
+        };
+    directory.setFileDescriptor(fid(500));
+    manager.setRootDirectory(directory);
+    byte[] content = new byte[100];
+    directory.addFile(
+        new GelatoFileControllerImpl(
+            "data", new ByteArrayInputStream(content), content.length, fid(501)));
+
+    GelatoParallelRequestHandler handler = new GelatoParallelRequestHandler(qids);
+    handler.setHandlerMode(GelatoServerManager.ParallelHandlerMode.READ_WRITE);
+    RecordingConnection connection = new RecordingConnection();
+    GelatoServerSession session = new GelatoServerSession();
+    session.setManager(new GelatoDescriptorManager());
+    session.getManager().mapQID(fid(1), directory.getFileDescriptor());
+    GelatoFileDescriptor client = fid(9);
+
+    // A slow TSTAT holds the directory shared
+    StatRequest stat = new StatRequest();
+    stat.setTag(1);
+    stat.setFileDescriptor(1);
+    handler.processRequest(connection, client, session, stat.toMessage());
+    assertTrue(statStarted.await(5, TimeUnit.SECONDS));
+
+    // Only the walk needs the directory, the open, read and clunk run on the file's own key
+    WalkRequest walk = new WalkRequest();
+    walk.setBaseDescriptor(1);
+    walk.setNewDecriptor(2);
+    walk.setTargetFile("data");
+    OpenRequest open = new OpenRequest();
+    open.setFileDescriptor(2);
+    open.setMode((byte) P9Protocol.OPEN_MODE_OREAD);
+    ReadRequest read = new ReadRequest();
+    read.setFileDescriptor(2);
+    read.setFileOffset(0);
+    read.setBytesToRead(content.length);
+    CloseRequest clunk = new CloseRequest();
+    clunk.setFileID(2);
+    CompoundRequest compound = new CompoundRequest();
+    compound.setTag(2);
+    compound.addOperation(walk);
+    compound.addOperation(open);
+    int readOperation = compound.addOperation(read);
+    compound.addOperation(clunk);
+    handler.processRequest(connection, client, session, compound.toMessage());
+
+    Message compoundReply = reply(connection, P9Protocol.RCOMPOUND, 2);
+    assertTrue(compoundReply != null, "Compound waited on the directory");
+    CompoundResponse response = Decoder.decodeCompoundResponse(compoundReply);
+    assertTrue(!response.isError());
+    assertEquals(4, response.getReplies().size());
+    List<Message> readReplies = response.getReplies(readOperation);
+    assertEquals(content.length, Decoder.decodeReadResponse(readReplies.get(0)).getDataLength());
+
+    releaseStat.countDown();
+    assertTrue(reply(connection, P9Protocol.RSTAT, 1) != null);
+  }
+
+  @Test
+  void testWritesWithABadCountAreRefusedBeforeDispatch() throws Exception {
+    QIDInMemoryManager qids = new QIDInMemoryManager();
+    GelatoServerManager manager = new GelatoServerManager(null, qids);
+    GelatoFileControllerImpl file =
+        new GelatoFileControllerImpl("data", new ByteArrayInputStream(new byte[0]), 0, fid(501));
+    GelatoParallelRequestHandler handler = new GelatoParallelRequestHandler(qids);
+    handler.setHandlerMode(GelatoServerManager.ParallelHandlerMode.READ_WRITE);
+    RecordingConnection connection = new RecordingConnection();
+    GelatoServerSession session = new GelatoServerSession();
+    session.setManager(new GelatoDescriptorManager());
+    session.getManager().mapQID(fid(1), file.getFileDescriptor());
+    GelatoFileDescriptor client = fid(9);
+
+    // A count of -1 is answered at once and never reaches the controller
+    WriteRequest write = new WriteRequest();
+    write.setTag(1);
+    write.setFileDescriptor(1);
+    write.setWriteData(new byte[] {1, 2, 3});
+    Message bad = write.toMessage();
+    ByteEncoder.encodeInt(-1, bad.messageContent, WriteRequestView.COUNT_POSITION);
+    assertFalse(handler.processRequest(connection, client, session, bad));
+    assertEquals(P9Protocol.RERROR, connection.last().messageType);
+    assertEquals(1, connection.last().tag);
+
+    // The same inside a compound fails the whole batch up front
+    CompoundRequest compound = new CompoundRequest();
+    compound.setTag(2);
+    compound.addOperation(write);
+    ByteEncoder.encodeInt(
+        4, compound.getOperations().get(0).messageContent, WriteRequestView.COUNT_POSITION);
+    handler.processRequest(connection, client, session, compound.toMessage());
+    assertEquals(P9Protocol.RERROR, connection.last().messageType);
+    assertEquals(2, connection.last().tag);
+
+    // Anything dispatched would have answered with a reply of its own
+    Thread.sleep(200);
+    assertEquals(2, connection.replies().size());
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gelato.server.GelatoServerManager;
+import gelato.server.manager.GelatoServerSession;
+import gelato.server.manager.RequestConnection;
+import gelato.server.manager.controllers.impl.GelatoDirectoryControllerImpl;
+import gelato.server.manager.controllers.impl.GelatoFileControllerImpl;
+import gelato.server.manager.implementation.QIDInMemoryManager;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import protocol.Decoder;
+import protocol.P9Protocol;
+import protocol.StatStruct;
+import protocol.StatView;
+
+class DirectoryControllerTest {
+
+  private static long nextFid = 100;
+
+  private static GelatoFileDescriptor fid(long id) {
+    GelatoFileDescriptor descriptor = new GelatoFileDescriptor();
+    descriptor.setDescriptorId(id);
+    return descriptor;
+  }
+
+  private static GelatoFileControllerImpl file(String name, int size) {
+    GelatoFileDescriptor descriptor = fid(++nextFid);
+    descriptor.getQid().setLongFileId(nextFid);
+    return new GelatoFileControllerImpl(
+        name, new ByteArrayInputStream(new byte[size]), size, descriptor);
+  }
+
+  private static RequestConnection request(RecordingConnection connection) {
+    return request(connection, new GelatoServerSession());
+  }
+
+  private static RequestConnection request(
+      RecordingConnection connection, GelatoServerSession session) {
+    RequestConnection request = new RequestConnection();
+    request.setSession(session);
+    request.setConnection(connection);
+    return request;
+  }
+
+  private static byte[] page(
+      GelatoDirectoryControllerImpl directory,
+      RecordingConnection connection,
+      GelatoServerSession session,
+      long offset,
+      int count) {
+    directory.readRequest(request(connection, session), fid(7), offset, count);
+    assertEquals(P9Protocol.RREAD, connection.last().messageType);
+    byte[] data = Decoder.decodeReadResponse(connection.last()).getData();
+    return data == null ? new byte[0] : data;
+  }
+
+  // Name to stat of every entry the directory lists in one read
+  private static Map<String, StatStruct> list(
+      GelatoDirectoryControllerImpl directory, RecordingConnection connection) {
+    directory.readRequest(request(connection), fid(1), 0, Integer.MAX_VALUE);
+    byte[] data = Decoder.decodeReadResponse(connection.last()).getData();
+    Map<String, StatStruct> entries = new HashMap<>();
+    int position = 0;
+    StatView view = new StatView();
+    while (position < data.length) {
+      view.reset(data, position);
+      entries.put(view.getName(), view.toStatStruct());
+      position += view.getStatSize();
+    }
+    return entries;
+  }
+
+  private static long statLength(
+      GelatoDirectoryControllerImpl directory, RecordingConnection connection) {
+    directory.statRequest(request(connection), fid(1));
+    return Decoder.decodeStatResponse(connection.last()).getStatStruct().getLength();
+  }
+
+  @Test
+  void testChildChangesReachTheCachedListing() {
+    GelatoServerManager manager = new GelatoServerManager(null, new QIDInMemoryManager());
+    GelatoDirectoryControllerImpl directory = new GelatoDirectoryControllerImpl(manager);
+    RecordingConnection connection = new RecordingConnection();
+    GelatoFileControllerImpl first = file("first", 10);
+    GelatoFileControllerImpl second = file("second", 20);
+    directory.addFile(first);
+    directory.addFile(second);
+    assertEquals(2, list(directory, connection).size());
+    long length = statLength(directory, connection);
+
+    // Length, an in place QID bump and a rename all show without the directory being told
+    first.getStat().setLength(15);
+    assertEquals(15, list(directory, connection).get("first").getLength());
+    second.setFileInputStream(new ByteArrayInputStream(new byte[20]));
+    assertEquals(1, list(directory, connection).get("second").getQid().getVersion());
+    second.setResourceName("second-renamed");
+    assertEquals(length + "-renamed".length(), statLength(directory, connection));
+    assertEquals(20, list(directory, connection).get("second-renamed").getLength());
+
+    // A replaced stat keeps reporting, a removed file stops
+    StatStruct replacement = first.getStat().duplicate();
+    replacement.setLength(30);
+    first.setStat(replacement);
+    assertEquals(30, list(directory, connection).get("first").getLength());
+    first.getStat().setLength(31);
+    assertEquals(31, list(directory, connection).get("first").getLength());
+    directory.removeFile(first);
+    assertEquals(1, list(directory, connection).size());
+  }
+
+  @Test
+  void testPagesComeFromTheListingFrozenAtOffsetZero() {
+    GelatoServerManager manager = new GelatoServerManager(null, new QIDInMemoryManager());
+    GelatoDirectoryControllerImpl directory = new GelatoDirectoryControllerImpl(manager);
+    RecordingConnection connection = new RecordingConnection();
+    GelatoServerSession session = new GelatoServerSession();
+    List<GelatoFileControllerImpl> children = new ArrayList<>();
+    Set<String> original = new HashSet<>();
+    for (int child = 0; child < 6; ++child) {
+      children.add(file("file-" + child, child));
+      directory.addFile(children.get(child));
+      original.add("file-" + child);
+    }
+    int entrySize = children.get(0).getStat().EncodeStat().length;
+
+    // A count too small for one entry is an error rather than an empty page
+    directory.readRequest(request(connection, session), fid(7), 0, entrySize - 1);
+    assertEquals(P9Protocol.RERROR, connection.last().messageType);
+
+    // Two whole entries a page, the directory changes once the first page is out
+    Set<String> listed = new HashSet<>();
+    StatView view = new StatView();
+    long offset = 0;
+    byte[] data = page(directory, connection, session, offset, 2 * entrySize + 1);
+    assertEquals(2 * entrySize, data.length);
+    while (data.length > 0) {
+      for (int position = 0; position < data.length; position += view.getStatSize()) {
+        assertTrue(listed.add(view.reset(data, position).getName()));
+      }
+      if (offset == 0) {
+        directory.removeFile(children.get(5));
+        directory.addFile(file("a-much-longer-file-name", 1));
+        children.get(0).setResourceName("f0");
+      }
+      offset += data.length;
+      data = page(directory, connection, session, offset, 2 * entrySize + 1);
+    }
+    assertEquals(original, listed);
+
+    // A listing started again from offset 0 sees the changes
+    Map<String, StatStruct> current = list(directory, connection);
+    assertEquals(6, current.size());
+    assertTrue(current.containsKey("a-much-longer-file-name"));
+    assertTrue(current.containsKey("f0"));
+    assertFalse(current.containsKey("file-5"));
+
+    // Clunk drops the frozen copy, later offsets are served from the current listing
+    directory.closeRequest(request(connection, session), fid(7));
+    assertEquals(P9Protocol.RCLUNK, connection.last().messageType);
+    for (int child = 1; child < 5; ++child) {
+      directory.removeFile(children.get(child));
+    }
+    assertEquals(0, page(directory, connection, session, 4 * entrySize, entrySize).length);
+  }
+}
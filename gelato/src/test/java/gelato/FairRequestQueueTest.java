@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import gelato.server.manager.GelatoServerSession;
+import gelato.server.manager.implementation.FairRequestQueue;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FairRequestQueueTest {
+
+  private static GelatoServerSession session(String userName) {
+    GelatoServerSession session = new GelatoServerSession();
+    session.setUserName(userName);
+    return session;
+  }
+
+  private static String drain(FairRequestQueue queue, List<String> released, int count) {
+    for (int counter = 0; counter < count; ++counter) {
+      queue.complete();
+    }
+    return String.join("", released);
+  }
+
+  @Test
+  void testSessionsShareByWeight() {
+    FairRequestQueue queue = new FairRequestQueue();
+    queue.setMaxInFlight(1);
+    queue.setQuantum(1);
+    queue.setUserWeight("heavy", 2);
+    List<String> released = new ArrayList<>();
+    GelatoServerSession heavy = session("heavy");
+    GelatoServerSession light = session("light");
+
+    // The first heavy request goes straight out, the rest queue behind the in flight limit
+    for (int counter = 0; counter < 7; ++counter) {
+      queue.submit(heavy, 1, () -> released.add("H"));
+    }
+    for (int counter = 0; counter < 3; ++counter) {
+      queue.submit(light, 1, () -> released.add("L"));
+    }
+    assertEquals(1, queue.getInFlight());
+    assertEquals(9, queue.getQueued());
+
+    // Then two heavy for every light one
+    assertEquals("HHHLHHLHH", drain(queue, released, 8));
+    drain(queue, released, 2);
+    assertEquals(0, queue.getQueued());
+    assertEquals(0, queue.getActiveFlows());
+  }
+
+  @Test
+  void testLargeRequestsSpendMoreCredit() {
+    FairRequestQueue queue = new FairRequestQueue();
+    queue.setMaxInFlight(1);
+    queue.setQuantum(2);
+    queue.setFlowPerUser(true);
+    List<String> released = new ArrayList<>();
+
+    queue.submit(session("bulk"), 1, () -> released.add("-"));
+    for (int counter = 0; counter < 3; ++counter) {
+      queue.submit(session("bulk"), 4, () -> released.add("B"));
+    }
+    for (int counter = 0; counter < 3; ++counter) {
+      queue.submit(session("meta"), 1, () -> released.add("M"));
+    }
+    // Sessions of one user share a flow, a cost 4 read needs two rounds of credit
+    assertEquals("-MMBM", drain(queue, released, 4));
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gelato.server.manager.GelatoServerSession;
+import gelato.server.manager.RequestConnection;
+import gelato.server.manager.controllers.impl.GelatoLogFileControllerImpl;
+import gelato.server.manager.implementation.SegmentLog;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import protocol.Decoder;
+import protocol.P9Protocol;
+
+class LogFileControllerTest {
+
+  private static GelatoFileDescriptor fid(long id) {
+    GelatoFileDescriptor descriptor = new GelatoFileDescriptor();
+    descriptor.setDescriptorId(id);
+    return descriptor;
+  }
+
+  private static byte[] fill(int size, int seed) {
+    byte[] data = new byte[size];
+    for (int counter = 0; counter < size; ++counter) {
+      data[counter] = (byte) (counter * 31 + seed);
+    }
+    return data;
+  }
+
+  @Test
+  void testReadersKeepTheVersionTheyOpened() throws Exception {
+    Path directory = Files.createTempDirectory("logfile");
+    SegmentLog log = new SegmentLog(directory, 4096);
+    GelatoFileDescriptor descriptor = fid(1);
+    descriptor.getQid().setLongFileId(42);
+    GelatoLogFileControllerImpl controller =
+        new GelatoLogFileControllerImpl("data", log, descriptor);
+    RecordingConnection connection = new RecordingConnection();
+    RequestConnection request = new RequestConnection();
+    request.setSession(new GelatoServerSession());
+    request.setConnection(connection);
+
+    // A durable write is acknowledged and moves the QID to the next version
+    assertTrue(controller.writeRequest(request, fid(10), 0, fill(100, 1)));
+    assertEquals(P9Protocol.RWRITE, connection.last().messageType);
+    assertEquals(100, Decoder.decodeWriteResponse(connection.last()).getBytesWritten());
+    assertEquals(1, controller.getQID().getVersion());
+    assertEquals(100, controller.getStat().getLength());
+
+    // The reader sees the version it opened even after it is overwritten
+    assertTrue(controller.openRequest(request, fid(11), (byte) P9Protocol.OPEN_MODE_OREAD));
+    assertTrue(controller.readsSnapshot(request.getSession(), 11));
+    assertTrue(controller.writeRequest(request, fid(10), 0, fill(100, 2)));
+    assertEquals(2, controller.getQID().getVersion());
+    assertTrue(controller.readRequest(request, fid(11), 0, 100));
+    assertArrayEquals(fill(100, 1), Decoder.decodeReadResponse(connection.last()).getData());
+    assertTrue(controller.readRequest(request, fid(12), 0, 100));
+    assertArrayEquals(fill(100, 2), Decoder.decodeReadResponse(connection.last()).getData());
+
+    // Clunk drops the pin and still answers the client
+    assertTrue(controller.closeRequest(request, fid(11)));
+    assertEquals(P9Protocol.RCLUNK, connection.last().messageType);
+    assertFalse(controller.readsSnapshot(request.getSession(), 11));
+
+    // Truncation is refused instead of silently ignored
+    assertFalse(
+        controller.openRequest(
+            request,
+            fid(13),
+            (byte) (P9Protocol.OPEN_MODE_OWRITE | P9Protocol.OPEN_MODE_OTRUNC)));
+    assertEquals(P9Protocol.RERROR, connection.last().messageType);
+    log.close();
+    try (Stream<Path> paths = Files.list(directory)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        Files.delete(path);
+      }
+    }
+    Files.delete(directory);
+  }
+}
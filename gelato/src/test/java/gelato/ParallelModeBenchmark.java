@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import gelato.server.GelatoServerManager;
+import gelato.server.GelatoServerManager.ParallelHandlerMode;
+import gelato.server.manager.controllers.impl.GelatoDirectoryControllerImpl;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import protocol.Encoder;
+import protocol.FrameDecoder;
+import protocol.P9Protocol;
+import protocol.messages.Message;
+import protocol.messages.TransactionMessage;
+import protocol.messages.VersionRequest;
+import protocol.messages.request.AttachRequest;
+import protocol.messages.request.StatRequest;
+
+// Not a unit test, compares parallel modes with many idle-then-busy connections:
+//   ParallelModeBenchmark <CONTENTION|VIRTUAL_THREADS|...> <connections> <rounds> [port]
+// Each round sends one TSTAT on every connection and then collects every reply. Run one mode per
+// JVM, 10k connections needs a raised open file limit on both sides.
+public class ParallelModeBenchmark {
+
+  private static final int ROOT_FID = 1;
+
+  private static class Client {
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final FrameDecoder decoder = new FrameDecoder(1024, P9Protocol.DEFAULT_MSG_SIZE);
+
+    Client(String host, int port) throws IOException {
+      socket = new Socket(host, port);
+      socket.setTcpNoDelay(true);
+      input = socket.getInputStream();
+      output = socket.getOutputStream();
+    }
+
+    void send(TransactionMessage msg) throws IOException {
+      output.write(Encoder.encodeToBytes(msg));
+    }
+
+    Message receive() throws IOException {
+      Message msg = decoder.poll();
+      while (msg == null) {
+        if (decoder.readFrom(input, Integer.MAX_VALUE) == -1) {
+          throw new IOException("Connection closed");
+        }
+        msg = decoder.poll();
+      }
+      return msg;
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    ParallelHandlerMode mode = ParallelHandlerMode.valueOf(args.length > 0 ? args[0] : "CONTENTION");
+    int connections = Integer.parseInt(args.length > 1 ? args[1] : "1000");
+    int rounds = Integer.parseInt(args.length > 2 ? args[2] : "20");
+    int port = Integer.parseInt(args.length > 3 ? args[3] : "9595");
+
+    GelatoServerManager manager = new GelatoServerManager(port);
+    manager.setParallelPolicy(mode);
+    GelatoDirectoryControllerImpl root = new GelatoDirectoryControllerImpl(manager);
+    GelatoFileDescriptor rootDescriptor = manager.getDescriptorManager().generateDescriptor();
+    rootDescriptor.getQid().setLongFileId(rootDescriptor.getDescriptorId());
+    root.setFileDescriptor(rootDescriptor);
+    manager.setRootDirectory(root);
+    manager.start();
+    Thread.sleep(500);
+
+    List<Client> clients = new ArrayList<>(connections);
+    long connectStart = System.nanoTime();
+    for (int count = 0; count < connections; ++count) {
+      Client client = new Client("127.0.0.1", port);
+      VersionRequest version = new VersionRequest();
+      version.setTag(P9Protocol.NO_TAG);
+      client.send(version);
+      client.receive();
+      AttachRequest attach = new AttachRequest();
+      attach.setTag(1);
+      attach.setFid(ROOT_FID);
+      attach.setAfid(P9Protocol.NO_FID);
+      attach.setUsername("bench");
+      attach.setNamespace("");
+      client.send(attach);
+      if (client.receive().messageType != P9Protocol.RATTACH) {
+        throw new IllegalStateException("Attach failed");
+      }
+      clients.add(client);
+    }
+    long connectTime = System.nanoTime() - connectStart;
+
+    long[] roundTimes = new long[rounds];
+    StatRequest stat = new StatRequest();
+    stat.setFileDescriptor(ROOT_FID);
+    for (int round = 0; round < rounds; ++round) {
+      long roundStart = System.nanoTime();
+      stat.setTag(round + 2);
+      byte[] request = Encoder.encodeToBytes(stat);
+      for (Client client : clients) {
+        client.output.write(request);
+      }
+      for (Client client : clients) {
+        if (client.receive().messageType != P9Protocol.RSTAT) {
+          throw new IllegalStateException("Stat failed");
+        }
+      }
+      roundTimes[round] = System.nanoTime() - roundStart;
+    }
+
+    long total = 0;
+    for (long roundTime : roundTimes) {
+      total += roundTime;
+    }
+    Arrays.sort(roundTimes);
+    System.out.println(
+        "mode="
+            + mode
+            + " connections="
+            + connections
+            + " threads="
+            + Thread.activeCount()
+            + " connect_ms="
+            + connectTime / 1000000
+            + " ops_per_sec="
+            + (long) ((double) connections * rounds / (total / 1e9))
+            + " round_p50_ms="
+            + roundTimes[rounds / 2] / 1000000.0
+            + " round_max_ms="
+            + roundTimes[rounds - 1] / 1000000.0);
+
+    for (Client client : clients) {
+      client.close();
+    }
+    System.exit(0);
+  }
+}
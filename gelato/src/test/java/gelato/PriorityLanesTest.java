@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import gelato.server.manager.implementation.LatencyRecorder;
+import gelato.server.manager.implementation.PriorityLanes;
+import org.junit.jupiter.api.Test;
+import protocol.P9Protocol;
+import protocol.messages.Message;
+
+class PriorityLanesTest {
+
+  private static Message reply(byte messageType, int size) {
+    Message message = new Message();
+    message.messageType = messageType;
+    message.messageSize = size;
+    message.messageContent = new byte[size - P9Protocol.MIN_MSG_SIZE];
+    return message;
+  }
+
+  @Test
+  void testPercentilesAreBucketUpperBounds() {
+    LatencyRecorder recorder = new LatencyRecorder();
+    assertEquals(0, recorder.getPercentileMicros(99));
+    for (int sample = 0; sample < 99; ++sample) {
+      recorder.record(1000);
+    }
+    recorder.record(1000000);
+    assertEquals(100, recorder.getCount());
+    assertEquals(10, recorder.getMeanMicros());
+    // 1000ns sits in [512, 1024), the single slow sample only shows past p99
+    assertEquals(1, recorder.getPercentileMicros(50));
+    assertEquals(1, recorder.getPercentileMicros(99));
+    assertEquals(1048, recorder.getPercentileMicros(100));
+    recorder.record(-5);
+    assertEquals(0, recorder.getPercentileMicros(0.5));
+    recorder.reset();
+    assertEquals(0, recorder.getCount());
+    assertEquals(0, recorder.getPercentileMicros(50));
+  }
+
+  @Test
+  void testLaneClassification() {
+    assertEquals(PriorityLanes.BULK, PriorityLanes.forRequest(P9Protocol.TREAD));
+    assertEquals(PriorityLanes.BULK, PriorityLanes.forRequest(P9Protocol.TWRITE));
+    assertEquals(PriorityLanes.METADATA, PriorityLanes.forRequest(P9Protocol.TWALK));
+    assertEquals(PriorityLanes.METADATA, PriorityLanes.forRequest(P9Protocol.TSTAT));
+
+    // An RREAD is bulk however small, anything else only once it is large
+    assertEquals(PriorityLanes.BULK, PriorityLanes.forReply(reply(P9Protocol.RREAD, 20)));
+    assertEquals(PriorityLanes.METADATA, PriorityLanes.forReply(reply(P9Protocol.RSTAT, 80)));
+    assertEquals(
+        PriorityLanes.METADATA,
+        PriorityLanes.forReply(reply(P9Protocol.RSTAT, PriorityLanes.METADATA_REPLY_LIMIT)));
+    assertEquals(
+        PriorityLanes.BULK,
+        PriorityLanes.forReply(reply(P9Protocol.RSTAT, PriorityLanes.METADATA_REPLY_LIMIT + 1)));
+  }
+}
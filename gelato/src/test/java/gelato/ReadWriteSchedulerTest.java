@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gelato.server.manager.implementation.AdaptiveResourcePolicy;
+import gelato.server.manager.implementation.AdaptiveResourcePolicy.ResourceMode;
+import gelato.server.manager.implementation.ResourceReadWriteScheduler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class ReadWriteSchedulerTest {
+
+  @Test
+  void testReadsShareAndWritesExclude() throws InterruptedException {
+    ResourceReadWriteScheduler scheduler = new ResourceReadWriteScheduler();
+    CyclicBarrier bothReading = new CyclicBarrier(2);
+    AtomicInteger activeReaders = new AtomicInteger();
+    AtomicInteger sharedReads = new AtomicInteger();
+    AtomicBoolean writeDone = new AtomicBoolean(false);
+    AtomicBoolean writeExclusive = new AtomicBoolean(false);
+    AtomicBoolean readAfterWrite = new AtomicBoolean(false);
+    CountDownLatch done = new CountDownLatch(4);
+    long key = 7;
+
+    for (int count = 0; count < 2; ++count) {
+      scheduler.addJob(
+          () -> {
+            activeReaders.incrementAndGet();
+            try {
+              // Only passes if both reads are running at once
+              bothReading.await(5, TimeUnit.SECONDS);
+              sharedReads.incrementAndGet();
+            } catch (Exception e) {
+              // counted as not shared
+            }
+            activeReaders.decrementAndGet();
+            done.countDown();
+          },
+          key,
+          true);
+    }
+    scheduler.addJob(
+        () -> {
+          writeExclusive.set(activeReaders.get() == 0);
+          writeDone.set(true);
+          done.countDown();
+        },
+        key,
+        false);
+    scheduler.addJob(
+        () -> {
+          readAfterWrite.set(writeDone.get());
+          done.countDown();
+        },
+        key,
+        true);
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(2, sharedReads.get());
+    assertTrue(writeExclusive.get());
+    assertTrue(readAfterWrite.get());
+  }
+
+  @Test
+  void testAdaptivePolicyPromotesHotReadsAndDemotesOnWrite() throws InterruptedException {
+    AdaptiveResourcePolicy policy = new AdaptiveResourcePolicy();
+    policy.setWindowMillis(20);
+    policy.setPromoteRequestsPerSecond(100);
+    policy.setPromoteWaitMicros(10);
+    long key = 11;
+
+    for (int count = 0; count < 50; ++count) {
+      assertFalse(policy.admitShared(key, true, false));
+      policy.recordWait(key, 1000000);
+    }
+    Thread.sleep(25);
+    // The next request closes the window and sees it was hot, read only and queueing
+    assertTrue(policy.admitShared(key, true, false));
+    assertEquals(ResourceMode.PARALLEL, policy.getResourceMode(key));
+
+    // Opens and clunks are exclusive but leave the mode alone, writes demote
+    assertFalse(policy.admitShared(key, false, false));
+    assertEquals(ResourceMode.PARALLEL, policy.getResourceMode(key));
+    assertFalse(policy.admitShared(key, false, true));
+    assertEquals(ResourceMode.KEYED, policy.getResourceMode(key));
+    assertFalse(policy.admitShared(key, true, false));
+    assertEquals(1, policy.getPromotions());
+    assertEquals(1, policy.getDemotions());
+
+    // A resource nobody touched for the idle windows is dropped by the next sweep
+    policy.setIdleWindows(2);
+    Thread.sleep(50);
+    policy.admitShared(12, true, false);
+    assertEquals(1, policy.getEvictions());
+    assertEquals(1, policy.getTrackedResources());
+    assertEquals(ResourceMode.KEYED, policy.getResourceMode(key));
+  }
+}
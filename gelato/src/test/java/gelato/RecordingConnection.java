@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import protocol.messages.Message;
+
+// Keeps every reply a controller sends so a test can decode them, workers may send concurrently
+final class RecordingConnection implements GelatoConnection {
+  private final List<Message> replies = Collections.synchronizedList(new ArrayList<>());
+
+  Message last() {
+    synchronized (replies) {
+      return replies.get(replies.size() - 1);
+    }
+  }
+
+  List<Message> replies() {
+    synchronized (replies) {
+      return new ArrayList<>(replies);
+    }
+  }
+
+  @Override
+  public Message getMessage() {
+    return null;
+  }
+
+  @Override
+  public Message getMessage(GelatoFileDescriptor fileDescriptor) {
+    return null;
+  }
+
+  @Override
+  public Gelato.MODE getMode() {
+    return Gelato.MODE.SERVER;
+  }
+
+  @Override
+  public List<GelatoFileDescriptor> getConnections() {
+    return new ArrayList<>();
+  }
+
+  @Override
+  public int getMessageCount(GelatoFileDescriptor fileDescriptor) {
+    return 0;
+  }
+
+  @Override
+  public int getMessageCount() {
+    return 0;
+  }
+
+  @Override
+  public int connections() {
+    return 0;
+  }
+
+  @Override
+  public void sendMessage(GelatoFileDescriptor descriptor, Message msg) {
+    replies.add(msg);
+  }
+
+  @Override
+  public void sendMessage(Message msg) {
+    replies.add(msg);
+  }
+
+  @Override
+  public void shutdown() {}
+
+  @Override
+  public boolean isStarted() {
+    return true;
+  }
+
+  @Override
+  public void begin() {}
+
+  @Override
+  public void closeConnection(GelatoFileDescriptor descriptor) {}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gelato.server.manager.implementation.SegmentLog;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SegmentLogTest {
+
+  private final List<Path> directories = new ArrayList<>();
+
+  private Path directory() throws IOException {
+    Path directory = Files.createTempDirectory("segmentlog");
+    directories.add(directory);
+    return directory;
+  }
+
+  @AfterEach
+  void deleteDirectories() throws IOException {
+    for (Path directory : directories) {
+      try (Stream<Path> paths = Files.list(directory)) {
+        for (Path path : (Iterable<Path>) paths::iterator) {
+          Files.delete(path);
+        }
+      }
+      Files.delete(directory);
+    }
+  }
+
+  private static byte[] fill(int size, int seed) {
+    byte[] data = new byte[size];
+    for (int counter = 0; counter < size; ++counter) {
+      data[counter] = (byte) (counter * 31 + seed);
+    }
+    return data;
+  }
+
+  private static byte[] read(SegmentLog log, long fileId) throws Exception {
+    byte[] data = new byte[(int) log.getLength(fileId)];
+    assertEquals(data.length, log.read(fileId, 0, data, 0, data.length));
+    return data;
+  }
+
+  @Test
+  void testOverwritesCompactionAndReplay() throws Exception {
+    Path directory = directory();
+    SegmentLog log = new SegmentLog(directory, 4096);
+    byte[] expected = new byte[3000];
+    for (int pass = 0; pass < 5; ++pass) {
+      byte[] data = fill(1000, pass);
+      for (int offset = 0; offset < expected.length; offset += 700) {
+        int length = Math.min(data.length, expected.length - offset);
+        log.commit(log.append(1, offset, ByteBuffer.wrap(data, 0, length)));
+        System.arraycopy(data, 0, expected, offset, length);
+      }
+    }
+    // A hole between writes reads back as zeros
+    log.commit(log.append(2, 500, ByteBuffer.wrap(fill(10, 3))));
+    assertArrayEquals(expected, read(log, 1));
+    assertEquals(510, log.getLength(2));
+    assertEquals(0, read(log, 2)[499]);
+
+    int segments = log.getSegmentCount();
+    log.compact();
+    assertTrue(log.getCompactedSegments() > 0);
+    assertTrue(log.getSegmentCount() < segments);
+    assertArrayEquals(expected, read(log, 1));
+    log.close();
+
+    // A torn record at the tail is dropped, everything before it comes back
+    Path last = null;
+    for (Path path : Files.newDirectoryStream(directory)) {
+      String name = path.getFileName().toString();
+      if (last == null || name.compareTo(last.getFileName().toString()) > 0) {
+        last = path;
+      }
+    }
+    try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {0, 0, 1}), channel.size());
+    }
+    SegmentLog replayed = new SegmentLog(directory, 4096);
+    assertArrayEquals(expected, read(replayed, 1));
+    assertEquals(510, replayed.getLength(2));
+    replayed.close();
+  }
+
+  @Test
+  void testConcurrentWritersShareSyncs() throws Exception {
+    SegmentLog log = new SegmentLog(directory());
+    int writers = 8;
+    int writes = 50;
+    List<Thread> threads = new ArrayList<>();
+    ConcurrentLinkedQueue<Exception> failures = new ConcurrentLinkedQueue<>();
+    for (int writer = 0; writer < writers; ++writer) {
+      long fileId = writer;
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  for (int counter = 0; counter < writes; ++counter) {
+                    byte[] data = fill(100, counter);
+                    log.commit(log.append(fileId, counter * 100L, ByteBuffer.wrap(data)));
+                  }
+                } catch (Exception e) {
+                  failures.add(e);
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (!failures.isEmpty()) {
+      throw failures.peek();
+    }
+    assertEquals(writers * writes, log.getCommitCount());
+    // Writers queued behind a sync find their record already durable
+    assertTrue(log.getSyncCount() < log.getCommitCount());
+    System.out.println("commits " + log.getCommitCount() + " syncs " + log.getSyncCount());
+    for (int writer = 0; writer < writers; ++writer) {
+      byte[] data = read(log, writer);
+      assertEquals(writes * 100, data.length);
+      assertArrayEquals(
+          fill(100, writes - 1), Arrays.copyOfRange(data, data.length - 100, data.length));
+    }
+    log.close();
+  }
+
+  @Test
+  void testPinnedSnapshotsOutliveWritesAndCompaction() throws Exception {
+    SegmentLog log = new SegmentLog(directory(), 4096);
+    byte[] first = fill(2000, 1);
+    log.commit(log.append(7, 0, ByteBuffer.wrap(first)));
+    SegmentLog.Snapshot pinned = log.pin(7);
+    assertEquals(1, pinned.getVersion());
+
+    // Later writes publish new versions, the pinned one keeps its bytes
+    for (int pass = 2; pass < 8; ++pass) {
+      log.commit(log.append(7, 0, ByteBuffer.wrap(fill(2000, pass))));
+    }
+    assertEquals(7, log.getSnapshot(7).getVersion());
+    byte[] seen = new byte[first.length];
+    log.read(pinned, 0, seen, 0, seen.length);
+    assertArrayEquals(first, seen);
+    assertArrayEquals(fill(2000, 7), read(log, 7));
+
+    // Only the compacted segment the pin still reaches waits for the unpin, the rest go now
+    log.compact();
+    assertEquals(1, log.getRetiredSegments());
+    long compacted = log.getCompactedSegments();
+    assertTrue(compacted > 0);
+    log.read(pinned, 0, seen, 0, seen.length);
+    assertArrayEquals(first, seen);
+    log.unpin(pinned);
+    assertEquals(0, log.getRetiredSegments());
+    assertEquals(compacted + 1, log.getCompactedSegments());
+    assertArrayEquals(fill(2000, 7), read(log, 7));
+    log.close();
+  }
+
+  @Test
+  void testPinsOnlyHoldTheSegmentsTheyReference() throws Exception {
+    Path directory = directory();
+    SegmentLog log = new SegmentLog(directory, 4096);
+    for (int pass = 0; pass < 6; ++pass) {
+      log.commit(log.append(7, 0, ByteBuffer.wrap(fill(2000, pass))));
+    }
+    // Lives in the active segment, compacting the others must not wait for it
+    log.commit(log.append(8, 0, ByteBuffer.wrap(fill(100, 1))));
+    SegmentLog.Snapshot other = log.pin(8);
+    log.compact();
+    assertTrue(log.getCompactedSegments() > 0);
+    assertEquals(0, log.getRetiredSegments());
+    log.unpin(other);
+    log.close();
+
+    // Versions carry on from the log instead of starting over
+    SegmentLog replayed = new SegmentLog(directory, 4096);
+    assertEquals(6, replayed.getSnapshot(7).getVersion());
+    assertEquals(1, replayed.getSnapshot(8).getVersion());
+    assertArrayEquals(fill(2000, 5), read(replayed, 7));
+    assertArrayEquals(fill(100, 1), read(replayed, 8));
+    replayed.close();
+  }
+
+  @Test
+  void testOutOfRangeWritesNeverReachTheLog() throws Exception {
+    Path directory = directory();
+    SegmentLog log = new SegmentLog(directory, 4096);
+    assertThrows(
+        IOException.class,
+        () -> log.append(3, Long.MAX_VALUE - 5, ByteBuffer.wrap(fill(10, 1))));
+    assertThrows(IOException.class, () -> log.append(3, -1, ByteBuffer.wrap(fill(10, 1))));
+    log.commit(log.append(3, 0, ByteBuffer.wrap(fill(10, 1))));
+    log.close();
+
+    // A record written before the check existed is skipped on replay, the log still opens
+    Path segment = directory.resolve("segment-0.log");
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.write(record(3, Long.MAX_VALUE - 5, fill(10, 2)), channel.size());
+    }
+    SegmentLog replayed = new SegmentLog(directory, 4096);
+    assertArrayEquals(fill(10, 1), read(replayed, 3));
+    replayed.close();
+  }
+
+  @Test
+  void testChecksumCoversTheHeader() throws Exception {
+    Path directory = directory();
+    SegmentLog log = new SegmentLog(directory, 4096);
+    log.commit(log.append(4, 0, ByteBuffer.wrap(fill(10, 1))));
+    log.commit(log.append(4, 10, ByteBuffer.wrap(fill(10, 2))));
+    log.close();
+
+    // The data of the second record is intact, only its offset flipped to 64
+    try (FileChannel channel =
+        FileChannel.open(directory.resolve("segment-0.log"), StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.allocate(8).putLong(0, 64), 42 + 12);
+    }
+    SegmentLog replayed = new SegmentLog(directory, 4096);
+    assertEquals(10, replayed.getLength(4));
+    assertArrayEquals(fill(10, 1), read(replayed, 4));
+    replayed.close();
+  }
+
+  @Test
+  void testSmallLiveRecordsAreNotCompacted() throws Exception {
+    SegmentLog log = new SegmentLog(directory(), 4096);
+    // Headers outweigh the data, but every byte of it is still live
+    for (int offset = 0; offset < 2000; offset += 8) {
+      log.commit(log.append(5, offset, ByteBuffer.wrap(fill(8, offset))));
+    }
+    assertTrue(log.getSegmentCount() > 1);
+    log.compact();
+    assertEquals(0, log.getCompactedSegments());
+    log.close();
+  }
+
+  private static ByteBuffer record(long fileId, long fileOffset, byte[] data) {
+    ByteBuffer record = ByteBuffer.allocate(32 + data.length);
+    record.putInt(data.length).putLong(fileId).putLong(fileOffset).putLong(1);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 0, 28);
+    crc.update(data);
+    record.putInt((int) crc.getValue());
+    record.put(data).flip();
+    return record;
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package gelato;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import gelato.server.GelatoServerConnection;
+import gelato.server.manager.v2.V2ClientDescriptorHandler;
+import gelato.server.manager.v2.V2EventLoop;
+import gelato.server.manager.v2.V2TCPTransport;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+import protocol.P9Protocol;
+import protocol.messages.FileRegionMessage;
+import protocol.messages.response.CloseResponse;
+import protocol.messages.response.ReadResponse;
+
+class V2TransportTest {
+
+  private static final int REPLY_SIZE = 32 * 1024;
+  private static final int REPLIES = 32;
+  private static final int BULK_BEHIND = 8;
+  private static final long LOW_WATERMARK = 192 * 1024;
+  private static final long HIGH_WATERMARK = 256 * 1024;
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting on the transport");
+      Thread.sleep(5);
+    }
+  }
+
+  // Requests go nowhere, the handler is only there for the transport to shut down on close
+  private static V2TCPTransport transport(SocketChannel accepted, V2EventLoop loop) {
+    return new V2TCPTransport(
+        accepted,
+        new GelatoFileDescriptor(),
+        new V2ClientDescriptorHandler(new GelatoFileDescriptor(), null),
+        loop);
+  }
+
+  @Test
+  void testSlowReaderCrossesBothWatermarks() throws Exception {
+    V2EventLoop loop = new V2EventLoop(0);
+    loop.start();
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("127.0.0.1", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      client.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024);
+      SocketChannel accepted = server.accept();
+      accepted.setOption(StandardSocketOptions.SO_SNDBUF, 8 * 1024);
+
+      V2TCPTransport transport = transport(accepted, loop);
+      transport.setWriteWatermarks(LOW_WATERMARK, HIGH_WATERMARK);
+      loop.register(transport);
+      waitFor(() -> loop.connections() == 1);
+
+      long total = 0;
+      for (int reply = 0; reply < REPLIES; ++reply) {
+        ReadResponse response = new ReadResponse();
+        response.setTag(reply);
+        response.setData(new byte[REPLY_SIZE]);
+        total += response.toMessage().encodedSize();
+        transport.writeMessage(response.toMessage());
+      }
+
+      // The socket is full, a request arriving now finds the replies over the high watermark
+      waitFor(() -> transport.getQueuedBytes() > HIGH_WATERMARK);
+      client.write(ByteBuffer.wrap(new byte[] {0}));
+      waitFor(transport::isReadPaused);
+
+      // Reading resumes as soon as the backlog is under the low watermark, not once it is empty
+      ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+      long received = 0;
+      while (transport.isReadPaused()) {
+        buffer.clear();
+        received += client.read(buffer);
+      }
+      long backlog = transport.getQueuedBytes();
+      assertTrue(backlog > 0 && backlog <= LOW_WATERMARK);
+      assertTrue(received < total);
+
+      while (received < total) {
+        buffer.clear();
+        received += client.read(buffer);
+      }
+      assertEquals(total, received);
+      waitFor(() -> transport.getQueuedBytes() == 0);
+      client.close();
+      accepted.close();
+    } finally {
+      loop.shutdown();
+    }
+  }
+  @Test
+  void testMetadataRepliesOvertakeQueuedBulk() throws Exception {
+    V2EventLoop loop = new V2EventLoop(0);
+    loop.start();
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("127.0.0.1", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      client.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024);
+      SocketChannel accepted = server.accept();
+      accepted.setOption(StandardSocketOptions.SO_SNDBUF, 8 * 1024);
+
+      V2TCPTransport transport = transport(accepted, loop);
+      loop.register(transport);
+      waitFor(() -> loop.connections() == 1);
+
+      // A large frame stuck half written on the full socket, nothing else can join its batch
+      ReadResponse large = new ReadResponse();
+      large.setTag(0);
+      large.setData(new byte[REPLIES * REPLY_SIZE]);
+      long total = large.toMessage().encodedSize();
+      transport.writeMessage(large.toMessage());
+      long largeSize = total;
+      waitFor(() -> transport.getQueuedBytes() < largeSize);
+      for (int reply = 1; reply < BULK_BEHIND; ++reply) {
+        ReadResponse response = new ReadResponse();
+        response.setTag(reply);
+        response.setData(new byte[REPLY_SIZE]);
+        total += response.toMessage().encodedSize();
+        transport.writeMessage(response.toMessage());
+      }
+      CloseResponse clunk = new CloseResponse();
+      clunk.setTag(BULK_BEHIND);
+      total += clunk.toMessage().encodedSize();
+      transport.writeMessage(clunk.toMessage());
+
+      ByteBuffer received = ByteBuffer.allocate((int) total).order(ByteOrder.LITTLE_ENDIAN);
+      while (received.hasRemaining()) {
+        client.read(received);
+      }
+      received.flip();
+      int position = 0;
+      int frame = 0;
+      while (received.hasRemaining()) {
+        int start = received.position();
+        int size = received.getInt(start);
+        if (received.getShort(start + 5) == BULK_BEHIND) {
+          position = frame;
+        }
+        received.position(start + size);
+        ++frame;
+      }
+      assertEquals(BULK_BEHIND + 1, frame);
+      // The clunk follows the frame in flight, ahead of the bulk replies queued before it
+      assertEquals(1, position);
+      client.close();
+      accepted.close();
+    } finally {
+      loop.shutdown();
+    }
+  }
+  @Test
+  void testFileRegionsGoOutInChunks() throws Exception {
+    byte[] data = new byte[3 * 1024 * 1024 + 17];
+    for (int counter = 0; counter < data.length; ++counter) {
+      data[counter] = (byte) (counter * 31 + 7);
+    }
+    Path file = Files.createTempFile("region", ".bin");
+    Files.write(file, data);
+    V2EventLoop loop = new V2EventLoop(0);
+    loop.start();
+    try (ServerSocketChannel server = ServerSocketChannel.open();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      server.bind(new InetSocketAddress("127.0.0.1", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      SocketChannel accepted = server.accept();
+      V2TCPTransport transport = transport(accepted, loop);
+      loop.register(transport);
+      waitFor(() -> loop.connections() == 1);
+
+      // Larger than both the per write slice and the per wakeup budget
+      FileRegionMessage region = new FileRegionMessage(3, channel, 5, data.length - 5);
+      transport.writeMessage(region);
+      ByteBuffer received = ByteBuffer.allocate(region.messageSize);
+      while (received.hasRemaining()) {
+        client.read(received);
+      }
+      int header = P9Protocol.MIN_MSG_SIZE + P9Protocol.MSG_INT_SIZE;
+      assertArrayEquals(
+          Arrays.copyOfRange(data, 5, data.length),
+          Arrays.copyOfRange(received.array(), header, received.capacity()));
+      waitFor(() -> transport.getQueuedBytes() == 0);
+      client.close();
+      accepted.close();
+    } finally {
+      loop.shutdown();
+      Files.delete(file);
+    }
+  }
+  @Test
+  void testRepliesQueuedBeforeRegistrationAreSent() throws Exception {
+    V2EventLoop loop = new V2EventLoop(0);
+    loop.start();
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("127.0.0.1", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      SocketChannel accepted = server.accept();
+      V2TCPTransport transport = transport(accepted, loop);
+
+      // The event loop picks the write up before the transport has a selection key
+      CloseResponse clunk = new CloseResponse();
+      clunk.setTag(9);
+      long total = clunk.toMessage().encodedSize();
+      assertTrue(transport.writeMessage(clunk.toMessage()));
+      Thread.sleep(50);
+      assertTrue(transport.isOpen());
+      loop.register(transport);
+
+      ByteBuffer received = ByteBuffer.allocate((int) total).order(ByteOrder.LITTLE_ENDIAN);
+      while (received.hasRemaining()) {
+        client.read(received);
+      }
+      assertEquals(P9Protocol.RCLUNK, received.get(4));
+      assertEquals(9, received.getShort(5));
+      waitFor(() -> transport.getQueuedBytes() == 0);
+      client.close();
+      accepted.close();
+    } finally {
+      loop.shutdown();
+    }
+  }
+
+  @Test
+  void testShutdownReleasesTheServerPort() throws Exception {
+    int port;
+    try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+      probe.bind(new InetSocketAddress(0));
+      port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+    }
+    GelatoServerConnection connection =
+        new GelatoServerConnection(new GelatoDescriptorManager(), port);
+    Thread acceptor = new Thread(connection::run);
+    acceptor.start();
+    connection.shutdown();
+    acceptor.join(5000);
+    assertFalse(acceptor.isAlive());
+    try (ServerSocketChannel rebound = ServerSocketChannel.open()) {
+      rebound.bind(new InetSocketAddress(port));
+    }
+  }
+
+  @Test
+  void testLoopOutlivesAConnectionClosingWithoutAHandler() throws Exception {
+    V2EventLoop loop = new V2EventLoop(0);
+    loop.start();
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("127.0.0.1", 0));
+      SocketChannel first = SocketChannel.open(server.getLocalAddress());
+      V2TCPTransport closing =
+          new V2TCPTransport(server.accept(), new GelatoFileDescriptor(), null, loop);
+      loop.register(closing);
+      waitFor(() -> loop.connections() == 1);
+      first.close();
+      waitFor(() -> !closing.isOpen());
+
+      // The same loop still serves the next connection
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      SocketChannel accepted = server.accept();
+      V2TCPTransport transport = transport(accepted, loop);
+      loop.register(transport);
+      CloseResponse clunk = new CloseResponse();
+      clunk.setTag(4);
+      ByteBuffer received =
+          ByteBuffer.allocate((int) clunk.toMessage().encodedSize())
+              .order(ByteOrder.LITTLE_ENDIAN);
+      transport.writeMessage(clunk.toMessage());
+      while (received.hasRemaining()) {
+        client.read(received);
+      }
+      assertEquals(4, received.getShort(5));
+      client.close();
+      accepted.close();
+    } finally {
+      loop.shutdown();
+    }
+  }
+}
@@ -11,124 +11,116 @@
 
 package protocol;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 
 public class ByteEncoder {
 
+  private static final VarHandle SHORT_VIEW =
+      MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle INT_VIEW =
+      MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle LONG_VIEW =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
   public static void copyBytesTo(byte[] input, byte[] out, int start, int size) {
-    for (int counter = 0; counter < size; ++counter) {
-      out[start + counter] = input[counter];
-    }
+    System.arraycopy(input, 0, out, start, size);
   }
 
   public static void copyBytesFrom(byte[] input, byte[] out, int start, int size) {
-    for (int counter = 0; counter < size; ++counter) {
-      out[counter] = input[start + counter];
-    }
+    System.arraycopy(input, start, out, 0, size);
   }
 
   public static void encodeQID(QID value, byte[] buffer, int position) {
-    ByteBuffer byteBuffer = ByteBuffer.allocate(P9Protocol.MSG_QID_SIZE);
-    byteBuffer = byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    byteBuffer.put(value.getType());
-    byteBuffer.putInt(value.getVersionRaw());
-    byteBuffer.putLong(value.getLongFileId());
-    copyBytesTo(byteBuffer.array(), buffer, position, P9Protocol.MSG_QID_SIZE);
+    buffer[position] = value.getType();
+    encodeInt(value.getVersionRaw(), buffer, position + P9Protocol.MSG_TYPE_SIZE);
+    encodeLong(
+        value.getLongFileId(),
+        buffer,
+        position + P9Protocol.MSG_TYPE_SIZE + P9Protocol.MSG_INT_SIZE);
   }
 
   public static QID decodeQID(byte[] buffer, int position) {
-
-    long fileId = 0;
-    byte type = 0;
-    int version = 0;
-
-    type = buffer[position];
-    version = decodeInt(buffer, position + 1);
-    fileId = decodeInt(buffer, position + 3);
     QID retVal = new QID();
-    retVal.setLongFileId(fileId);
-    retVal.setVersion(version);
-    retVal.setType(type);
+    retVal.setType(buffer[position]);
+    retVal.setVersion(getUnsigned(decodeInt(buffer, position + P9Protocol.MSG_TYPE_SIZE)));
+    retVal.setLongFileId(
+        decodeLong(buffer, position + P9Protocol.MSG_TYPE_SIZE + P9Protocol.MSG_INT_SIZE));
     return retVal;
   }
 
   public static void encodeLong(long value, byte[] buffer, int position) {
-    ByteBuffer bytesBuffer = ByteBuffer.allocate(P9Protocol.MSG_LONG_SIZE);
-    bytesBuffer = bytesBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    bytesBuffer.putLong(value);
-    copyBytesTo(bytesBuffer.array(), buffer, position, P9Protocol.MSG_LONG_SIZE);
+    LONG_VIEW.set(buffer, position, value);
   }
 
   public static long decodeLong(byte[] buffer, int position) {
-    byte[] numBuffer = new byte[P9Protocol.MSG_LONG_SIZE];
-    copyBytesFrom(buffer, numBuffer, position, P9Protocol.MSG_LONG_SIZE);
-    ByteBuffer bytesBuffer = ByteBuffer.allocate(P9Protocol.MSG_LONG_SIZE);
-    bytesBuffer = bytesBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    bytesBuffer.put(numBuffer);
-    bytesBuffer.flip();
-    return bytesBuffer.getLong();
+    return (long) LONG_VIEW.get(buffer, position);
   }
 
   public static void encodeInt(int value, byte[] buffer, int position) {
-    ByteBuffer bytesBuffer = ByteBuffer.allocate(P9Protocol.MSG_FID_SIZE);
-    bytesBuffer = bytesBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    bytesBuffer.putInt(value);
-    copyBytesTo(bytesBuffer.array(), buffer, position, P9Protocol.MSG_FID_SIZE);
+    INT_VIEW.set(buffer, position, value);
   }
 
   public static int decodeInt(byte[] buffer, int position) {
-    byte[] numBuffer = new byte[P9Protocol.MSG_FID_SIZE];
-    copyBytesFrom(buffer, numBuffer, position, P9Protocol.MSG_FID_SIZE);
-    ByteBuffer bytesBuffer = ByteBuffer.allocate(P9Protocol.MSG_FID_SIZE);
-    bytesBuffer = bytesBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    bytesBuffer.put(numBuffer);
-    bytesBuffer.flip();
-    return bytesBuffer.getInt();
+    return (int) INT_VIEW.get(buffer, position);
   }
 
   public static int decodeShort(byte[] buffer, int position) {
-    byte[] numBuffer = new byte[P9Protocol.MSG_TAG_SIZE];
-    copyBytesFrom(buffer, numBuffer, position, P9Protocol.MSG_TAG_SIZE);
-    ByteBuffer bytesBuffer = ByteBuffer.allocate(P9Protocol.MSG_TAG_SIZE);
-    bytesBuffer = bytesBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    bytesBuffer.put(numBuffer);
-    bytesBuffer.flip();
-    short val = bytesBuffer.getShort();
-    int shortVal = val & 0xffff; // java special stupid with unsigneds
-    return shortVal;
+    short val = (short) SHORT_VIEW.get(buffer, position);
+    return val & 0xffff; // java special stupid with unsigneds
   }
 
   public static void encodeShort(int value, byte[] buffer, int position) {
-    short shorted = (short) value;
-    byte[] shortBuffer = new byte[P9Protocol.MSG_TAG_SIZE];
-    ByteBuffer bytesBuffer = ByteBuffer.allocate(P9Protocol.MSG_TAG_SIZE);
-    bytesBuffer = bytesBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    bytesBuffer.putShort(shorted);
-    bytesBuffer.flip();
-    copyBytesTo(bytesBuffer.array(), buffer, position, P9Protocol.MSG_TAG_SIZE);
+    SHORT_VIEW.set(buffer, position, (short) value);
   }
 
   public static byte[] encodeStringToBuffer(String value) {
     byte[] stringBytes = encodeStringUTF8(value);
-    int totalSegmentSize = P9Protocol.MSG_TAG_SIZE + stringBytes.length;
-    byte[] buffer = new byte[totalSegmentSize];
+    byte[] buffer = new byte[P9Protocol.MSG_TAG_SIZE + stringBytes.length];
     encodeShort(stringBytes.length, buffer, 0);
-    copyBytesTo(stringBytes, buffer, P9Protocol.MSG_TAG_SIZE, stringBytes.length);
+    System.arraycopy(stringBytes, 0, buffer, P9Protocol.MSG_TAG_SIZE, stringBytes.length);
     return buffer;
   }
 
   public static int encodeString(byte[] buffer, int position, String value) {
-    byte[] byteString = encodeStringUTF8(value);
-    encodeShort(byteString.length, buffer, position);
-    copyBytesTo(byteString, buffer, position + P9Protocol.MSG_TAG_SIZE, byteString.length);
-    return P9Protocol.MSG_TAG_SIZE + byteString.length;
+    int written = encodeAscii(buffer, position + P9Protocol.MSG_TAG_SIZE, value);
+    if (written < 0) {
+      byte[] byteString = encodeStringUTF8(value);
+      System.arraycopy(
+          byteString, 0, buffer, position + P9Protocol.MSG_TAG_SIZE, byteString.length);
+      written = byteString.length;
+    }
+    encodeShort(written, buffer, position);
+    return P9Protocol.MSG_TAG_SIZE + written;
   }
 
   public static int stringLength(String value) {
-    return P9Protocol.MSG_TAG_SIZE + encodeStringUTF8(value).length;
+    return P9Protocol.MSG_TAG_SIZE + utf8Length(value);
+  }
+
+  public static int utf8Length(String value) {
+    int length = value.length();
+    int size = length;
+    for (int counter = 0; counter < length; ++counter) {
+      char current = value.charAt(counter);
+      if (current < 0x80) {
+        continue;
+      }
+      if (current < 0x800) {
+        size += 1;
+      } else if (!Character.isSurrogate(current)) {
+        size += 2;
+      } else if (Character.isHighSurrogate(current)
+          && counter + 1 < length
+          && Character.isLowSurrogate(value.charAt(counter + 1))) {
+        size += 2;
+        ++counter;
+      }
+    }
+    return size;
   }
 
   public static byte[] encodeStringUTF8(String value) {
@@ -137,21 +129,49 @@ public class ByteEncoder {
 
   public static String decodeString(byte[] buffer, int position) {
     int start = position + P9Protocol.MSG_TAG_SIZE;
-    int end = decodeShort(buffer, position) + start;
-    return new String(Arrays.copyOfRange(buffer, start, end));
+    return new String(buffer, start, decodeShort(buffer, position), StandardCharsets.UTF_8);
+  }
+
+  public static String decodeString(ByteBuffer buffer, int position) {
+    int length = (buffer.get(position) & 0xff) | ((buffer.get(position + 1) & 0xff) << 8);
+    int start = position + P9Protocol.MSG_TAG_SIZE;
+    if (buffer.hasArray()) {
+      return new String(
+          buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+    }
+    byte[] stringBytes = new byte[length];
+    for (int counter = 0; counter < length; ++counter) {
+      stringBytes[counter] = buffer.get(start + counter);
+    }
+    return new String(stringBytes, StandardCharsets.UTF_8);
   }
 
   public static int stringLength(byte[] buffer, int position) {
-    int end = decodeShort(buffer, position);
-    return end;
+    return decodeShort(buffer, position);
   }
 
   public static long getUnsigned(int signed) {
-    return signed >= 0 ? signed : 2 * (long) Integer.MAX_VALUE + 2 + signed;
+    return Integer.toUnsignedLong(signed);
   }
 
   public static int toUnsigned(long value) {
-    String lngString = Long.toString(value);
-    return Integer.parseUnsignedInt(lngString);
+    if (value < 0 || value > 0xffffffffL) {
+      throw new NumberFormatException(Long.toString(value));
+    }
+    return (int) value;
+  }
+
+  // Writes plain ASCII straight into the frame, returns -1 if the string needs full UTF-8
+  private static int encodeAscii(byte[] buffer, int position, String value) {
+    int length = value.length();
+    for (int counter = 0; counter < length; ++counter) {
+      if (value.charAt(counter) >= 0x80) {
+        return -1;
+      }
+    }
+    for (int counter = 0; counter < length; ++counter) {
+      buffer[position + counter] = (byte) value.charAt(counter);
+    }
+    return length;
   }
 }
@@ -11,25 +11,38 @@
 
 package protocol;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import protocol.messages.CapabilityRequest;
 import protocol.messages.Message;
+import protocol.messages.MessageFrame;
 import protocol.messages.MessageRaw;
 import protocol.messages.VersionRequest;
 import protocol.messages.request.AttachRequest;
 import protocol.messages.request.AuthRequest;
 import protocol.messages.request.CloseRequest;
+import protocol.messages.request.CompoundRequest;
 import protocol.messages.request.CreateRequest;
 import protocol.messages.request.FlushRequest;
 import protocol.messages.request.OpenRequest;
+import protocol.messages.request.OpenRequestView;
 import protocol.messages.request.ReadRequest;
+import protocol.messages.request.ReadRequestView;
 import protocol.messages.request.RemoveRequest;
+import protocol.messages.request.RequestView;
 import protocol.messages.request.StatRequest;
 import protocol.messages.request.WalkRequest;
+import protocol.messages.request.WalkRequestView;
 import protocol.messages.request.WriteRequest;
+import protocol.messages.request.WriteRequestView;
 import protocol.messages.request.WriteStatRequest;
 import protocol.messages.response.AttachResponse;
 import protocol.messages.response.AuthResponse;
 import protocol.messages.response.CloseResponse;
+import protocol.messages.response.CompoundResponse;
 import protocol.messages.response.CreateResponse;
 import protocol.messages.response.ErrorMessage;
 import protocol.messages.response.FlushResponse;
@@ -65,6 +78,110 @@ public class Decoder {
     return raw;
   }
 
+  public static MessageFrame decodeFrame(ByteBuffer buffer) {
+    if (buffer.remaining() < MessageRaw.minSize) {
+      return null;
+    }
+    ByteBuffer frame = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    int start = buffer.position();
+    int size = frame.getInt(start);
+    if (size < MessageRaw.minSize) {
+      throw new RuntimeException("Invalid message size " + size);
+    }
+    if (buffer.remaining() < size) {
+      return null;
+    }
+    byte type = frame.get(start + P9Protocol.MSG_SIZE_HEADER);
+    int tag = frame.getShort(start + MessageRaw.tagLocation) & 0xffff;
+    frame.limit(start + size);
+    frame.position(start + MessageRaw.minSize);
+    buffer.position(start + size);
+    return new MessageFrame(size, type, tag, frame.slice());
+  }
+
+  public static MessageFrame decodeFrame(Message msg) {
+    byte[] content = msg.messageContent == null ? new byte[0] : msg.messageContent;
+    return new MessageFrame(msg.messageSize, msg.messageType, msg.tag, ByteBuffer.wrap(content));
+  }
+
+  public static List<Message> decodeFrames(Message msg) {
+    ByteBuffer content =
+        ByteBuffer.wrap(msg.messageContent, 0, msg.getContentSize())
+            .order(ByteOrder.LITTLE_ENDIAN);
+    if (content.remaining() < P9Protocol.MSG_SHORT_SIZE) {
+      throw new RuntimeException("Not supported");
+    }
+    int count = content.getShort() & 0xffff;
+    List<Message> frames = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      MessageFrame frame = decodeFrame(content);
+      if (frame == null) {
+        throw new RuntimeException("Truncated compound message");
+      }
+      frames.add(frame.toMessage());
+    }
+    return frames;
+  }
+
+  public static CompoundRequest decodeCompoundRequest(Message msg) {
+    if (msg.messageType != P9Protocol.TCOMPOUND) {
+      throw new RuntimeException("Not supported");
+    }
+    CompoundRequest request = new CompoundRequest();
+    request.setTag(msg.tag);
+    request.setOperations(decodeFrames(msg));
+    return request;
+  }
+
+  public static CompoundResponse decodeCompoundResponse(Message msg) {
+    if (msg.messageType != P9Protocol.RCOMPOUND) {
+      throw new RuntimeException("Not supported");
+    }
+    CompoundResponse response = new CompoundResponse();
+    response.setTag(msg.tag);
+    response.setReplies(decodeFrames(msg));
+    return response;
+  }
+
+  public static RequestView viewRequest(MessageFrame frame) {
+    if (frame.getContentSize() < P9Protocol.MSG_FID_SIZE) {
+      throw new RuntimeException("Not supported");
+    }
+    return new RequestView(frame);
+  }
+
+  public static OpenRequestView viewOpenRequest(MessageFrame frame) {
+    if (frame.getMessageType() != P9Protocol.TOPEN) {
+      throw new RuntimeException("Not supported");
+    }
+    return new OpenRequestView(frame);
+  }
+
+  public static WalkRequestView viewWalkRequest(MessageFrame frame) {
+    if (frame.getMessageType() != P9Protocol.TWALK) {
+      throw new RuntimeException("Not supported");
+    }
+    return new WalkRequestView(frame);
+  }
+
+  public static ReadRequestView viewReadRequest(MessageFrame frame) {
+    if (frame.getMessageType() != P9Protocol.TREAD) {
+      throw new RuntimeException("Not supported");
+    }
+    return new ReadRequestView(frame);
+  }
+
+  public static WriteRequestView viewWriteRequest(MessageFrame frame) {
+    if (frame.getMessageType() != P9Protocol.TWRITE) {
+      throw new RuntimeException("Not supported");
+    }
+    WriteRequestView view = new WriteRequestView(frame);
+    if (!view.validByteCount()) {
+      throw new RuntimeException("Invalid write count");
+    }
+    return view;
+  }
+
   public static Message decodeToMessage(MessageRaw rawMessage) {
     Message msg = new Message();
     msg.messageSize = ByteEncoder.decodeInt(rawMessage.size, 0);
@@ -87,6 +204,18 @@ public class Decoder {
     return request;
   }
 
+  public static CapabilityRequest decodeCapabilityRequest(Message decodeMessage) {
+    if (decodeMessage.messageType != P9Protocol.RCAPABILITY
+        && decodeMessage.messageType != P9Protocol.TCAPABILITY) {
+      throw new RuntimeException("NOT SUPPORTED");
+    }
+
+    CapabilityRequest request = new CapabilityRequest();
+    request.setTag(decodeMessage.tag);
+    request.setCodecs(ByteEncoder.decodeInt(decodeMessage.messageContent, 0));
+    return request;
+  }
+
   public static AuthRequest decodeAuthRequest(Message decodeMessage) {
     if (decodeMessage.messageType != P9Protocol.TAUTH) {
       throw new RuntimeException("NOT SUPPORTED");
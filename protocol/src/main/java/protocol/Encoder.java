@@ -11,7 +11,13 @@
 
 package protocol;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import protocol.messages.Message;
 import protocol.messages.MessageRaw;
+import protocol.messages.TransactionMessage;
 import protocol.messages.VersionRequest;
 import protocol.messages.request.AuthRequest;
 import protocol.messages.request.FlushRequest;
@@ -34,6 +40,45 @@ public class Encoder {
     return retVal;
   }
 
+  public static ByteBuffer encodeHeader(ByteBuffer buffer, int size, byte type, int tag) {
+    if (buffer.remaining() < size) {
+      throw new BufferOverflowException();
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(size);
+    buffer.put(type);
+    buffer.putShort((short) tag);
+    return buffer;
+  }
+
+  public static void encodeTo(Message msg, ByteBuffer buffer) {
+    encodeHeader(buffer, msg.messageSize, msg.messageType, msg.tag);
+    int contentSize = msg.getContentSize();
+    if (contentSize > 0) {
+      buffer.put(msg.messageContent, 0, contentSize);
+    }
+  }
+
+  public static byte[] encodeToBytes(TransactionMessage msg) {
+    ByteBuffer buffer = ByteBuffer.allocate(msg.encodedSize());
+    msg.encodeTo(buffer);
+    return buffer.array();
+  }
+
+  // Compound bodies are a frame count followed by whole frames, headers included
+  public static byte[] encodeFrames(List<Message> frames) {
+    int size = P9Protocol.MSG_SHORT_SIZE;
+    for (Message frame : frames) {
+      size += frame.encodedSize();
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putShort((short) frames.size());
+    for (Message frame : frames) {
+      frame.encodeTo(buffer);
+    }
+    return buffer.array();
+  }
+
   public static MessageRaw encodeFlushRequest(FlushRequest request) {
     MessageRaw retval = new MessageRaw();
     retval.type = P9Protocol.TFLUSH;
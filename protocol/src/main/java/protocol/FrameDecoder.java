@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import protocol.messages.Message;
+import protocol.messages.MessageRaw;
+
+// Resumable framing over a per connection read buffer. Bytes can arrive in any split, poll only
+// hands out whole frames. Bodies are copied into their own content array as they arrive so a
+// large frame never needs a read buffer of its size.
+public class FrameDecoder {
+
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private enum State {
+    HEADER,
+    BODY
+  }
+
+  private final ByteBuffer readBuffer;
+  private final int maxFrameSize;
+  private State state = State.HEADER;
+  private Message current = null;
+  private int contentRead = 0;
+
+  public FrameDecoder() {
+    this(DEFAULT_BUFFER_SIZE, P9Protocol.MAX_NEGOTIATED_MSG_SIZE);
+  }
+
+  public FrameDecoder(int bufferSize, int maxFrameSize) {
+    readBuffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+    this.maxFrameSize = maxFrameSize;
+  }
+
+  // Buffer in fill mode, channels read straight into it
+  public ByteBuffer getReadBuffer() {
+    return readBuffer;
+  }
+
+  public int buffered() {
+    return readBuffer.position();
+  }
+
+  public boolean isPartial() {
+    return state == State.BODY || readBuffer.position() > 0;
+  }
+
+  // Reads at most limit bytes, body bytes bypass the read buffer when nothing is pending in it
+  public int readFrom(InputStream is, int limit) throws IOException {
+    if (state == State.BODY && readBuffer.position() == 0) {
+      int wanted = Math.min(limit, current.messageContent.length - contentRead);
+      int rsize = is.read(current.messageContent, contentRead, wanted);
+      if (rsize > 0) {
+        contentRead += rsize;
+      }
+      return rsize;
+    }
+    int wanted = Math.min(limit, readBuffer.remaining());
+    int rsize =
+        is.read(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), wanted);
+    if (rsize > 0) {
+      readBuffer.position(readBuffer.position() + rsize);
+    }
+    return rsize;
+  }
+
+  public void put(byte[] bytes, int offset, int length) {
+    readBuffer.put(bytes, offset, length);
+  }
+
+  // Next complete frame or null when more bytes are needed
+  public Message poll() throws IOException {
+    readBuffer.flip();
+    try {
+      if (state == State.HEADER) {
+        if (readBuffer.remaining() < MessageRaw.minSize) {
+          return null;
+        }
+        beginFrame();
+      }
+      int copy = Math.min(readBuffer.remaining(), current.messageContent.length - contentRead);
+      readBuffer.get(current.messageContent, contentRead, copy);
+      contentRead += copy;
+      if (contentRead < current.messageContent.length) {
+        return null;
+      }
+      Message rtr = current;
+      current = null;
+      contentRead = 0;
+      state = State.HEADER;
+      return rtr;
+    } finally {
+      readBuffer.compact();
+    }
+  }
+
+  private void beginFrame() throws IOException {
+    int size = readBuffer.getInt();
+    byte type = readBuffer.get();
+    int tag = readBuffer.getShort() & 0xffff;
+    if (size < MessageRaw.minSize || size > maxFrameSize) {
+      throw new IOException("Invalid message size " + Integer.toString(size));
+    }
+    current = new Message();
+    current.messageSize = size;
+    current.messageType = type;
+    current.tag = tag;
+    current.messageContent = new byte[size - MessageRaw.minSize];
+    contentRead = 0;
+    state = State.BODY;
+  }
+}
@@ -26,11 +26,16 @@ public class P9Protocol {
   public static final int MIN_MSG_SIZE =
       P9Protocol.MSG_SIZE_HEADER + P9Protocol.MSG_TYPE_SIZE + P9Protocol.MSG_TAG_SIZE;
   public static final int MAX_MSG_CONTENT_SIZE = DEFAULT_MSG_SIZE - MIN_MSG_SIZE;
+  public static final int MIN_NEGOTIATED_MSG_SIZE = 4096;
+  public static final int MAX_NEGOTIATED_MSG_SIZE = (int) (8 * MEGA_BYTE);
   public static final int MSG_FID_SIZE = 4;
   public static final int MSG_QID_SIZE = 13;
   public static final int MSG_INT_SIZE = 4;
   public static final int MSG_LONG_SIZE = 8;
   public static final int MSG_SHORT_SIZE = 2;
+  // Largest fixed overhead of a TWRITE/RREAD, what is left of msize is the IO unit
+  public static final int IO_HEADER_SIZE =
+      MIN_MSG_SIZE + MSG_FID_SIZE + MSG_LONG_SIZE + MSG_INT_SIZE;
   public static final byte TVERSION = 100;
   public static final byte RVERSION = TVERSION + 1;
   public static final byte TAUTH = RVERSION + 1;
@@ -65,6 +70,18 @@ public class P9Protocol {
   public static final byte RMNT = TMNT + 1;
   public static final byte TBND = (byte) (RMNT + 1);
   public static final byte RBND = TBND + 1;
+  public static final byte TCOMPOUND = (byte) (RBND + 1);
+  public static final byte RCOMPOUND = TCOMPOUND + 1;
+  public static final int MAX_COMPOUND_OPERATIONS = 16;
+  // Room kept in a compound reply for the non-read replies around a TREAD
+  public static final int COMPOUND_REPLY_RESERVE = 256;
+  public static final byte TCAPABILITY = RCOMPOUND + 1;
+  public static final byte RCAPABILITY = TCAPABILITY + 1;
+  // Wraps a compressed frame once a payload codec has been agreed
+  public static final byte TCODEC = RCAPABILITY + 1;
+  public static final int CODEC_NONE = 0;
+  public static final int CODEC_DEFLATE = 0x01;
+  public static final int CODEC_MIN_PAYLOAD = 512;
   public static final byte QID_DIR = (byte) 0x80;
   public static final byte QID_APPEND = (byte) 0x40;
   public static final byte QID_EXCLUSIVE = (byte) 0x20;
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import protocol.messages.FileRegionMessage;
+import protocol.messages.Message;
+import protocol.messages.MessageRaw;
+
+// Frame level payload compression, a TCODEC frame is type[1] size[4] followed by the deflated
+// content of the original frame which keeps its tag. Content arrays are never modified in place as
+// they may be shared with the stat caches.
+public class PayloadCodec {
+
+  private static final int CODEC_HEADER_SIZE = P9Protocol.MSG_TYPE_SIZE + P9Protocol.MSG_INT_SIZE;
+
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final Inflater inflater = new Inflater();
+  private final int codec;
+  // Totals over both directions, used to judge how well a session compresses
+  private long payloadBytes = 0;
+  private long wireBytes = 0;
+
+  public PayloadCodec(int codec) {
+    if (codec != P9Protocol.CODEC_DEFLATE) {
+      throw new RuntimeException("Not supported");
+    }
+    this.codec = codec;
+  }
+
+  // Picks the first codec both sides support
+  public static int negotiate(int offered, int supported) {
+    return Integer.lowestOneBit(offered & supported);
+  }
+
+  public static boolean isCompressible(byte messageType) {
+    return messageType == P9Protocol.RREAD || messageType == P9Protocol.TWRITE;
+  }
+
+  public int getCodec() {
+    return codec;
+  }
+
+  public synchronized long getPayloadBytes() {
+    return payloadBytes;
+  }
+
+  public synchronized long getWireBytes() {
+    return wireBytes;
+  }
+
+  private synchronized void account(int payload, int wire) {
+    payloadBytes += payload;
+    wireBytes += wire;
+  }
+
+  // Returns the original message when it is not worth compressing
+  public Message compress(Message msg) {
+    // A file region only holds the count prefix in its content, the codec needs all of it
+    if (msg instanceof FileRegionMessage && isCompressible(msg.messageType)) {
+      msg = ((FileRegionMessage) msg).materialize();
+    }
+    int contentSize = msg.getContentSize();
+    if (!isCompressible(msg.messageType) || contentSize < P9Protocol.CODEC_MIN_PAYLOAD) {
+      return msg;
+    }
+    byte[] content = new byte[contentSize];
+    int compressedSize;
+    synchronized (deflater) {
+      deflater.reset();
+      deflater.setInput(msg.messageContent, 0, contentSize);
+      deflater.finish();
+      compressedSize =
+          deflater.deflate(content, CODEC_HEADER_SIZE, contentSize - CODEC_HEADER_SIZE);
+      if (!deflater.finished()) {
+        return msg;
+      }
+    }
+    content[0] = msg.messageType;
+    ByteEncoder.encodeInt(contentSize, content, P9Protocol.MSG_TYPE_SIZE);
+
+    Message rtr = new Message();
+    rtr.tag = msg.tag;
+    rtr.messageType = P9Protocol.TCODEC;
+    rtr.messageContent = Arrays.copyOf(content, CODEC_HEADER_SIZE + compressedSize);
+    rtr.messageSize = MessageRaw.minSize + rtr.messageContent.length;
+    account(contentSize, rtr.messageContent.length);
+    return rtr;
+  }
+
+  public Message decompress(Message msg) throws IOException {
+    if (msg.messageType != P9Protocol.TCODEC) {
+      return msg;
+    }
+    int contentSize = ByteEncoder.decodeInt(msg.messageContent, P9Protocol.MSG_TYPE_SIZE);
+    if (contentSize < 0 || contentSize > P9Protocol.MAX_NEGOTIATED_MSG_SIZE - MessageRaw.minSize) {
+      throw new IOException("Invalid compressed frame size");
+    }
+    byte[] content = new byte[contentSize];
+    synchronized (inflater) {
+      inflater.reset();
+      inflater.setInput(
+          msg.messageContent, CODEC_HEADER_SIZE, msg.getContentSize() - CODEC_HEADER_SIZE);
+      try {
+        if (inflater.inflate(content) != contentSize || !inflater.finished()) {
+          throw new IOException("Compressed frame does not match its size");
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Invalid compressed frame", e);
+      }
+    }
+    account(contentSize, msg.getContentSize());
+    Message rtr = new Message();
+    rtr.tag = msg.tag;
+    rtr.messageType = msg.messageContent[0];
+    rtr.messageContent = content;
+    rtr.messageSize = MessageRaw.minSize + contentSize;
+    return rtr;
+  }
+}
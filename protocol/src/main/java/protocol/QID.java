@@ -11,6 +11,9 @@
 
 package protocol;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public class QID {
 
   public static int QID_DIR = 0x80;
@@ -25,13 +28,18 @@ public class QID {
   private long longFileId;
   private int version;
   private byte type;
+  // Stats holding this QID that are told when it changes in place
+  private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
 
   public long getLongFileId() {
     return longFileId;
   }
 
   public void setLongFileId(long longFileId) {
-    this.longFileId = longFileId;
+    if (this.longFileId != longFileId) {
+      this.longFileId = longFileId;
+      changed();
+    }
   }
 
   public long getVersion() {
@@ -39,7 +47,11 @@ public class QID {
   }
 
   public void setVersion(long newVersion) {
-    version = ByteEncoder.toUnsigned(newVersion);
+    int rawVersion = ByteEncoder.toUnsigned(newVersion);
+    if (version != rawVersion) {
+      version = rawVersion;
+      changed();
+    }
   }
 
   public int getVersionRaw() {
@@ -51,6 +63,23 @@ public class QID {
   }
 
   public void setType(byte type) {
-    this.type = type;
+    if (this.type != type) {
+      this.type = type;
+      changed();
+    }
+  }
+
+  public void addChangeListener(Runnable listener) {
+    changeListeners.add(listener);
+  }
+
+  public void removeChangeListener(Runnable listener) {
+    changeListeners.remove(listener);
+  }
+
+  private void changed() {
+    for (Runnable listener : changeListeners) {
+      listener.run();
+    }
   }
 }
@@ -11,6 +11,9 @@
 
 package protocol;
 
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class StatStruct {
 
   private int statSize;
@@ -27,6 +30,45 @@ public class StatStruct {
   private String gid;
   private String muid;
 
+  // Bumped after every change, cached bytes are only used while their generation is current
+  private final AtomicLong generation = new AtomicLong();
+  private volatile Encoding encoding;
+  // Told after every change, a qid changed in place included, while one is set
+  private volatile Runnable changeListener;
+  private final Runnable qidListener = this::invalidate;
+
+  // Changes whenever the encoded bytes would, a qid changed in place included
+  public long getGeneration() {
+    Encoding current = encoding;
+    if (current != null && current.generation == generation.get() && !current.matches(qid)) {
+      invalidate();
+    }
+    return generation.get();
+  }
+
+  private void invalidate() {
+    generation.incrementAndGet();
+    Runnable listener = changeListener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  public Runnable getChangeListener() {
+    return changeListener;
+  }
+
+  // Only a stat with a listener registers with its qid, so copies made per request never do
+  public synchronized void setChangeListener(Runnable listener) {
+    if (qid != null) {
+      qid.removeChangeListener(qidListener);
+      if (listener != null) {
+        qid.addChangeListener(qidListener);
+      }
+    }
+    changeListener = listener;
+  }
+
   public StatStruct duplicate() {
     StatStruct newStatStruct = new StatStruct();
     newStatStruct.statSize = statSize;
@@ -50,7 +92,7 @@ public class StatStruct {
   }
 
   public void setAccessTime(long newAccessTime) {
-    atime = ByteEncoder.toUnsigned(newAccessTime);
+    setRawAtime(ByteEncoder.toUnsigned(newAccessTime));
   }
 
   public long getModifiedTime() {
@@ -58,7 +100,7 @@ public class StatStruct {
   }
 
   public void setModifiedTime(long newModifiedTime) {
-    mtime = ByteEncoder.toUnsigned(newModifiedTime);
+    setRawMtime(ByteEncoder.toUnsigned(newModifiedTime));
   }
 
   public int updateSize() {
@@ -81,12 +123,34 @@ public class StatStruct {
     statSize += guiSize;
     statSize += muidSzie;
 
-    this.statSize = statSize;
+    if (this.statSize != statSize) {
+      this.statSize = statSize;
+      invalidate();
+    }
 
     return statSize;
   }
 
+  // The returned array is shared with later callers until a setter changes the stat. The
+  // generation is read before encoding, so bytes raced by a setter are stored already stale.
   public byte[] EncodeStat() {
+    long expected = getGeneration();
+    Encoding current = encoding;
+    if (current != null && current.generation == expected && current.matches(qid)) {
+      return current.bytes;
+    }
+    // The qid is captured first too, an in place change while encoding leaves it mismatched
+    Encoding fresh = new Encoding(expected, qid);
+    fresh.bytes = encodeStat();
+    encoding = fresh;
+    return fresh.bytes;
+  }
+
+  public int encodedLength() {
+    return EncodeStat().length;
+  }
+
+  private byte[] encodeStat() {
     byte[] nameByte = ByteEncoder.encodeStringToBuffer(name);
     byte[] uidByte = ByteEncoder.encodeStringToBuffer(uid);
     byte[] guiByte = ByteEncoder.encodeStringToBuffer(gid);
@@ -106,6 +170,7 @@ public class StatStruct {
     statSize += guiByte.length;
     statSize += muidByte.length;
 
+    this.statSize = statSize;
     byte[] statRet = new byte[statSize];
     int ptr = 0;
     ByteEncoder.encodeShort(this.statSize, statRet, ptr);
@@ -172,7 +237,10 @@ public class StatStruct {
   }
 
   public void setStatSize(int statSize) {
-    this.statSize = statSize;
+    if (this.statSize != statSize) {
+      this.statSize = statSize;
+      invalidate();
+    }
   }
 
   public int getStatSizen() {
@@ -184,7 +252,10 @@ public class StatStruct {
   }
 
   public void setType(int type) {
-    this.type = type;
+    if (this.type != type) {
+      this.type = type;
+      invalidate();
+    }
   }
 
   public int getDev() {
@@ -192,15 +263,27 @@ public class StatStruct {
   }
 
   public void setDev(int dev) {
-    this.dev = dev;
+    if (this.dev != dev) {
+      this.dev = dev;
+      invalidate();
+    }
   }
 
   public QID getQid() {
     return qid;
   }
 
-  public void setQid(QID qid) {
+  public synchronized void setQid(QID qid) {
+    if (changeListener != null && this.qid != qid) {
+      if (this.qid != null) {
+        this.qid.removeChangeListener(qidListener);
+      }
+      if (qid != null) {
+        qid.addChangeListener(qidListener);
+      }
+    }
     this.qid = qid;
+    invalidate();
   }
 
   public int getMode() {
@@ -208,7 +291,10 @@ public class StatStruct {
   }
 
   public void setMode(int mode) {
-    this.mode = mode;
+    if (this.mode != mode) {
+      this.mode = mode;
+      invalidate();
+    }
   }
 
   public int getRawAtime() {
@@ -216,7 +302,10 @@ public class StatStruct {
   }
 
   public void setRawAtime(int atime) {
-    this.atime = atime;
+    if (this.atime != atime) {
+      this.atime = atime;
+      invalidate();
+    }
   }
 
   public int getRawMtime() {
@@ -224,7 +313,10 @@ public class StatStruct {
   }
 
   public void setRawMtime(int mtime) {
-    this.mtime = mtime;
+    if (this.mtime != mtime) {
+      this.mtime = mtime;
+      invalidate();
+    }
   }
 
   public long getLength() {
@@ -232,7 +324,10 @@ public class StatStruct {
   }
 
   public void setLength(long length) {
-    this.length = length;
+    if (this.length != length) {
+      this.length = length;
+      invalidate();
+    }
   }
 
   public String getName() {
@@ -240,7 +335,10 @@ public class StatStruct {
   }
 
   public void setName(String name) {
-    this.name = name;
+    if (!Objects.equals(this.name, name)) {
+      this.name = name;
+      invalidate();
+    }
   }
 
   public String getUid() {
@@ -248,7 +346,10 @@ public class StatStruct {
   }
 
   public void setUid(String uid) {
-    this.uid = uid;
+    if (!Objects.equals(this.uid, uid)) {
+      this.uid = uid;
+      invalidate();
+    }
   }
 
   public String getGid() {
@@ -256,7 +357,10 @@ public class StatStruct {
   }
 
   public void setGid(String gid) {
-    this.gid = gid;
+    if (!Objects.equals(this.gid, gid)) {
+      this.gid = gid;
+      invalidate();
+    }
   }
 
   public String getMuid() {
@@ -264,6 +368,34 @@ public class StatStruct {
   }
 
   public void setMuid(String muid) {
-    this.muid = muid;
+    if (!Objects.equals(this.muid, muid)) {
+      this.muid = muid;
+      invalidate();
+    }
+  }
+
+  private static final class Encoding {
+    private final long generation;
+    private final QID qid;
+    private final byte qidType;
+    private final int qidVersion;
+    private final long qidFileId;
+    private byte[] bytes;
+
+    private Encoding(long generation, QID qid) {
+      this.generation = generation;
+      this.qid = qid;
+      qidType = qid != null ? qid.getType() : 0;
+      qidVersion = qid != null ? qid.getVersionRaw() : 0;
+      qidFileId = qid != null ? qid.getLongFileId() : 0;
+    }
+
+    private boolean matches(QID current) {
+      return current == qid
+          && current != null
+          && current.getType() == qidType
+          && current.getVersionRaw() == qidVersion
+          && current.getLongFileId() == qidFileId;
+    }
   }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol;
+
+public class StatView {
+
+  public static final int TYPE_POSITION = P9Protocol.MSG_SHORT_SIZE * 2;
+  public static final int DEV_POSITION = TYPE_POSITION + P9Protocol.MSG_SHORT_SIZE;
+  public static final int QID_POSITION = DEV_POSITION + P9Protocol.MSG_INT_SIZE;
+  public static final int MODE_POSITION = QID_POSITION + P9Protocol.MSG_QID_SIZE;
+  public static final int ATIME_POSITION = MODE_POSITION + P9Protocol.MSG_INT_SIZE;
+  public static final int MTIME_POSITION = ATIME_POSITION + P9Protocol.MSG_INT_SIZE;
+  public static final int LENGTH_POSITION = MTIME_POSITION + P9Protocol.MSG_INT_SIZE;
+  public static final int NAME_POSITION = LENGTH_POSITION + P9Protocol.MSG_LONG_SIZE;
+
+  private byte[] buffer;
+  private int position;
+
+  public StatView() {}
+
+  public StatView(byte[] buffer, int position) {
+    reset(buffer, position);
+  }
+
+  public StatView reset(byte[] buffer, int position) {
+    this.buffer = buffer;
+    this.position = position;
+    return this;
+  }
+
+  public int getPosition() {
+    return position;
+  }
+
+  public int getStatSize() {
+    return ByteEncoder.decodeShort(buffer, position);
+  }
+
+  public int getType() {
+    return ByteEncoder.decodeShort(buffer, position + TYPE_POSITION);
+  }
+
+  public int getDev() {
+    return ByteEncoder.decodeInt(buffer, position + DEV_POSITION);
+  }
+
+  public byte getQidType() {
+    return buffer[position + QID_POSITION];
+  }
+
+  public long getQidFileId() {
+    return ByteEncoder.decodeLong(
+        buffer, position + QID_POSITION + P9Protocol.MSG_TYPE_SIZE + P9Protocol.MSG_INT_SIZE);
+  }
+
+  public QID getQid() {
+    return ByteEncoder.decodeQID(buffer, position + QID_POSITION);
+  }
+
+  public int getMode() {
+    return ByteEncoder.decodeInt(buffer, position + MODE_POSITION);
+  }
+
+  public long getAccessTime() {
+    return ByteEncoder.getUnsigned(ByteEncoder.decodeInt(buffer, position + ATIME_POSITION));
+  }
+
+  public long getModifiedTime() {
+    return ByteEncoder.getUnsigned(ByteEncoder.decodeInt(buffer, position + MTIME_POSITION));
+  }
+
+  public long getLength() {
+    return ByteEncoder.decodeLong(buffer, position + LENGTH_POSITION);
+  }
+
+  public String getName() {
+    return ByteEncoder.decodeString(buffer, position + NAME_POSITION);
+  }
+
+  public String getUid() {
+    return ByteEncoder.decodeString(buffer, uidPosition());
+  }
+
+  public String getGid() {
+    return ByteEncoder.decodeString(buffer, gidPosition());
+  }
+
+  public String getMuid() {
+    return ByteEncoder.decodeString(buffer, muidPosition());
+  }
+
+  public StatStruct toStatStruct() {
+    return new StatStruct().DecodeStat(buffer, position);
+  }
+
+  private int uidPosition() {
+    int ptr = position + NAME_POSITION;
+    return ptr + P9Protocol.MSG_SHORT_SIZE + ByteEncoder.stringLength(buffer, ptr);
+  }
+
+  private int gidPosition() {
+    int ptr = uidPosition();
+    return ptr + P9Protocol.MSG_SHORT_SIZE + ByteEncoder.stringLength(buffer, ptr);
+  }
+
+  private int muidPosition() {
+    int ptr = gidPosition();
+    return ptr + P9Protocol.MSG_SHORT_SIZE + ByteEncoder.stringLength(buffer, ptr);
+  }
+}
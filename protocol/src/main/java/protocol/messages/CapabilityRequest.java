@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol.messages;
+
+import protocol.ByteEncoder;
+import protocol.P9Protocol;
+
+// Sent after TVERSION, the reply carries the single codec the server picked or CODEC_NONE
+public class CapabilityRequest implements TransactionMessage {
+
+  private int codecs = P9Protocol.CODEC_NONE;
+  private int messageTag = 0;
+
+  public int getCodecs() {
+    return codecs;
+  }
+
+  public void setCodecs(int codecs) {
+    this.codecs = codecs;
+  }
+
+  @Override
+  public void setTransactionId(int transactionId) {
+    setTag(transactionId);
+  }
+
+  @Override
+  public int getTag() {
+    return messageTag;
+  }
+
+  @Override
+  public void setTag(int newTag) {
+    messageTag = newTag;
+  }
+
+  @Override
+  public byte messageType() {
+    return P9Protocol.TCAPABILITY;
+  }
+
+  @Override
+  public Message toMessage() {
+    Message rtr = new Message();
+    rtr.tag = messageTag;
+    rtr.messageType = P9Protocol.TCAPABILITY;
+    rtr.messageContent = new byte[P9Protocol.MSG_INT_SIZE];
+    ByteEncoder.encodeInt(codecs, rtr.messageContent, 0);
+    rtr.messageSize = MessageRaw.minSize + rtr.messageContent.length;
+    return rtr;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import protocol.ByteEncoder;
+import protocol.Encoder;
+import protocol.P9Protocol;
+
+// RREAD frame whose data still lives in a file. Only the count prefix is held in messageContent,
+// transports that can send the region directly use transferTo, everything else materializes it
+public class FileRegionMessage extends Message {
+
+  private final FileChannel regionChannel;
+  private final long regionPosition;
+  private final int regionLength;
+
+  public FileRegionMessage(int tag, FileChannel channel, long position, int length) {
+    this.tag = tag;
+    this.messageType = P9Protocol.RREAD;
+    this.messageContent = new byte[P9Protocol.MSG_INT_SIZE];
+    this.messageSize = P9Protocol.MIN_MSG_SIZE + P9Protocol.MSG_INT_SIZE + length;
+    ByteEncoder.encodeInt(length, messageContent, 0);
+    regionChannel = channel;
+    regionPosition = position;
+    regionLength = length;
+  }
+
+  public FileChannel getRegionChannel() {
+    return regionChannel;
+  }
+
+  public long getRegionPosition() {
+    return regionPosition;
+  }
+
+  public int getRegionLength() {
+    return regionLength;
+  }
+
+  // Sends the region bytes starting at offset, returns how many the target accepted
+  public long transferTo(WritableByteChannel target, long offset) throws IOException {
+    return transferTo(target, offset, regionLength - offset);
+  }
+
+  public long transferTo(WritableByteChannel target, long offset, long count)
+      throws IOException {
+    count = Math.min(count, regionLength - offset);
+    return regionChannel.transferTo(regionPosition + offset, count, target);
+  }
+
+  // Plain copy of the frame for paths that need the bytes in memory
+  public Message materialize() {
+    Message rtr = new Message();
+    rtr.tag = tag;
+    rtr.messageType = messageType;
+    rtr.messageSize = messageSize;
+    rtr.messageContent = new byte[P9Protocol.MSG_INT_SIZE + regionLength];
+    ByteEncoder.encodeInt(regionLength, rtr.messageContent, 0);
+    readRegion(ByteBuffer.wrap(rtr.messageContent, P9Protocol.MSG_INT_SIZE, regionLength));
+    return rtr;
+  }
+
+  @Override
+  public MessageRaw toRaw() {
+    return materialize().toRaw();
+  }
+
+  @Override
+  public void encodeTo(ByteBuffer buffer) {
+    Encoder.encodeHeader(buffer, messageSize, messageType, tag);
+    buffer.putInt(regionLength);
+    ByteBuffer target = buffer.slice();
+    target.limit(regionLength);
+    readRegion(target);
+    buffer.position(buffer.position() + regionLength);
+  }
+
+  private void readRegion(ByteBuffer target) {
+    try {
+      int start = target.position();
+      while (target.hasRemaining()) {
+        int count = regionChannel.read(target, regionPosition + target.position() - start);
+        if (count == -1) {
+          throw new IOException("File region truncated");
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read file region", e);
+    }
+  }
+}
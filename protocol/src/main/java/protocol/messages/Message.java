@@ -11,7 +11,9 @@
 
 package protocol.messages;
 
+import java.nio.ByteBuffer;
 import protocol.ByteEncoder;
+import protocol.Encoder;
 
 public class Message implements TransactionMessage {
 
@@ -57,4 +59,19 @@ public class Message implements TransactionMessage {
   public Message toMessage() {
     return this;
   }
+
+  @Override
+  public int encodedSize() {
+    return messageSize;
+  }
+
+  @Override
+  public void encodeTo(ByteBuffer buffer) {
+    Encoder.encodeTo(this, buffer);
+  }
+
+  @Override
+  public boolean encodesDirectly() {
+    return true;
+  }
 }
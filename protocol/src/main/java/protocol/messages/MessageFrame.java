@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol.messages;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import protocol.ByteEncoder;
+
+public class MessageFrame {
+
+  private int messageSize;
+  private byte messageType;
+  private int tag;
+  private ByteBuffer content;
+
+  public MessageFrame(int messageSize, byte messageType, int tag, ByteBuffer content) {
+    this.messageSize = messageSize;
+    this.messageType = messageType;
+    this.tag = tag;
+    this.content = content.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public int getMessageSize() {
+    return messageSize;
+  }
+
+  public byte getMessageType() {
+    return messageType;
+  }
+
+  public int getTag() {
+    return tag;
+  }
+
+  public int getContentSize() {
+    return content.remaining();
+  }
+
+  public ByteBuffer getContent() {
+    return content.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public ByteBuffer slice(int position, int length) {
+    ByteBuffer dup = content.duplicate();
+    dup.position(content.position() + position);
+    dup.limit(content.position() + position + length);
+    return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public byte getByte(int position) {
+    return content.get(content.position() + position);
+  }
+
+  public int getShort(int position) {
+    return content.getShort(content.position() + position) & 0xffff;
+  }
+
+  public int getInt(int position) {
+    return content.getInt(content.position() + position);
+  }
+
+  public long getLong(int position) {
+    return content.getLong(content.position() + position);
+  }
+
+  public String getString(int position) {
+    return ByteEncoder.decodeString(content, content.position() + position);
+  }
+
+  public Message toMessage() {
+    Message msg = new Message();
+    msg.messageSize = messageSize;
+    msg.messageType = messageType;
+    msg.tag = tag;
+    if (content.hasArray()
+        && content.arrayOffset() == 0
+        && content.position() == 0
+        && content.remaining() == content.array().length) {
+      msg.messageContent = content.array();
+    } else {
+      msg.messageContent = new byte[content.remaining()];
+      content.duplicate().get(msg.messageContent);
+    }
+    return msg;
+  }
+}
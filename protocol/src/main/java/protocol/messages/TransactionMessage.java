@@ -11,6 +11,9 @@
 
 package protocol.messages;
 
+import java.nio.ByteBuffer;
+import protocol.Encoder;
+
 public interface TransactionMessage {
 
   public void setTransactionId(int transactionId);
@@ -22,4 +25,19 @@ public interface TransactionMessage {
   public byte messageType();
 
   Message toMessage();
+
+  default int encodedSize() {
+    return toMessage().messageSize;
+  }
+
+  // Writes the full frame at the buffer position, the buffer is switched to little endian
+  default void encodeTo(ByteBuffer buffer) {
+    Encoder.encodeTo(toMessage(), buffer);
+  }
+
+  // The defaults above build the Message on every call, a caller that needs both the size and
+  // the frame of a type that does not encode directly converts it once with toMessage
+  default boolean encodesDirectly() {
+    return false;
+  }
 }
@@ -28,6 +28,24 @@ public class VersionRequest implements TransactionMessage {
     this.maxMsgSize = maxMsgSize;
   }
 
+  public int getIoUnit() {
+    return ioUnit(maxMsgSize);
+  }
+
+  public static int ioUnit(int msgSize) {
+    return msgSize - P9Protocol.IO_HEADER_SIZE;
+  }
+
+  // The reply never offers more than the peer asked for or more than the local limit
+  public static int negotiateMsgSize(int requested, int limit) {
+    return Math.min(requested, limit);
+  }
+
+  public static boolean validMsgSize(int msgSize) {
+    return msgSize >= P9Protocol.MIN_NEGOTIATED_MSG_SIZE
+        && msgSize <= P9Protocol.MAX_NEGOTIATED_MSG_SIZE;
+  }
+
   public String getVersion() {
     return version;
   }
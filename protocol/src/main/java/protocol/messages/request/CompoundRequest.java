@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol.messages.request;
+
+import java.util.ArrayList;
+import java.util.List;
+import protocol.Encoder;
+import protocol.P9Protocol;
+import protocol.messages.Message;
+import protocol.messages.MessageRaw;
+import protocol.messages.TransactionMessage;
+
+// Ordered batch of requests run back to back on the server, sub tags carry the operation index
+public class CompoundRequest implements TransactionMessage {
+
+  private int tag;
+  private List<Message> operations = new ArrayList<>();
+
+  @Override
+  public void setTransactionId(int transactionId) {
+    setTag(transactionId);
+  }
+
+  @Override
+  public int getTag() {
+    return tag;
+  }
+
+  @Override
+  public void setTag(int tag) {
+    this.tag = tag;
+  }
+
+  @Override
+  public byte messageType() {
+    return P9Protocol.TCOMPOUND;
+  }
+
+  @Override
+  public Message toMessage() {
+    Message rtr = new Message();
+    rtr.tag = tag;
+    rtr.messageType = P9Protocol.TCOMPOUND;
+    rtr.messageContent = Encoder.encodeFrames(operations);
+    rtr.messageSize = MessageRaw.minSize + rtr.messageContent.length;
+    return rtr;
+  }
+
+  public int addOperation(TransactionMessage operation) {
+    if (operations.size() >= P9Protocol.MAX_COMPOUND_OPERATIONS) {
+      throw new RuntimeException("Too many compound operations");
+    }
+    Message msg = operation.toMessage();
+    msg.tag = operations.size();
+    operations.add(msg);
+    return msg.tag;
+  }
+
+  public List<Message> getOperations() {
+    return operations;
+  }
+
+  public void setOperations(List<Message> operations) {
+    this.operations = operations;
+  }
+}
@@ -11,7 +11,9 @@
 
 package protocol.messages.request;
 
+import java.nio.ByteBuffer;
 import protocol.ByteEncoder;
+import protocol.Encoder;
 import protocol.P9Protocol;
 import protocol.messages.Message;
 import protocol.messages.TransactionMessage;
@@ -60,6 +62,27 @@ public class ReadRequest implements TransactionMessage {
     return rtr;
   }
 
+  @Override
+  public int encodedSize() {
+    return P9Protocol.MIN_MSG_SIZE
+        + P9Protocol.MSG_INT_SIZE
+        + P9Protocol.MSG_LONG_SIZE
+        + P9Protocol.MSG_INT_SIZE;
+  }
+
+  @Override
+  public void encodeTo(ByteBuffer buffer) {
+    Encoder.encodeHeader(buffer, encodedSize(), P9Protocol.TREAD, tag);
+    buffer.putInt(fileDescriptor);
+    buffer.putLong(fileOffset);
+    buffer.putInt(bytesToRead);
+  }
+
+  @Override
+  public boolean encodesDirectly() {
+    return true;
+  }
+
   public int getFileDescriptor() {
     return fileDescriptor;
   }
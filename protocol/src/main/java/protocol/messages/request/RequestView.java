@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol.messages.request;
+
+import protocol.messages.MessageFrame;
+
+public class RequestView {
+
+  private final MessageFrame frame;
+
+  public RequestView(MessageFrame frame) {
+    this.frame = frame;
+  }
+
+  public MessageFrame getFrame() {
+    return frame;
+  }
+
+  public byte messageType() {
+    return frame.getMessageType();
+  }
+
+  public int getTag() {
+    return frame.getTag();
+  }
+
+  public int getFileDescriptor() {
+    return frame.getInt(0);
+  }
+}
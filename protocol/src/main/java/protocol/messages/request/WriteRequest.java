@@ -11,7 +11,9 @@
 
 package protocol.messages.request;
 
+import java.nio.ByteBuffer;
 import protocol.ByteEncoder;
+import protocol.Encoder;
 import protocol.P9Protocol;
 import protocol.messages.Message;
 import protocol.messages.TransactionMessage;
@@ -69,6 +71,30 @@ public class WriteRequest implements TransactionMessage {
     return rtr;
   }
 
+  @Override
+  public int encodedSize() {
+    return P9Protocol.MIN_MSG_SIZE
+        + P9Protocol.MSG_INT_SIZE
+        + P9Protocol.MSG_LONG_SIZE
+        + P9Protocol.MSG_INT_SIZE
+        + writeData.length;
+  }
+
+  @Override
+  public void encodeTo(ByteBuffer buffer) {
+    byteCount = writeData.length;
+    Encoder.encodeHeader(buffer, encodedSize(), P9Protocol.TWRITE, tag);
+    buffer.putInt(fileDescriptor);
+    buffer.putLong(fileOffset);
+    buffer.putInt(byteCount);
+    buffer.put(writeData);
+  }
+
+  @Override
+  public boolean encodesDirectly() {
+    return true;
+  }
+
   public int getFileDescriptor() {
     return fileDescriptor;
   }
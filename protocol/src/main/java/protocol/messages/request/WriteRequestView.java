@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol.messages.request;
+
+import java.nio.ByteBuffer;
+import protocol.P9Protocol;
+import protocol.messages.MessageFrame;
+
+public class WriteRequestView extends RequestView {
+
+  public static final int OFFSET_POSITION = P9Protocol.MSG_FID_SIZE;
+  public static final int COUNT_POSITION = OFFSET_POSITION + P9Protocol.MSG_LONG_SIZE;
+  public static final int DATA_POSITION = COUNT_POSITION + P9Protocol.MSG_INT_SIZE;
+
+  public WriteRequestView(MessageFrame frame) {
+    super(frame);
+  }
+
+  public long getFileOffset() {
+    return getFrame().getLong(OFFSET_POSITION);
+  }
+
+  public int getByteCount() {
+    return getFrame().getInt(COUNT_POSITION);
+  }
+
+  // The count comes from the client, it has to fit the data the frame actually carries
+  public boolean validByteCount() {
+    int dataSize = getFrame().getContentSize() - DATA_POSITION;
+    if (dataSize < 0) {
+      return false;
+    }
+    int count = getByteCount();
+    return count >= 0 && count <= dataSize;
+  }
+
+  public ByteBuffer getWriteData() {
+    return getFrame().slice(DATA_POSITION, getByteCount());
+  }
+}
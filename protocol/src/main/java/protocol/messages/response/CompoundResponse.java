@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol.messages.response;
+
+import java.util.ArrayList;
+import java.util.List;
+import protocol.Encoder;
+import protocol.P9Protocol;
+import protocol.messages.Message;
+import protocol.messages.MessageRaw;
+import protocol.messages.TransactionMessage;
+
+// Replies in execution order, stops after the first operation that failed
+public class CompoundResponse implements TransactionMessage {
+
+  private int tag;
+  private List<Message> replies = new ArrayList<>();
+
+  @Override
+  public void setTransactionId(int transactionId) {
+    setTag(transactionId);
+  }
+
+  @Override
+  public int getTag() {
+    return tag;
+  }
+
+  @Override
+  public void setTag(int tag) {
+    this.tag = tag;
+  }
+
+  @Override
+  public byte messageType() {
+    return P9Protocol.RCOMPOUND;
+  }
+
+  @Override
+  public Message toMessage() {
+    Message rtr = new Message();
+    rtr.tag = tag;
+    rtr.messageType = P9Protocol.RCOMPOUND;
+    rtr.messageContent = Encoder.encodeFrames(replies);
+    rtr.messageSize = MessageRaw.minSize + rtr.messageContent.length;
+    return rtr;
+  }
+
+  @Override
+  public int encodedSize() {
+    int size = MessageRaw.minSize + P9Protocol.MSG_SHORT_SIZE;
+    for (Message reply : replies) {
+      size += reply.encodedSize();
+    }
+    return size;
+  }
+
+  public List<Message> getReplies() {
+    return replies;
+  }
+
+  public void setReplies(List<Message> replies) {
+    this.replies = replies;
+  }
+
+  // A streamed TREAD can produce more than one reply for the same operation
+  public List<Message> getReplies(int operation) {
+    List<Message> rtr = new ArrayList<>();
+    for (Message reply : replies) {
+      if (reply.tag == operation) {
+        rtr.add(reply);
+      }
+    }
+    return rtr;
+  }
+
+  public Message getReply(int operation) {
+    for (Message reply : replies) {
+      if (reply.tag == operation) {
+        return reply;
+      }
+    }
+    return null;
+  }
+
+  public boolean isError() {
+    for (Message reply : replies) {
+      if (reply.messageType == P9Protocol.RERROR) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
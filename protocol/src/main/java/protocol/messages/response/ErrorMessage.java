@@ -11,6 +11,9 @@
 
 package protocol.messages.response;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import protocol.ByteEncoder;
 import protocol.Encoder;
 import protocol.P9Protocol;
 import protocol.messages.Message;
@@ -41,6 +44,25 @@ public class ErrorMessage implements TransactionMessage {
     return Encoder.encodeError(this).toMessage();
   }
 
+  @Override
+  public int encodedSize() {
+    return P9Protocol.MIN_MSG_SIZE + ByteEncoder.stringLength(errorMessage);
+  }
+
+  @Override
+  public void encodeTo(ByteBuffer buffer) {
+    byte[] error = errorMessage.getBytes(StandardCharsets.UTF_8);
+    int size = P9Protocol.MIN_MSG_SIZE + P9Protocol.MSG_SHORT_SIZE + error.length;
+    Encoder.encodeHeader(buffer, size, P9Protocol.RERROR, tag);
+    buffer.putShort((short) error.length);
+    buffer.put(error);
+  }
+
+  @Override
+  public boolean encodesDirectly() {
+    return true;
+  }
+
   @Override
   public void setTransactionId(int transactionId) {
     setTag(transactionId);
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol.messages.response;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import protocol.P9Protocol;
+import protocol.messages.FileRegionMessage;
+import protocol.messages.Message;
+import protocol.messages.TransactionMessage;
+
+// RREAD answered from a file region instead of a byte array
+public class ReadRegionResponse implements TransactionMessage {
+
+  private int tag;
+  private FileChannel channel;
+  private long position;
+  private int length;
+
+  @Override
+  public void setTransactionId(int transactionId) {
+    setTag(transactionId);
+  }
+
+  @Override
+  public int getTag() {
+    return tag;
+  }
+
+  @Override
+  public void setTag(int tag) {
+    this.tag = tag;
+  }
+
+  @Override
+  public byte messageType() {
+    return P9Protocol.RREAD;
+  }
+
+  @Override
+  public Message toMessage() {
+    return new FileRegionMessage(tag, channel, position, length);
+  }
+
+  @Override
+  public int encodedSize() {
+    return P9Protocol.MIN_MSG_SIZE + P9Protocol.MSG_INT_SIZE + length;
+  }
+
+  @Override
+  public void encodeTo(ByteBuffer buffer) {
+    toMessage().encodeTo(buffer);
+  }
+
+  public void setRegion(FileChannel channel, long position, int length) {
+    this.channel = channel;
+    this.position = position;
+    this.length = length;
+  }
+
+  public FileChannel getChannel() {
+    return channel;
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  public int getDataLength() {
+    return length;
+  }
+}
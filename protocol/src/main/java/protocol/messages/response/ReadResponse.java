@@ -11,7 +11,10 @@
 
 package protocol.messages.response;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import protocol.ByteEncoder;
+import protocol.Encoder;
 import protocol.P9Protocol;
 import protocol.messages.Message;
 import protocol.messages.TransactionMessage;
@@ -20,6 +23,8 @@ public class ReadResponse implements TransactionMessage {
 
   private int tag;
   private byte[] data;
+  private int dataOffset;
+  private int dataLength;
 
   @Override
   public void setTransactionId(int transactionId) {
@@ -53,19 +58,54 @@ public class ReadResponse implements TransactionMessage {
       ByteEncoder.encodeInt(0, rtr.messageContent, 0);
       return rtr;
     }
-    int totalSize = P9Protocol.MSG_INT_SIZE + data.length;
+    int totalSize = P9Protocol.MSG_INT_SIZE + dataLength;
     rtr.messageContent = new byte[totalSize];
     rtr.messageSize = P9Protocol.MIN_MSG_SIZE + totalSize;
-    ByteEncoder.encodeInt(data.length, rtr.messageContent, 0);
-    ByteEncoder.copyBytesTo(data, rtr.messageContent, P9Protocol.MSG_INT_SIZE, data.length);
+    ByteEncoder.encodeInt(dataLength, rtr.messageContent, 0);
+    System.arraycopy(data, dataOffset, rtr.messageContent, P9Protocol.MSG_INT_SIZE, dataLength);
     return rtr;
   }
 
+  @Override
+  public int encodedSize() {
+    return P9Protocol.MIN_MSG_SIZE + P9Protocol.MSG_INT_SIZE + (data == null ? 0 : dataLength);
+  }
+
+  @Override
+  public void encodeTo(ByteBuffer buffer) {
+    Encoder.encodeHeader(buffer, encodedSize(), P9Protocol.RREAD, tag);
+    if (data == null) {
+      buffer.putInt(0);
+      return;
+    }
+    buffer.putInt(dataLength);
+    buffer.put(data, dataOffset, dataLength);
+  }
+
+  @Override
+  public boolean encodesDirectly() {
+    return true;
+  }
+
   public byte[] getData() {
-    return data;
+    if (data == null || (dataOffset == 0 && dataLength == data.length)) {
+      return data;
+    }
+    return Arrays.copyOfRange(data, dataOffset, dataOffset + dataLength);
   }
 
   public void setData(byte[] data) {
+    setData(data, 0, data == null ? 0 : data.length);
+  }
+
+  // Sends a region of a shared buffer without copying it first
+  public void setData(byte[] data, int offset, int length) {
     this.data = data;
+    this.dataOffset = offset;
+    this.dataLength = length;
+  }
+
+  public int getDataLength() {
+    return dataLength;
   }
 }
@@ -11,7 +11,9 @@
 
 package protocol.messages.response;
 
+import java.nio.ByteBuffer;
 import protocol.ByteEncoder;
+import protocol.Encoder;
 import protocol.P9Protocol;
 import protocol.messages.Message;
 import protocol.messages.TransactionMessage;
@@ -52,6 +54,22 @@ public class WriteResponse implements TransactionMessage {
     return rtr;
   }
 
+  @Override
+  public int encodedSize() {
+    return P9Protocol.MIN_MSG_SIZE + P9Protocol.MSG_INT_SIZE;
+  }
+
+  @Override
+  public void encodeTo(ByteBuffer buffer) {
+    Encoder.encodeHeader(buffer, encodedSize(), P9Protocol.RWRITE, tag);
+    buffer.putInt(bytesWritten);
+  }
+
+  @Override
+  public boolean encodesDirectly() {
+    return true;
+  }
+
   public int getBytesWritten() {
     return bytesWritten;
   }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2021.  Enzo Reyes Licensed under the Apache License, Version 2.0 (the "License");   you may
+ * not use this file except in compliance with the License.   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package protocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class ByteEncoderTest {
+
+  @Test
+  void testPrimitiveRoundTrip() {
+    byte[] buffer = new byte[64];
+    ByteEncoder.encodeShort(0xfffe, buffer, 1);
+    assertEquals(0xfffe, ByteEncoder.decodeShort(buffer, 1));
+    ByteEncoder.encodeInt(-12345, buffer, 3);
+    assertEquals(-12345, ByteEncoder.decodeInt(buffer, 3));
+    ByteEncoder.encodeLong(Long.MIN_VALUE + 7, buffer, 9);
+    assertEquals(Long.MIN_VALUE + 7, ByteEncoder.decodeLong(buffer, 9));
+    assertEquals((byte) 0xc7, buffer[3]);
+
+    QID qid = new QID();
+    qid.setType(P9Protocol.QID_DIR);
+    qid.setVersion(42);
+    qid.setLongFileId(0x1122334455667788L);
+    ByteEncoder.encodeQID(qid, buffer, 20);
+    QID decoded = ByteEncoder.decodeQID(buffer, 20);
+    assertEquals(qid.getType(), decoded.getType());
+    assertEquals(qid.getVersion(), decoded.getVersion());
+    assertEquals(qid.getLongFileId(), decoded.getLongFileId());
+
+    assertEquals(4294967295L, ByteEncoder.getUnsigned(ByteEncoder.toUnsigned(4294967295L)));
+  }
+
+  @Test
+  void testStringRoundTrip() {
+    byte[] buffer = new byte[64];
+    String[] values = {"", "plain", "caf\u00e9", "\ud83c\udf5d pasta"};
+    for (String value : values) {
+      int written = ByteEncoder.encodeString(buffer, 3, value);
+      assertEquals(ByteEncoder.stringLength(value), written);
+      assertEquals(ByteEncoder.encodeStringUTF8(value).length + 2, written);
+      assertEquals(value, ByteEncoder.decodeString(buffer, 3));
+    }
+  }
+}
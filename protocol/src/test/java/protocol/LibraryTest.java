@@ -11,12 +11,39 @@
 
 package protocol;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import org.junit.jupiter.api.Test;
+import protocol.messages.FileRegionMessage;
 import protocol.messages.Message;
+import protocol.messages.MessageFrame;
 import protocol.messages.MessageRaw;
+import protocol.messages.TransactionMessage;
 import protocol.messages.VersionRequest;
 import protocol.messages.request.AuthRequest;
+import protocol.messages.request.CompoundRequest;
+import protocol.messages.request.StatRequest;
+import protocol.messages.request.WalkRequest;
+import protocol.messages.request.WriteRequest;
+import protocol.messages.request.WriteRequestView;
 import protocol.messages.response.AuthResponse;
+import protocol.messages.response.CompoundResponse;
+import protocol.messages.response.ErrorMessage;
+import protocol.messages.response.ReadRegionResponse;
+import protocol.messages.response.ReadResponse;
 
 class LibraryTest {
 
@@ -56,4 +83,344 @@ class LibraryTest {
     AuthResponse decodedAuthRsp = Decoder.decodeAuthResponse(decodedMessage);
     System.out.println(decodedAuthRsp.getTag());
   }
+
+  @Test
+  void testFrameViews() {
+    WriteRequest writeRequest = new WriteRequest();
+    writeRequest.setTag(7);
+    writeRequest.setFileDescriptor(99);
+    writeRequest.setFileOffset(1L << 33);
+    writeRequest.setWriteData(new byte[] {1, 2, 3, 4, 5});
+    WalkRequest walkRequest = new WalkRequest();
+    walkRequest.setTag(8);
+    walkRequest.setBaseDescriptor(1);
+    walkRequest.setNewDecriptor(2);
+    walkRequest.setTargetFile("pasta");
+
+    byte[] first = Encoder.messageToBytes(writeRequest.toMessage().toRaw());
+    byte[] second = Encoder.messageToBytes(walkRequest.toMessage().toRaw());
+    ByteBuffer socketBuffer = ByteBuffer.allocate(first.length + second.length + 3);
+    socketBuffer.put(first).put(second).put(new byte[] {1, 2, 3}).flip();
+
+    MessageFrame frame = Decoder.decodeFrame(socketBuffer);
+    WriteRequestView view = Decoder.viewWriteRequest(frame);
+    assertEquals(7, view.getTag());
+    assertEquals(99, view.getFileDescriptor());
+    assertEquals(1L << 33, view.getFileOffset());
+    ByteBuffer data = view.getWriteData();
+    assertEquals(5, data.remaining());
+    assertEquals(3, data.get(2));
+    assertEquals(socketBuffer.array(), data.array());
+
+    frame = Decoder.decodeFrame(socketBuffer);
+    assertEquals("pasta", Decoder.viewWalkRequest(frame).getTargetFile());
+    assertEquals(2, Decoder.viewWalkRequest(frame).getNewDecriptor());
+    assertEquals(null, Decoder.decodeFrame(socketBuffer));
+    assertEquals(3, socketBuffer.remaining());
+  }
+
+  @Test
+  void testWriteCountMustFitTheFrame() {
+    WriteRequest writeRequest = new WriteRequest();
+    writeRequest.setTag(7);
+    writeRequest.setFileDescriptor(99);
+    writeRequest.setWriteData(new byte[] {1, 2, 3, 4, 5});
+    byte[] encoded = Encoder.messageToBytes(writeRequest.toMessage().toRaw());
+    int countPosition = P9Protocol.MIN_MSG_SIZE + WriteRequestView.COUNT_POSITION;
+
+    for (int count : new int[] {0, 5}) {
+      ByteEncoder.encodeInt(count, encoded, countPosition);
+      MessageFrame frame = Decoder.decodeFrame(ByteBuffer.wrap(encoded));
+      assertEquals(count, Decoder.viewWriteRequest(frame).getWriteData().remaining());
+    }
+    // A negative count or one past the data is refused before anything is sliced
+    for (int count : new int[] {-1, 6, Integer.MAX_VALUE}) {
+      ByteEncoder.encodeInt(count, encoded, countPosition);
+      MessageFrame frame = Decoder.decodeFrame(ByteBuffer.wrap(encoded));
+      assertFalse(new WriteRequestView(frame).validByteCount());
+      assertThrows(RuntimeException.class, () -> Decoder.viewWriteRequest(frame));
+    }
+  }
+
+  @Test
+  void testEncodeTo() {
+    ReadResponse readResponse = new ReadResponse();
+    readResponse.setTag(3);
+    readResponse.setData(new byte[] {9, 8, 7});
+    ErrorMessage errorMessage = new ErrorMessage();
+    errorMessage.setTag(4);
+    errorMessage.setErrorMessage("not found");
+    WriteRequest writeRequest = new WriteRequest();
+    writeRequest.setTag(5);
+    writeRequest.setFileOffset(12);
+    writeRequest.setWriteData(new byte[] {1, 2});
+    AuthRequest authRequest = new AuthRequest();
+    authRequest.setTag(6);
+    authRequest.setUserName("user");
+    authRequest.setUserAuth("auth");
+
+    TransactionMessage[] messages = {readResponse, errorMessage, writeRequest, authRequest};
+    ByteBuffer buffer = ByteBuffer.allocateDirect(P9Protocol.DEFAULT_MSG_SIZE);
+    for (TransactionMessage message : messages) {
+      int start = buffer.position();
+      message.encodeTo(buffer);
+      assertEquals(message.encodedSize(), buffer.position() - start);
+    }
+    buffer.flip();
+    for (TransactionMessage message : messages) {
+      byte[] expected = Encoder.messageToBytes(message.toMessage().toRaw());
+      byte[] encoded = new byte[message.encodedSize()];
+      buffer.get(encoded);
+      assertArrayEquals(expected, encoded);
+    }
+    // Only the types above that write from their fields skip building a Message
+    assertTrue(writeRequest.encodesDirectly());
+    assertTrue(errorMessage.encodesDirectly());
+    assertFalse(authRequest.encodesDirectly());
+  }
+
+  @Test
+  void testStatEncodingCache() {
+    StatStruct stat = new StatStruct();
+    stat.setQid(new QID());
+    stat.setName("file");
+    stat.setUid("user");
+    stat.setGid("group");
+    stat.setMuid("group");
+    stat.updateSize();
+    byte[] first = stat.EncodeStat();
+    assertTrue(first == stat.EncodeStat());
+
+    long generation = stat.getGeneration();
+    stat.setLength(stat.getLength());
+    assertEquals(generation, stat.getGeneration());
+    assertTrue(first == stat.EncodeStat());
+
+    // Generations are per stat, another stat changing leaves this one cached
+    StatStruct other = stat.duplicate();
+    other.setName("other");
+    assertEquals(generation, stat.getGeneration());
+
+    stat.setName("renamed-file");
+    assertTrue(stat.getGeneration() != generation);
+    byte[] renamed = stat.EncodeStat();
+    assertTrue(first != renamed);
+    assertEquals(renamed.length, stat.getStatSize());
+    assertEquals("renamed-file", new StatStruct().DecodeStat(renamed, 0).getName());
+
+    generation = stat.getGeneration();
+    stat.getQid().setVersion(3);
+    assertTrue(stat.getGeneration() != generation);
+    assertEquals(3, new StatStruct().DecodeStat(stat.EncodeStat(), 0).getQid().getVersion());
+
+    // A listener hears setters and in place qid changes, a copy sharing the qid stays silent
+    int[] changes = new int[1];
+    stat.setChangeListener(() -> changes[0]++);
+    StatStruct copy = stat.duplicate();
+    stat.setLength(10);
+    assertEquals(1, changes[0]);
+    stat.getQid().setVersion(4);
+    assertEquals(2, changes[0]);
+    stat.getQid().setVersion(4);
+    copy.setName("copy");
+    assertEquals(2, changes[0]);
+    QID replaced = new QID();
+    stat.setQid(replaced);
+    assertEquals(3, changes[0]);
+    copy.getQid().setVersion(5);
+    replaced.setVersion(1);
+    assertEquals(4, changes[0]);
+    stat.setChangeListener(null);
+    replaced.setVersion(2);
+    assertEquals(4, changes[0]);
+  }
+
+  @Test
+  void testStatView() {
+    StatStruct first = new StatStruct();
+    first.setQid(new QID());
+    first.getQid().setType(P9Protocol.QID_DIR);
+    first.getQid().setLongFileId(77);
+    first.setName("dir");
+    first.setUid("user");
+    first.setGid("group");
+    first.setMuid("other");
+    first.setLength(1234);
+    first.updateSize();
+    StatStruct second = first.duplicate();
+    second.setName("second");
+    second.updateSize();
+
+    byte[] firstBytes = first.EncodeStat();
+    byte[] secondBytes = second.EncodeStat();
+    byte[] listing = new byte[firstBytes.length + secondBytes.length];
+    System.arraycopy(firstBytes, 0, listing, 0, firstBytes.length);
+    System.arraycopy(secondBytes, 0, listing, firstBytes.length, secondBytes.length);
+
+    StatView view = new StatView(listing, 0);
+    assertEquals("dir", view.getName());
+    assertEquals(P9Protocol.QID_DIR, view.getQidType());
+    assertEquals(77, view.getQidFileId());
+    assertEquals(1234, view.getLength());
+    assertEquals("other", view.getMuid());
+    view.reset(listing, view.getStatSize());
+    assertEquals("second", view.getName());
+    assertEquals("group", view.getGid());
+    assertEquals("second", view.toStatStruct().getName());
+  }
+
+  @Test
+  public void testMsgSizeNegotiation() {
+    VersionRequest request = new VersionRequest();
+    request.setMaxMsgSize(P9Protocol.MAX_NEGOTIATED_MSG_SIZE);
+    VersionRequest decoded = Decoder.decodeVersionRequest(request.toMessage());
+    assertEquals(P9Protocol.MAX_NEGOTIATED_MSG_SIZE, decoded.getMaxMsgSize());
+
+    int msgSize = VersionRequest.negotiateMsgSize(decoded.getMaxMsgSize(), 1024 * 1024);
+    assertEquals(1024 * 1024, msgSize);
+    assertTrue(VersionRequest.validMsgSize(msgSize));
+    assertFalse(VersionRequest.validMsgSize(VersionRequest.negotiateMsgSize(512, msgSize)));
+
+    // A full IO unit of write data still fits inside the negotiated size
+    WriteRequest write = new WriteRequest();
+    write.setWriteData(new byte[VersionRequest.ioUnit(msgSize)]);
+    write.setByteCount(write.getWriteData().length);
+    assertEquals(msgSize, write.encodedSize());
+  }
+
+  @Test
+  public void testCompoundRoundTrip() {
+    CompoundRequest request = new CompoundRequest();
+    request.setTag(42);
+    WalkRequest walk = new WalkRequest();
+    walk.setBaseDescriptor(1);
+    walk.setNewDecriptor(2);
+    walk.setTargetFile("file");
+    assertEquals(0, request.addOperation(walk));
+    StatRequest stat = new StatRequest();
+    stat.setFileDescriptor(2);
+    assertEquals(1, request.addOperation(stat));
+
+    Message msg = Decoder.decodeToMessage(request.toMessage().toRaw());
+    CompoundRequest decoded = Decoder.decodeCompoundRequest(msg);
+    assertEquals(42, decoded.getTag());
+    assertEquals(2, decoded.getOperations().size());
+    WalkRequest decodedWalk = Decoder.decodeWalkRequest(decoded.getOperations().get(0));
+    assertEquals("file", decodedWalk.getTargetFile());
+    assertEquals(1, decoded.getOperations().get(1).tag);
+
+    CompoundResponse response = new CompoundResponse();
+    ErrorMessage error = new ErrorMessage();
+    error.setTag(1);
+    error.setErrorMessage("denied");
+    response.getReplies().add(error.toMessage());
+    CompoundResponse decodedResponse =
+        Decoder.decodeCompoundResponse(Decoder.decodeToMessage(response.toMessage().toRaw()));
+    assertTrue(decodedResponse.isError());
+    assertEquals(
+        "denied", Decoder.decodeError(decodedResponse.getReply(1)).getErrorMessage());
+    assertEquals(response.encodedSize(), response.toMessage().messageSize);
+  }
+
+  @Test
+  public void testPayloadCodec() throws Exception {
+    assertEquals(
+        P9Protocol.CODEC_DEFLATE,
+        PayloadCodec.negotiate(P9Protocol.CODEC_DEFLATE, P9Protocol.CODEC_DEFLATE));
+    assertEquals(
+        P9Protocol.CODEC_NONE,
+        PayloadCodec.negotiate(P9Protocol.CODEC_DEFLATE, P9Protocol.CODEC_NONE));
+
+    byte[] data = new byte[8192];
+    for (int i = 0; i < data.length; ++i) {
+      data[i] = (byte) (i % 16);
+    }
+    ReadResponse response = new ReadResponse();
+    response.setTag(9);
+    response.setData(data);
+    Message plain = response.toMessage();
+    byte[] original = plain.messageContent.clone();
+
+    PayloadCodec codec = new PayloadCodec(P9Protocol.CODEC_DEFLATE);
+    Message compressed = codec.compress(plain);
+    assertEquals(P9Protocol.TCODEC, compressed.messageType);
+    assertTrue(compressed.messageSize < plain.messageSize);
+    assertArrayEquals(original, plain.messageContent);
+
+    Message restored = new PayloadCodec(P9Protocol.CODEC_DEFLATE).decompress(compressed);
+    assertEquals(P9Protocol.RREAD, restored.messageType);
+    assertEquals(9, restored.tag);
+    assertArrayEquals(data, Decoder.decodeReadResponse(restored).getData());
+
+    // Frames that are not data or do not shrink go out untouched
+    WalkRequest walk = new WalkRequest();
+    walk.setTargetFile("file");
+    assertTrue(codec.compress(walk.toMessage()).messageType == P9Protocol.TWALK);
+    byte[] noise = new byte[4096];
+    new Random(1).nextBytes(noise);
+    response.setData(noise);
+    Message random = response.toMessage();
+    assertTrue(codec.compress(random) == random);
+  }
+
+  @Test
+  public void testFrameDecoderPartialReads() throws Exception {
+    ReadResponse large = new ReadResponse();
+    large.setTag(3);
+    large.setData(new byte[100 * 1024]);
+    large.getData()[large.getData().length - 1] = 7;
+    WalkRequest walk = new WalkRequest();
+    walk.setTag(4);
+    walk.setTargetFile("file");
+    byte[] first = Encoder.encodeToBytes(large);
+    byte[] second = Encoder.encodeToBytes(walk);
+    byte[] stream = new byte[first.length + second.length];
+    System.arraycopy(first, 0, stream, 0, first.length);
+    System.arraycopy(second, 0, stream, first.length, second.length);
+
+    // Feed the stream in uneven chunks, frames only come out once complete
+    FrameDecoder decoder = new FrameDecoder(1024, P9Protocol.MAX_NEGOTIATED_MSG_SIZE);
+    ByteArrayInputStream input = new ByteArrayInputStream(stream);
+    List<Message> frames = new ArrayList<>();
+    int[] chunks = {3, 5, 700, 1, 4096};
+    int chunk = 0;
+    while (decoder.readFrom(input, chunks[chunk++ % chunks.length]) > 0) {
+      Message msg = decoder.poll();
+      while (msg != null) {
+        frames.add(msg);
+        msg = decoder.poll();
+      }
+    }
+    assertFalse(decoder.isPartial());
+    assertEquals(2, frames.size());
+    assertEquals(P9Protocol.RREAD, frames.get(0).messageType);
+    assertEquals(3, frames.get(0).tag);
+    assertEquals(7, Decoder.decodeReadResponse(frames.get(0)).getData()[100 * 1024 - 1]);
+    assertEquals("file", Decoder.decodeWalkRequest(frames.get(1)).getTargetFile());
+  }
+
+  @Test
+  public void testFileRegionEncoding() throws Exception {
+    byte[] content = new byte[10000];
+    new Random(11).nextBytes(content);
+    Path file = Files.createTempFile("region", ".bin");
+    Files.write(file, content);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ReadRegionResponse region = new ReadRegionResponse();
+      region.setTag(9);
+      region.setRegion(channel, 1000, 5000);
+      ReadResponse plain = new ReadResponse();
+      plain.setTag(9);
+      plain.setData(content, 1000, 5000);
+
+      // The region frame is byte for byte the RREAD of the same data
+      assertEquals(plain.encodedSize(), region.encodedSize());
+      assertArrayEquals(Encoder.encodeToBytes(plain), Encoder.encodeToBytes(region));
+      FileRegionMessage msg = (FileRegionMessage) region.toMessage();
+      assertEquals(plain.toMessage().messageSize, msg.messageSize);
+      assertArrayEquals(plain.toMessage().messageContent, msg.materialize().messageContent);
+    } finally {
+      Files.delete(file);
+    }
+  }
 }